@@ -9,6 +9,11 @@ import org.apache.commons.math3.ml.clustering.Clusterable;
  */
 public interface DataObject extends Comparable<DataObject>, Clusterable {
 
+    /**
+     * Id of objects which are not parsed from an image stack
+     */
+    int NO_ID = -1;
+
     void setFeatures(double[] features);
 
     int getDimension();
@@ -17,6 +22,13 @@ public interface DataObject extends Comparable<DataObject>, Clusterable {
 
     DataObject deepClone();
 
+    /**
+     * Position of the point in the image stack it was parsed from, or
+     * {@link #NO_ID}. Ids are unique only within a stack, equality of the
+     * objects is still defined by the coordinates
+     */
+    int getId();
+
     int hashCode();
 
     boolean equals(Object obj);
@@ -1,27 +1,51 @@
 package neu.nctracer.data;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
 
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
 import neu.nctracer.exception.ParsingException;
+import neu.nctracer.utils.DataTransformer;
 
 /**
  * Defines translation between entities defined by parameters of type
- * <code>T</code>
+ * <code>T</code><br>
+ * 
+ * Translation is encoded either as distance and direction angles (in
+ * degrees) or directly as the offset vector from source to target. Vector
+ * encoding avoids trigonometry while defining and applying the translation,
+ * see {@link #getTranslation()}.<br>
+ *
+ * Only the encoded translation and support are serialized as a
+ * {@link Writable}. Translated entities are not.
  * 
  * @author Ankur Shanbhag
  *
  * @param <T>
  *            - defines translation between type of elements
  */
-public class DataTransformation<T> implements DataObject {
+public class DataTransformation<T> implements DataObject, Writable {
 
     private static final String COMPONENT_SEPARATOR = "#";
     private static final String FEATURES_SEPARATOR = ",";
+    // text prefix of vector encoded translations, in place of distance
+    private static final String VECTOR_PREFIX = "v";
+
+    private static final byte ENCODING_ANGLES = 0;
+    private static final byte ENCODING_VECTOR = 1;
 
     private T sourceObj;
     private T targetObj;
     private double[] angles;
     private double distance;
+    // set only for vector encoded translations
+    private double[] vector;
+    // evidence for the translation found by candidate generation, if any
+    private int support = 0;
 
     public void setTranslationObjects(T sourceObj, T targetObj) {
         this.sourceObj = sourceObj;
@@ -36,15 +60,22 @@ public class DataTransformation<T> implements DataObject {
         return targetObj;
     }
 
+    /**
+     * Direction angles of the translation. Returns <tt>null</tt> for vector
+     * encoded translations
+     */
     public double[] getAngles() {
         return angles;
     }
 
     public void setAngles(double[] angles) {
         this.angles = angles;
+        this.vector = null;
     }
 
     public double getDistance() {
+        if (null != vector)
+            return DataTransformer.computeNorm(vector);
         return distance;
     }
 
@@ -52,6 +83,52 @@ public class DataTransformation<T> implements DataObject {
         this.distance = distance;
     }
 
+    /**
+     * Encodes translation directly as offset vector from source to target.
+     * Replaces distance and angles
+     */
+    public void setVector(double[] vector) {
+        this.vector = vector;
+        this.angles = null;
+        this.distance = 0;
+    }
+
+    /**
+     * Offset vector from source to target. Returns <tt>null</tt> for
+     * translations encoded as distance and angles
+     */
+    public double[] getVector() {
+        return vector;
+    }
+
+    public boolean isVectorEncoded() {
+        return null != vector;
+    }
+
+    /**
+     * Returns translation to be added to the source points, irrespective of
+     * the encoding. Vector encoded translations are returned as is (not
+     * copied)
+     */
+    public double[] getTranslation() {
+        if (null != vector)
+            return vector;
+
+        double[] translation = new double[angles.length];
+        for (int i = 0; i < translation.length; i++) {
+            translation[i] = distance * Math.cos(Math.toRadians(angles[i]));
+        }
+        return translation;
+    }
+
+    public int getSupport() {
+        return support;
+    }
+
+    public void setSupport(int support) {
+        this.support = support;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -59,6 +136,7 @@ public class DataTransformation<T> implements DataObject {
         result = prime * result + Arrays.hashCode(angles);
         long temp = Double.doubleToLongBits(distance);
         result = prime * result + (int) (temp ^ (temp >>> 32));
+        result = prime * result + Arrays.hashCode(vector);
         return result;
     }
 
@@ -75,16 +153,21 @@ public class DataTransformation<T> implements DataObject {
             return false;
         if (Double.doubleToLongBits(distance) != Double.doubleToLongBits(other.distance))
             return false;
+        if (!Arrays.equals(vector, other.vector))
+            return false;
         return true;
     }
 
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
-        builder.append(distance).append(COMPONENT_SEPARATOR);
+        if (null != vector)
+            builder.append(VECTOR_PREFIX).append(COMPONENT_SEPARATOR);
+        else
+            builder.append(distance).append(COMPONENT_SEPARATOR);
 
-        for (double angle : angles) {
-            builder.append(angle).append(FEATURES_SEPARATOR);
+        for (double feature : getFeatures()) {
+            builder.append(feature).append(FEATURES_SEPARATOR);
         }
         builder.delete(builder.length() - 1, builder.length());
 
@@ -93,7 +176,7 @@ public class DataTransformation<T> implements DataObject {
 
     @Override
     public double[] getPoint() {
-        return getAngles();
+        return getFeatures();
     }
 
     @Override
@@ -103,17 +186,24 @@ public class DataTransformation<T> implements DataObject {
 
     @Override
     public void setFeatures(double[] features) {
-        setAngles(features);
+        if (null != vector)
+            setVector(features);
+        else
+            setAngles(features);
     }
 
     @Override
     public int getDimension() {
-        return angles.length;
+        return getFeatures().length;
     }
 
+    /**
+     * Offset vector for vector encoded translations, direction angles
+     * otherwise
+     */
     @Override
     public double[] getFeatures() {
-        return getAngles();
+        return (null != vector) ? vector : angles;
     }
 
     @Override
@@ -121,15 +211,76 @@ public class DataTransformation<T> implements DataObject {
         throw new RuntimeException("Not implemented...");
     }
 
+    @Override
+    public int getId() {
+        return NO_ID;
+    }
+
+    /**
+     * <tt>encoding (byte) | [distance (double)] | number of features (vint) |
+     * features (doubles) | support (vint)</tt><br>
+     *
+     * Distance is written only for translations encoded as angles. Features
+     * are either the angles or the vector
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        double[] features;
+        if (null != vector) {
+            out.writeByte(ENCODING_VECTOR);
+            features = vector;
+        } else {
+            out.writeByte(ENCODING_ANGLES);
+            out.writeDouble(distance);
+            features = angles;
+        }
+
+        WritableUtils.writeVInt(out, features.length);
+        for (double feature : features) {
+            out.writeDouble(feature);
+        }
+        WritableUtils.writeVInt(out, support);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        this.sourceObj = null;
+        this.targetObj = null;
+
+        byte encoding = in.readByte();
+        if (encoding != ENCODING_ANGLES && encoding != ENCODING_VECTOR)
+            throw new IOException("Unknown translation encoding [" + encoding + "]");
+        double readDistance = (encoding == ENCODING_ANGLES) ? in.readDouble() : 0;
+
+        // new array as the previous one may still be referenced
+        double[] features = new double[WritableUtils.readVInt(in)];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = in.readDouble();
+        }
+
+        if (encoding == ENCODING_VECTOR) {
+            setVector(features);
+        } else {
+            setAngles(features);
+            this.distance = readDistance;
+        }
+        this.support = WritableUtils.readVInt(in);
+    }
+
     public static DataTransformation parse(String data) throws ParsingException {
         String[] split = data.split(COMPONENT_SEPARATOR);
         if (split.length != 2)
             throw new ParsingException("Cannot parse data input [" + data + "]");
 
+        DataTransformation tranformation = new DataTransformation();
+        if (VECTOR_PREFIX.equals(split[0])) {
+            tranformation.setVector(parseFeatures(split[1]));
+            return tranformation;
+        }
+
         double distance = parseDistance(data, split);
-        double[] angles = parseAngles(split[1]);
+        double[] angles = parseFeatures(split[1]);
 
-        DataTransformation tranformation = new DataTransformation();
         tranformation.setDistance(distance);
         tranformation.setAngles(angles);
         return tranformation;
@@ -143,7 +294,7 @@ public class DataTransformation<T> implements DataObject {
         }
     }
 
-    private static double[] parseAngles(String data) throws ParsingException {
+    private static double[] parseFeatures(String data) throws ParsingException {
         String[] split = data.split(FEATURES_SEPARATOR);
         if (split.length != 3)
             throw new ParsingException("Cannot parse data input [" + data + "]");
@@ -12,11 +12,28 @@ public class ImageData implements DataObject {
 
     private double[] features;
     private int dimension;
+    private int id = NO_ID;
+
+    // hash of the features computed on first use, 0 if not computed yet.
+    // Single field, so a thread sees either 0 or the complete hash without
+    // synchronization (same as String). Features must not be modified in
+    // place once the object is hashed
+    private int hash;
 
     @Override
     public void setFeatures(double[] features) {
         this.features = features;
         this.dimension = features.length;
+        this.hash = 0;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
     }
 
     @Override
@@ -45,10 +62,15 @@ public class ImageData implements DataObject {
 
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + dimension;
-        result = prime * result + Arrays.hashCode(features);
+        int result = hash;
+        if (result == 0) {
+            final int prime = 31;
+            result = 1;
+            result = prime * result + dimension;
+            result = prime * result + Arrays.hashCode(features);
+            // hash which happens to be 0 is recomputed on every call
+            hash = result;
+        }
         return result;
     }
 
@@ -63,6 +85,11 @@ public class ImageData implements DataObject {
         ImageData other = (ImageData) obj;
         if (dimension != other.dimension)
             return false;
+        // hashes are read once, each is either 0 or complete
+        int thisHash = hash;
+        int otherHash = other.hash;
+        if (thisHash != 0 && otherHash != 0 && thisHash != otherHash)
+            return false;
         if (!Arrays.equals(features, other.features))
             return false;
         return true;
@@ -87,6 +114,7 @@ public class ImageData implements DataObject {
         ImageData clone = new ImageData();
         double[] clonedFeatures = Arrays.copyOf(this.getFeatures(), this.getDimension());
         clone.setFeatures(clonedFeatures);
+        clone.setId(id);
         return clone;
     }
 
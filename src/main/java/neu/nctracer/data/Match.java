@@ -8,6 +8,8 @@ import java.util.Set;
 
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 
 import neu.nctracer.exception.ParsingException;
 
@@ -20,9 +22,21 @@ import neu.nctracer.exception.ParsingException;
  */
 public class Match implements Comparable<Match>, WritableComparable<Match>, Writable {
 
+    // encoding flags understood by this version of the class
+    private static final byte FLAG_SINGLE_PRECISION = 1;
+    private static final byte SUPPORTED_FLAGS = FLAG_SINGLE_PRECISION;
+
     private Set<DataCorrespondence> correspondences;
     private double score;
 
+    // write coordinates as floats. Error and score are always doubles
+    private boolean singlePrecision = false;
+
+    static {
+        // register raw comparator used by the framework for sorting matches
+        WritableComparator.define(Match.class, new Comparator());
+    }
+
     public Match() {
         // defined for sake of making it work as a Writable class
     }
@@ -32,6 +46,15 @@ public class Match implements Comparable<Match>, WritableComparable<Match>, Writ
         this.correspondences = correspondences;
     }
 
+    /**
+     * Copies the match, so that instances reused by the framework can be
+     * kept. Correspondences are shared
+     */
+    public Match(Match other) {
+        this(other.score, other.correspondences);
+        this.singlePrecision = other.singlePrecision;
+    }
+
     public Set<DataCorrespondence> getCorrespondences() {
         return correspondences;
     }
@@ -40,6 +63,17 @@ public class Match implements Comparable<Match>, WritableComparable<Match>, Writ
         return score;
     }
 
+    public boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    /**
+     * Sets whether coordinates are serialized as floats instead of doubles
+     */
+    public void setSinglePrecision(boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -77,38 +111,98 @@ public class Match implements Comparable<Match>, WritableComparable<Match>, Writ
         return result;
     }
 
+    /**
+     * Binary encoding of the match. Text representation (see
+     * {@link #toString()}) is not affected by this format.<br>
+     * 
+     * <tt>score (double) | count (vint) | flags (byte) | dimension (vint) |
+     * count x [source, translated source, target, error]</tt><br>
+     * 
+     * Every data point is written as <tt>dimension</tt> raw IEEE doubles, or
+     * floats if single precision flag is set. Error is always a double.
+     */
     @Override
     public void write(DataOutput out) throws IOException {
         out.writeDouble(this.score);
 
-        if (null == correspondences) {
-            out.writeInt(0);
+        if (null == correspondences || correspondences.isEmpty()) {
+            WritableUtils.writeVInt(out, 0);
             return;
         }
 
-        out.writeInt(correspondences.size());
+        WritableUtils.writeVInt(out, correspondences.size());
+        out.writeByte(singlePrecision ? FLAG_SINGLE_PRECISION : 0);
+
+        int dimension = correspondences.iterator().next().getSource().getDimension();
+        WritableUtils.writeVInt(out, dimension);
+
         for (DataCorrespondence correspondence : correspondences) {
-            out.writeUTF(correspondence.toString());
+            writeFeatures(out, correspondence.getSource(), dimension, singlePrecision);
+            writeFeatures(out, correspondence.getTranslatedSource(), dimension, singlePrecision);
+            writeFeatures(out, correspondence.getTarget(), dimension, singlePrecision);
+            out.writeDouble(correspondence.getError());
         }
     }
 
     @Override
     public void readFields(DataInput in) throws IOException {
         this.score = in.readDouble();
+        this.singlePrecision = false;
 
-        int numCorrespondences = in.readInt();
+        int numCorrespondences = WritableUtils.readVInt(in);
         this.correspondences = new LinkedHashSet<>(numCorrespondences);
+        if (numCorrespondences == 0)
+            return;
+
+        byte flags = in.readByte();
+        if ((flags & ~SUPPORTED_FLAGS) != 0)
+            throw new IOException("Unsupported match encoding [" + flags + "]");
+        this.singlePrecision = (flags & FLAG_SINGLE_PRECISION) != 0;
 
+        int dimension = WritableUtils.readVInt(in);
         while (numCorrespondences > 0) {
-            try {
-                this.correspondences.add(DataCorrespondence.parse(in.readUTF()));
-            } catch (ParsingException e) {
-                throw new IOException("Error parsing data correspondence.", e);
-            }
+            DataObject source = readFeatures(in, dimension, singlePrecision);
+            DataObject translatedSource = readFeatures(in, dimension, singlePrecision);
+            DataObject target = readFeatures(in, dimension, singlePrecision);
+            double error = in.readDouble();
+
+            this.correspondences.add(new DataCorrespondence(source,
+                                                            translatedSource,
+                                                            target,
+                                                            error));
             numCorrespondences--;
         }
     }
 
+    private static void writeFeatures(DataOutput out,
+                                      DataObject obj,
+                                      int dimension,
+                                      boolean singlePrecision) throws IOException {
+        if (obj.getDimension() != dimension)
+            throw new IOException("All data points in a match must have dimension " + dimension);
+
+        double[] features = obj.getFeatures();
+        for (int i = 0; i < dimension; i++) {
+            if (singlePrecision)
+                out.writeFloat((float) features[i]);
+            else
+                out.writeDouble(features[i]);
+        }
+    }
+
+    private static DataObject readFeatures(DataInput in,
+                                           int dimension,
+                                           boolean singlePrecision) throws IOException {
+        double[] features = new double[dimension];
+        for (int i = 0; i < dimension; i++) {
+            features[i] = singlePrecision ? in.readFloat() : in.readDouble();
+        }
+
+        DataObject obj = new ImageData();
+        obj.setFeatures(features);
+        return obj;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -153,5 +247,38 @@ public class Match implements Comparable<Match>, WritableComparable<Match>, Writ
 
         return new Match(score, set);
     }
-}
 
+    /**
+     * Compares serialized matches using score and number of correspondences
+     * read directly from the bytes (see {@link Match#write(DataOutput)}).
+     * Correspondences are never deserialized. Ordering is same as
+     * {@link Match#compareTo(Match)}
+     * 
+     * @author Ankur Shanbhag
+     *
+     */
+    public static class Comparator extends WritableComparator {
+
+        // number of bytes used by the score
+        private static final int SCORE_LENGTH = 8;
+
+        public Comparator() {
+            super(Match.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int result = -Double.compare(readDouble(b1, s1), readDouble(b2, s2));
+            if (result != 0)
+                return result;
+
+            try {
+                int size1 = readVInt(b1, s1 + SCORE_LENGTH);
+                int size2 = readVInt(b2, s2 + SCORE_LENGTH);
+                return -(size1 - size2);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Error reading number of correspondences.", e);
+            }
+        }
+    }
+}
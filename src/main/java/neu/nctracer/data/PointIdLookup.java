@@ -0,0 +1,95 @@
+package neu.nctracer.data;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps points of a collection to integer ids so that used/unused bookkeeping
+ * can be done with bitsets instead of hash sets.<br>
+ *
+ * Ids assigned while parsing the image stack (see {@link DataObject#getId()})
+ * are used when every point of the collection has one. Points without an id,
+ * for example points read back from old output, are looked up by coordinates.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public final class PointIdLookup {
+
+    private final List<DataObject> points;
+    private final boolean useParsedIds;
+    private final int capacity;
+    // parsed ids of the points, set only if parsed ids are used
+    private final BitSet memberIds;
+
+    // coordinate lookup, created only if required
+    private Map<DataObject, Integer> coordinateLookup = null;
+
+    public PointIdLookup(List<DataObject> points) {
+        this.points = points;
+
+        BitSet ids = new BitSet();
+        boolean allIds = true;
+        for (DataObject point : points) {
+            if (point.getId() == DataObject.NO_ID) {
+                allIds = false;
+                break;
+            }
+            ids.set(point.getId());
+        }
+
+        this.useParsedIds = allIds;
+        this.memberIds = allIds ? ids : null;
+        this.capacity = allIds ? ids.length() : points.size();
+    }
+
+    /**
+     * Returns id of the point or {@link DataObject#NO_ID} if the point is not
+     * part of the collection. Ids are in range <tt>[0, capacity())</tt>
+     */
+    public int idOf(DataObject point) {
+        int parsedId = point.getId();
+        if (useParsedIds && parsedId != DataObject.NO_ID && memberIds.get(parsedId))
+            return parsedId;
+
+        if (null == coordinateLookup)
+            coordinateLookup = createCoordinateLookup();
+
+        Integer id = coordinateLookup.get(toCoordinateKey(point));
+        return (null == id) ? DataObject.NO_ID : id;
+    }
+
+    /**
+     * Upper bound (exclusive) of the ids
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    private Map<DataObject, Integer> createCoordinateLookup() {
+        Map<DataObject, Integer> lookup = new HashMap<>(points.size() * 2);
+        for (int i = 0; i < points.size(); i++) {
+            DataObject point = points.get(i);
+            DataObject key = toCoordinateKey(point);
+            // first point wins for duplicate coordinates
+            if (!lookup.containsKey(key))
+                lookup.put(key, useParsedIds ? point.getId() : i);
+        }
+        return lookup;
+    }
+
+    /**
+     * Other data objects (e.g. views of a {@link PointStack}) do not define
+     * equality by coordinates
+     */
+    private static DataObject toCoordinateKey(DataObject point) {
+        if (point instanceof ImageData)
+            return point;
+
+        ImageData key = new ImageData();
+        key.setFeatures(point.getFeatures());
+        return key;
+    }
+}
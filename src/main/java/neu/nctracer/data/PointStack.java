@@ -0,0 +1,325 @@
+package neu.nctracer.data;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds all the points of an image stack in a single primitive array of
+ * doubles or, in single precision mode, floats. Coordinates of point with id
+ * <tt>i</tt> are stored at positions <tt>[i * dimension, (i + 1) *
+ * dimension)</tt>. Point ids are stable and range from <tt>0</tt> to
+ * <tt>size() - 1</tt> in the order in which points were read.<br>
+ *
+ * Algorithms should work on point ids and coordinates directly. Lightweight
+ * {@link DataObject} views are created on demand for code which still works
+ * with data objects. A view holds only the stack reference, the point id and
+ * a copy of the coordinates once they are requested.<br>
+ *
+ * Single precision halves the memory used by the coordinates. Coordinates are
+ * returned as doubles in both modes, thus callers accumulate errors and scores
+ * in double precision.<br>
+ *
+ * Instances are immutable and can be shared between threads.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public final class PointStack {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // precision used for holding coordinates [float | double]
+    public static final String PARAM_PRECISION = "point.precision";
+
+    // exactly one of the arrays is set depending on precision
+    private final double[] coordinates;
+    private final float[] floatCoordinates;
+    private final int dimension;
+    private final int size;
+
+    /**
+     * Creates stack backed by specified array. Array is not copied and must
+     * not be modified afterwards
+     */
+    public PointStack(int dimension, double[] coordinates) {
+        this(dimension, coordinates, null, coordinates.length);
+    }
+
+    /**
+     * Creates single precision stack backed by specified array. Array is not
+     * copied and must not be modified afterwards
+     */
+    public PointStack(int dimension, float[] coordinates) {
+        this(dimension, null, coordinates, coordinates.length);
+    }
+
+    private PointStack(int dimension,
+                       double[] coordinates,
+                       float[] floatCoordinates,
+                       int numCoordinates) {
+        if (dimension < 1)
+            throw new IllegalArgumentException("Dimension must be positive. Found [" + dimension + "]");
+        if (numCoordinates % dimension != 0)
+            throw new IllegalArgumentException("Number of coordinates ["
+                                               + numCoordinates
+                                               + "] is not a multiple of dimension ["
+                                               + dimension
+                                               + "]");
+        this.dimension = dimension;
+        this.coordinates = coordinates;
+        this.floatCoordinates = floatCoordinates;
+        this.size = numCoordinates / dimension;
+    }
+
+    /**
+     * Checks if the precision parameter asks for single precision
+     */
+    public static boolean isSinglePrecision(String precision) {
+        return "float".equalsIgnoreCase(precision);
+    }
+
+    /**
+     * Copies coordinates of all the data objects in a new stack. All the data
+     * objects must have same dimension
+     */
+    public static PointStack fromDataObjects(List<DataObject> dataObjects) {
+        if (dataObjects.isEmpty())
+            throw new IllegalArgumentException("Cannot create point stack without points.");
+
+        int dimension = dataObjects.get(0).getDimension();
+        double[] coordinates = new double[dataObjects.size() * dimension];
+        int offset = 0;
+        for (DataObject dataObject : dataObjects) {
+            if (dataObject.getDimension() != dimension)
+                throw new IllegalArgumentException("All the points in the stack must have dimension "
+                                                   + dimension);
+            System.arraycopy(dataObject.getFeatures(), 0, coordinates, offset, dimension);
+            offset += dimension;
+        }
+        return new PointStack(dimension, coordinates);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isSinglePrecision() {
+        return null != floatCoordinates;
+    }
+
+    public double getCoordinate(int id, int axis) {
+        if (null != floatCoordinates)
+            return floatCoordinates[id * dimension + axis];
+        return coordinates[id * dimension + axis];
+    }
+
+    /**
+     * Copies coordinates of the point to the destination array
+     */
+    public void copyPoint(int id, double[] destination) {
+        int offset = id * dimension;
+        if (null == floatCoordinates) {
+            System.arraycopy(coordinates, offset, destination, 0, dimension);
+            return;
+        }
+
+        for (int i = 0; i < dimension; i++) {
+            destination[i] = floatCoordinates[offset + i];
+        }
+    }
+
+    /**
+     * Returns coordinates of the point in a new array
+     */
+    public double[] getPoint(int id) {
+        if (null == floatCoordinates)
+            return Arrays.copyOfRange(coordinates, id * dimension, (id + 1) * dimension);
+
+        double[] point = new double[dimension];
+        copyPoint(id, point);
+        return point;
+    }
+
+    /**
+     * Squared euclidean distance between stack point and given coordinates.
+     * Differences are computed in the precision of the stack and summed in
+     * double precision
+     */
+    public double distanceSquared(int id, double[] point) {
+        int offset = id * dimension;
+        double distance = 0.0;
+        if (null != floatCoordinates) {
+            for (int i = 0; i < dimension; i++) {
+                float diff = floatCoordinates[offset + i] - (float) point[i];
+                distance += diff * diff;
+            }
+            return distance;
+        }
+
+        for (int i = 0; i < dimension; i++) {
+            double diff = coordinates[offset + i] - point[i];
+            distance += diff * diff;
+        }
+        return distance;
+    }
+
+    /**
+     * Returns stack holding coordinates in single precision. Returns same
+     * stack if it is already in single precision
+     */
+    public PointStack toSinglePrecision() {
+        if (null != floatCoordinates)
+            return this;
+
+        float[] converted = new float[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            converted[i] = (float) coordinates[i];
+        }
+        return new PointStack(dimension, converted);
+    }
+
+    /**
+     * Returns lightweight data object view of the point
+     */
+    public DataObject getDataObject(int id) {
+        if (id < 0 || id >= size)
+            throw new IndexOutOfBoundsException("Invalid point id [" + id + "]");
+        return new PointView(this, id);
+    }
+
+    /**
+     * Returns read-only list of data object views of all the points. Views are
+     * created when elements are accessed
+     */
+    public List<DataObject> asList() {
+        return new AbstractList<DataObject>() {
+            @Override
+            public DataObject get(int index) {
+                return getDataObject(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Returns id of the point if the data object is a view of this stack, -1
+     * otherwise
+     */
+    public int idOf(DataObject dataObject) {
+        if (dataObject instanceof PointView && ((PointView) dataObject).stack == this)
+            return ((PointView) dataObject).id;
+        return -1;
+    }
+
+    /**
+     * Creates independent data objects for all the points in the stack
+     */
+    public List<DataObject> toDataObjects() {
+        List<DataObject> dataObjects = new ArrayList<>(size);
+        for (int id = 0; id < size; id++) {
+            ImageData dataObject = new ImageData();
+            dataObject.setFeatures(getPoint(id));
+            dataObject.setId(id);
+            dataObjects.add(dataObject);
+        }
+        return dataObjects;
+    }
+
+    /**
+     * Data object backed by a point in the stack. Views of same point are
+     * equal. Coordinates cannot be modified through the view
+     */
+    private static final class PointView implements DataObject {
+
+        private final PointStack stack;
+        private final int id;
+        // copy of the coordinates created on first request
+        private double[] features = null;
+
+        PointView(PointStack stack, int id) {
+            this.stack = stack;
+            this.id = id;
+        }
+
+        @Override
+        public void setFeatures(double[] features) {
+            throw new UnsupportedOperationException("Points of the stack cannot be modified.");
+        }
+
+        @Override
+        public int getDimension() {
+            return stack.dimension;
+        }
+
+        @Override
+        public double[] getFeatures() {
+            if (null == features)
+                features = stack.getPoint(id);
+            return features;
+        }
+
+        @Override
+        public double[] getPoint() {
+            return getFeatures();
+        }
+
+        @Override
+        public DataObject deepClone() {
+            ImageData clone = new ImageData();
+            clone.setFeatures(stack.getPoint(id));
+            clone.setId(id);
+            return clone;
+        }
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public int compareTo(DataObject obj) {
+            double[] features2 = obj.getFeatures();
+            for (int i = 0; i < stack.dimension; i++) {
+                int compare = Double.compare(stack.getCoordinate(id, i), features2[i]);
+                if (compare != 0)
+                    return compare;
+            }
+            return 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(stack) + id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof PointView))
+                return false;
+            PointView other = (PointView) obj;
+            return stack == other.stack && id == other.id;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < stack.dimension; i++) {
+                builder.append(stack.getCoordinate(id, i)).append(" ");
+            }
+            return builder.toString().trim();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package neu.nctracer.dm;
+
+import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.utils.DataTransformer;
+
+/**
+ * Generates linear translation between every pair of source and target
+ * points, encoded as offset vector. Candidate at index <tt>i</tt> moves source
+ * point <tt>i / size(target)</tt> on to the target point
+ * <tt>i % size(target)</tt>.<br>
+ *
+ * Not thread safe.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class AllPairsCandidateGenerator implements CandidateGenerator {
+
+    private PointStack source;
+    private PointStack target;
+
+    private double[] sourcePoint;
+    private double[] targetPoint;
+
+    @Override
+    public void setup(PointStack source, PointStack target, ConfigurationParams params) {
+        this.source = source;
+        this.target = target;
+        this.sourcePoint = new double[source.getDimension()];
+        this.targetPoint = new double[target.getDimension()];
+    }
+
+    @Override
+    public long size() {
+        return (long) source.size() * target.size();
+    }
+
+    @Override
+    public void generate(long index, DataTransformation<DataObject> transformation) {
+        source.copyPoint((int) (index / target.size()), sourcePoint);
+        target.copyPoint((int) (index % target.size()), targetPoint);
+
+        transformation.setTranslationObjects(null, null);
+        transformation.setSupport(0);
+        transformation.setVector(DataTransformer.computeOffsetVector(sourcePoint, targetPoint));
+    }
+}
@@ -0,0 +1,33 @@
+package neu.nctracer.dm;
+
+import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.PointStack;
+
+/**
+ * Generates candidate transformations between source and target stacks on
+ * demand. Candidates are addressed by index, so any range of candidates can
+ * be generated independently of the others.<br>
+ *
+ * Implementations must be deterministic - same stacks and parameters must
+ * always produce same candidates at same indexes, as the candidates are
+ * counted by the client and generated by the map tasks.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public interface CandidateGenerator {
+
+    void setup(PointStack source, PointStack target, ConfigurationParams params);
+
+    /**
+     * Total number of candidates
+     */
+    long size();
+
+    /**
+     * Sets candidate with the given index on the transformation
+     */
+    void generate(long index, DataTransformation<DataObject> transformation);
+}
@@ -0,0 +1,132 @@
+package neu.nctracer.dm;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Errors of the correspondences picked by greedy matching of a translation,
+ * in the order they were picked (see {@link TranslationMatchCalculator}).
+ * Greedy matching picks the same pairs for every <tt>alpha</tt> of the
+ * scoring function, only the point where it stops differs. Thus the sequence
+ * is enough to score the translation for any <tt>alpha</tt> without searching
+ * neighbors again.<br>
+ *
+ * Matching stops at the first correspondence which lowers the score, i.e.
+ * whose error exceeds error of the previous one by more than
+ * <tt>alpha / (1 - alpha)</tt>. Maximum gap between consecutive errors of
+ * every prefix is computed once, so the stopping point of any <tt>alpha</tt>
+ * is found by binary search.<br>
+ *
+ * Serialized as: <tt>dimension (vint) | translation (doubles) | length
+ * (vint) | errors (doubles)</tt>
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class ErrorSequence implements Writable {
+
+    private double[] translation;
+    private double[] errors;
+    // maxGaps[i] is maximum gap between consecutive errors up to index i
+    private double[] maxGaps;
+
+    public ErrorSequence() {
+        this(new double[0], new double[0]);
+    }
+
+    public ErrorSequence(double[] translation, double[] errors) {
+        this.translation = translation;
+        this.errors = errors;
+        computeMaxGaps();
+    }
+
+    private void computeMaxGaps() {
+        maxGaps = new double[errors.length];
+        double maxGap = Double.NEGATIVE_INFINITY;
+        for (int i = 1; i < errors.length; i++) {
+            maxGap = Math.max(maxGap, errors[i] - errors[i - 1]);
+            maxGaps[i] = maxGap;
+        }
+    }
+
+    public double[] getTranslation() {
+        return translation;
+    }
+
+    public int length() {
+        return errors.length;
+    }
+
+    /**
+     * Returns number of correspondences greedy matching keeps for the alpha
+     */
+    public int size(double alpha) {
+        if (errors.length == 0 || generateScore(alpha, 1, errors[0]) < Double.MIN_VALUE)
+            return 0;
+        if (alpha >= 1)
+            return errors.length;
+
+        // first index whose prefix has a gap larger than allowed
+        double maxGap = alpha / (1 - alpha);
+        int low = 1;
+        int high = errors.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (maxGaps[mid] > maxGap)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
+    }
+
+    /**
+     * Returns score of the match found by greedy matching for the alpha
+     */
+    public double score(double alpha) {
+        int size = size(alpha);
+        return (size == 0) ? Double.MIN_VALUE : generateScore(alpha, size, errors[size - 1]);
+    }
+
+    /**
+     * Same scoring function as {@link TranslationMatchCalculator}
+     */
+    private static double generateScore(double alpha, int position, double error) {
+        return (alpha * position) - ((1 - alpha) * error);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, translation.length);
+        for (double component : translation) {
+            out.writeDouble(component);
+        }
+        WritableUtils.writeVInt(out, errors.length);
+        for (double error : errors) {
+            out.writeDouble(error);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        translation = new double[WritableUtils.readVInt(in)];
+        for (int i = 0; i < translation.length; i++) {
+            translation[i] = in.readDouble();
+        }
+        errors = new double[WritableUtils.readVInt(in)];
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = in.readDouble();
+        }
+        computeMaxGaps();
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(translation) + " " + errors.length + " errors";
+    }
+}
@@ -12,13 +12,17 @@ import java.util.TreeMap;
 
 import neu.nctracer.conf.cli.ConfigurationParams;
 import neu.nctracer.data.DataObject;
+import neu.nctracer.data.PointStack;
 import neu.nctracer.log.LogManager;
 import neu.nctracer.log.Logger;
 import neu.nctracer.utils.DataTransformer;
 
 /**
  * Implementation for kNN algorithm for predicting the labels of data points
- * with n-dimensional features using Euclidean distance method
+ * with n-dimensional features using Euclidean distance method<br>
+ * 
+ * Safe for concurrent queries. Every query keeps its state on the stack or in
+ * the arrays passed by the caller.
  * 
  * @author Ankur Shanbhag
  * 
@@ -31,15 +35,28 @@ public class KNearestNeighbors implements NearestNeighbors {
     // value for maximum allowed distance
     public static final String PARAM_THRESHOLD_DISTANCE = "nearest.neighbor.threshold.distance";
 
-    private List<DataObject> dataObjects;
-    private double maxDistance;
+    // set up once and only read by queries
+    private volatile List<DataObject> dataObjects;
+    private volatile PointStack points;
+    private volatile double maxDistance;
 
     private Logger logger = LogManager.getLogManager().getDefaultLogger();
 
     @Override
     public void setup(List<DataObject> dataObjects, ConfigurationParams params) {
         this.dataObjects = dataObjects;
+        this.points = null;
+        setMaxDistance(params);
+    }
 
+    @Override
+    public void setup(PointStack points, ConfigurationParams params) {
+        this.points = points;
+        this.dataObjects = points.asList();
+        setMaxDistance(params);
+    }
+
+    private void setMaxDistance(ConfigurationParams params) {
         String param = params.getParam(PARAM_THRESHOLD_DISTANCE);
         try {
             this.maxDistance = Double.parseDouble(param);
@@ -83,6 +100,30 @@ public class KNearestNeighbors implements NearestNeighbors {
         return neighbors;
     }
 
+    /**
+     * Compares distance from every point in the stack and keeps K closest
+     * points within the threshold distance
+     */
+    @Override
+    public int findNeighbors(double[] point, int K, int[] neighborIds, double[] distances) {
+        if (null == points)
+            throw new IllegalStateException("Nearest neighbors are not set up for point stack.");
+
+        double maxDistanceSquared = (maxDistance == Double.MAX_VALUE) ? Double.MAX_VALUE
+                                                                      : maxDistance * maxDistance;
+        int count = 0;
+        for (int id = 0; id < points.size(); id++) {
+            double distance = points.distanceSquared(id, point);
+            if (distance <= maxDistanceSquared)
+                count = PointStackKdTree.insert(id, distance, count, K, neighborIds, distances);
+        }
+
+        for (int i = 0; i < count; i++) {
+            distances[i] = Math.sqrt(distances[i]);
+        }
+        return count;
+    }
+
     /**
      * Calculates distance between the specified data point and every point
      * specified in the training set
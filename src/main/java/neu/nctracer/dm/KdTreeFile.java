@@ -0,0 +1,159 @@
+package neu.nctracer.dm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import neu.nctracer.data.PointStack;
+import neu.nctracer.exception.ParsingException;
+
+/**
+ * Reads and writes {@link PointStackKdTree} in binary format, so that the
+ * tree over target image stack is built once by the client and
+ * memory-mapped by the mappers.<br>
+ *
+ * <tt>magic (int) | version (byte) | reserved (3 bytes) | dimension (int) |
+ * count (int) | fingerprint (long) | count ids (ints) | count split axes
+ * (bytes)</tt><br>
+ *
+ * Fingerprint is computed over the coordinates of the stack rounded to single
+ * precision, thus the same file can be used with stacks read in any precision
+ * (rounding preserves the order of the coordinates). All values are
+ * big-endian.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public final class KdTreeFile {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // build target index once on the client and ship it to the mappers
+    public static final String PARAM_PREBUILT_INDEX = "nearest.neighbor.prebuilt.index";
+
+    public static final int MAGIC = 0x4E434B44;
+    public static final byte VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".kdtree";
+
+    private static final int HEADER_LENGTH = 24;
+
+    // job configuration key holding index file name of the stack file
+    private static final String INDEX_FILE_KEY_PREFIX = "hadoop.image.index.";
+
+    /**
+     * Job configuration key holding name of the index file built over the
+     * given image stack file
+     */
+    public static String indexFileKey(String stackFileName) {
+        return INDEX_FILE_KEY_PREFIX + stackFileName;
+    }
+
+    /**
+     * Writes the tree to local file
+     */
+    public static void write(PointStackKdTree tree, String localFilePath) throws IOException {
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(localFilePath));
+            write(tree, out);
+        } finally {
+            if (null != out)
+                out.close();
+        }
+    }
+
+    public static void write(PointStackKdTree tree, OutputStream stream) throws IOException {
+        PointStack points = tree.getPoints();
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(0);
+        out.writeShort(0);
+        out.writeInt(points.getDimension());
+        out.writeInt(points.size());
+        out.writeLong(fingerprint(points));
+
+        IntBuffer ids = tree.getIds();
+        while (ids.hasRemaining()) {
+            out.writeInt(ids.get());
+        }
+        ByteBuffer splitAxes = tree.getSplitAxes();
+        while (splitAxes.hasRemaining()) {
+            out.writeByte(splitAxes.get());
+        }
+        out.flush();
+    }
+
+    /**
+     * Creates tree over the points backed by the node arrays in the buffer.
+     * Arrays are not copied, so memory-mapped files are paged in only when
+     * the tree is queried
+     *
+     * @throws ParsingException
+     *             - if the buffer does not hold a tree or the tree was built
+     *             over different points
+     */
+    public static PointStackKdTree read(ByteBuffer buffer,
+                                        PointStack points) throws ParsingException {
+        ByteBuffer data = buffer.duplicate();
+        if (data.remaining() < HEADER_LENGTH)
+            throw new ParsingException("Not a KD-tree file. File is too short.");
+
+        int magic = data.getInt();
+        if (magic != MAGIC)
+            throw new ParsingException("Not a KD-tree file. Magic number mismatch.");
+
+        byte version = data.get();
+        if (version != VERSION)
+            throw new ParsingException("Unsupported KD-tree file version [" + version + "]");
+
+        // reserved
+        data.get();
+        data.getShort();
+
+        int dimension = data.getInt();
+        int count = data.getInt();
+        long fingerprint = data.getLong();
+        if (dimension != points.getDimension()
+            || count != points.size()
+            || fingerprint != fingerprint(points))
+            throw new ParsingException("KD-tree file was built over different image stack.");
+
+        if (data.remaining() < count * 5L)
+            throw new ParsingException("KD-tree file is truncated. Expected "
+                                       + count
+                                       + " nodes.");
+
+        ByteBuffer idBytes = data.slice();
+        idBytes.limit(count * 4);
+        data.position(data.position() + count * 4);
+        ByteBuffer splitAxes = data.slice();
+        splitAxes.limit(count);
+
+        return new PointStackKdTree(points, idBytes.asIntBuffer(), splitAxes);
+    }
+
+    /**
+     * Hash of single precision coordinates of all the points
+     */
+    static long fingerprint(PointStack points) {
+        long hash = 1;
+        for (int id = 0; id < points.size(); id++) {
+            for (int axis = 0; axis < points.getDimension(); axis++) {
+                hash = 31 * hash + Float.floatToIntBits((float) points.getCoordinate(id, axis));
+            }
+        }
+        return hash;
+    }
+
+    private KdTreeFile() {
+        // deny object creation
+    }
+}
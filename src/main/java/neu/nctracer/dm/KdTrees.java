@@ -8,6 +8,7 @@ import java.util.Map;
 import neu.nctracer.conf.cli.ConfigurationParams;
 import neu.nctracer.data.DataObject;
 import neu.nctracer.data.ImageData;
+import neu.nctracer.data.PointStack;
 import neu.nctracer.utils.DataTransformer;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
@@ -20,14 +21,58 @@ import weka.core.neighboursearch.KDTree;
  * Guarantees logarithmic time lookup to locate neighbors. Internally uses
  * KDTree implementation of Weka libarary.<br>
  * 
+ * Points of a {@link PointStack} are indexed using {@link PointStackKdTree}
+ * which works on primitive coordinates and point ids. Like Weka tree, it
+ * picks neighbors by distance normalized by the range of every axis.<br>
+ * 
+ * Safe for concurrent queries. Weka tree keeps search state in the tree
+ * itself, thus every querying thread builds its own tree over a copy of the
+ * indexed points. Queries on point stacks share one tree and run using
+ * scratch arrays held per thread.
  * 
  * @author Ankur Shanbhag
  *
  */
 public class KdTrees implements NearestNeighbors {
 
-    private ArrayList<Attribute> dimensionalAttributes = new ArrayList<>();
-    private KDTree kdTree = new KDTree();
+    // fields are replaced, never modified, when index is set up again
+    private volatile ArrayList<Attribute> dimensionalAttributes = new ArrayList<>();
+    private volatile Instances targetInstances = null;
+    // Weka tree of every querying thread, along with the points it indexes
+    private final ThreadLocal<ThreadTree> threadTrees = new ThreadLocal<>();
+
+    // set only when searching points of a stack
+    private volatile PointStackKdTree stackTree = null;
+
+    // scratch arrays used by queries returning data objects
+    private static final ThreadLocal<NeighborScratch> scratch = new ThreadLocal<NeighborScratch>() {
+        @Override
+        protected NeighborScratch initialValue() {
+            return new NeighborScratch();
+        }
+    };
+
+    private static class ThreadTree {
+        private final Instances instances;
+        private final KDTree tree;
+
+        ThreadTree(Instances instances, KDTree tree) {
+            this.instances = instances;
+            this.tree = tree;
+        }
+    }
+
+    private static class NeighborScratch {
+        private int[] neighborIds = new int[0];
+        private double[] distances = new double[0];
+
+        void ensureCapacity(int K) {
+            if (neighborIds.length < K) {
+                neighborIds = new int[K];
+                distances = new double[K];
+            }
+        }
+    }
 
     @Override
     public void setup(List<DataObject> target, ConfigurationParams params) {
@@ -35,31 +80,86 @@ public class KdTrees implements NearestNeighbors {
         if (null == target || target.isEmpty())
             throw new IllegalArgumentException("No datapoints found to contruct KDTree.");
 
+        // build new index and publish it once complete
+        ArrayList<Attribute> attributes = new ArrayList<>();
+
         int numAttributes = target.get(0).getDimension();
         for (int i = 0; i < numAttributes; i++) {
-            dimensionalAttributes.add(new Attribute(String.valueOf(i), i));
+            attributes.add(new Attribute(String.valueOf(i), i));
         }
 
-        Instances targetTrain = new Instances("target", dimensionalAttributes, target.size());
+        Instances targetTrain = new Instances("target", attributes, target.size());
         for (DataObject obj : target) {
             Instance instance = new DenseInstance(obj.getDimension());
             for (int i = 0; i < obj.getDimension(); i++) {
-                instance.setValue(dimensionalAttributes.get(i), obj.getFeatures()[i]);
+                instance.setValue(attributes.get(i), obj.getFeatures()[i]);
             }
 
             targetTrain.add(instance);
         }
 
+        // tree of the calling thread is built right away, so that errors
+        // surface during setup
+        threadTrees.set(new ThreadTree(targetTrain, buildTree(targetTrain)));
+
+        this.dimensionalAttributes = attributes;
+        this.targetInstances = targetTrain;
+        this.stackTree = null;
+    }
+
+    /**
+     * Returns Weka tree of the calling thread over the given points, built on
+     * first query of the thread
+     */
+    private KDTree getThreadTree(Instances instances) {
+        ThreadTree threadTree = threadTrees.get();
+        if (null == threadTree || threadTree.instances != instances) {
+            threadTree = new ThreadTree(instances, buildTree(new Instances(instances)));
+            threadTrees.set(threadTree);
+        }
+        return threadTree.tree;
+    }
+
+    private static KDTree buildTree(Instances instances) {
+        KDTree tree = new KDTree();
         try {
             // construct KD-Tree
-            kdTree.setInstances(targetTrain);
+            tree.setInstances(instances);
         } catch (Exception e) {
             throw new RuntimeException("Error while constructing KD-Tree.", e);
         }
+        return tree;
+    }
+
+    @Override
+    public void setup(PointStack target, ConfigurationParams params) {
+        if (null == target || target.size() == 0)
+            throw new IllegalArgumentException("No datapoints found to contruct KDTree.");
+
+        // tree is shared with other instances set up for same stack
+        this.stackTree = PointStackRegistry.getKdTree(target);
+    }
+
+    @Override
+    public int findNeighbors(double[] point, int K, int[] neighborIds, double[] distances) {
+        PointStackKdTree tree = this.stackTree;
+        if (null == tree)
+            throw new IllegalStateException("KD-Tree is not set up for point stack.");
+        return tree.findNormalizedNeighbors(point, K, neighborIds, distances);
     }
 
     @Override
     public Map<DataObject, Double> findNeighbors(DataObject obj, int K) {
+        PointStackKdTree tree = this.stackTree;
+        if (null != tree)
+            return findStackNeighbors(tree, obj, K);
+
+        ArrayList<Attribute> dimensionalAttributes = this.dimensionalAttributes;
+        Instances targetInstances = this.targetInstances;
+        if (null == targetInstances)
+            throw new IllegalStateException("KD-Tree is not set up.");
+        KDTree kdTree = getThreadTree(targetInstances);
+
         Instances predict = new Instances("source", dimensionalAttributes, 1);
         Instance instance = new DenseInstance(obj.getDimension());
         for (int i = 0; i < obj.getDimension(); i++) {
@@ -87,5 +187,20 @@ public class KdTrees implements NearestNeighbors {
         }
         return map;
     }
-}
 
+    private Map<DataObject, Double> findStackNeighbors(PointStackKdTree tree, DataObject obj, int K) {
+        NeighborScratch neighbors = scratch.get();
+        neighbors.ensureCapacity(K);
+        int count = tree.findNormalizedNeighbors(obj.getFeatures(),
+                                                 K,
+                                                 neighbors.neighborIds,
+                                                 neighbors.distances);
+
+        Map<DataObject, Double> map = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            map.put(tree.getPoints().getDataObject(neighbors.neighborIds[i]),
+                    neighbors.distances[i]);
+        }
+        return map;
+    }
+}
@@ -6,6 +6,7 @@ import neu.nctracer.conf.cli.ConfigurationParams;
 import neu.nctracer.data.DataObject;
 import neu.nctracer.data.DataTransformation;
 import neu.nctracer.data.Match;
+import neu.nctracer.data.PointStack;
 
 /**
  * Interface to be implemented by all the classes which apply specified
@@ -21,4 +22,23 @@ public interface MatchCalculator {
     <T> Match findMatch(List<DataObject> source,
                         List<DataObject> target,
                         DataTransformation<T> transform);
+
+    /**
+     * Same as {@link #findMatch(List, List, DataTransformation)} for points
+     * held in stacks. Correspondences hold views of the stack points
+     */
+    <T> Match findMatch(PointStack source, PointStack target, DataTransformation<T> transform);
+
+    /**
+     * Sets score the caller is interested in. Calculator may abandon a
+     * transformation as soon as it is sure the match cannot reach this score
+     * and return a match without correspondences. Calculators not supporting
+     * early abandonment can ignore it
+     */
+    void setMinimumScore(double minimumScore);
+
+    /**
+     * Returns work done by this calculator so far
+     */
+    MatchStatistics getStatistics();
 }
@@ -0,0 +1,54 @@
+package neu.nctracer.dm;
+
+/**
+ * Work done by a {@link MatchCalculator} since it was created. Used for
+ * instrumentation of the jobs.<br>
+ *
+ * Not thread safe. Every calculator instance keeps its own statistics.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class MatchStatistics {
+
+    private long transformationsEvaluated = 0;
+    private long transformationsAbandoned = 0;
+    private long neighborQueries = 0;
+    private long candidatesPushed = 0;
+
+    public void transformationEvaluated() {
+        transformationsEvaluated++;
+    }
+
+    public void transformationAbandoned() {
+        transformationsAbandoned++;
+    }
+
+    public void neighborQueried(int numCandidates) {
+        neighborQueries++;
+        candidatesPushed += numCandidates;
+    }
+
+    public long getTransformationsEvaluated() {
+        return transformationsEvaluated;
+    }
+
+    /**
+     * Transformations abandoned before completing neighbor search (see
+     * {@link MatchCalculator#setMinimumScore(double)})
+     */
+    public long getTransformationsAbandoned() {
+        return transformationsAbandoned;
+    }
+
+    public long getNeighborQueries() {
+        return neighborQueries;
+    }
+
+    /**
+     * Candidate source-target pairs considered for greedy matching
+     */
+    public long getCandidatesPushed() {
+        return candidatesPushed;
+    }
+}
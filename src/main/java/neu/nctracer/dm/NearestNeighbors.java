@@ -5,10 +5,19 @@ import java.util.Map;
 
 import neu.nctracer.conf.cli.ConfigurationParams;
 import neu.nctracer.data.DataObject;
+import neu.nctracer.data.PointStack;
 
 /**
  * Defines type for all nearest neighbor algorithm to find matching points
- * between source and target
+ * between source and target<br>
+ * 
+ * Thread safety contract - <tt>setup</tt> builds the index. Once built, index
+ * is not modified by queries and any number of threads may call
+ * <tt>findNeighbors</tt> concurrently. Scratch space needed by a query is
+ * either passed in by the caller or kept per thread. Calling <tt>setup</tt>
+ * again replaces the index and must not race with queries relying on the old
+ * one. Index must be handed to other threads safely (e.g. through a
+ * concurrent collection or an executor).
  * 
  * @author Ankur Shanbhag
  *
@@ -17,6 +26,22 @@ public interface NearestNeighbors {
 
     void setup(List<DataObject> dataObjects, ConfigurationParams params);
 
+    /**
+     * Sets up the algorithm to search points of the stack. Neighbors returned
+     * by {@link #findNeighbors(DataObject, int)} are views of the stack points
+     */
+    void setup(PointStack points, ConfigurationParams params);
+
     Map<DataObject, Double> findNeighbors(DataObject object, final int K);
+
+    /**
+     * Finds at most K neighbors of the given coordinates among the points of
+     * the stack passed to {@link #setup(PointStack, ConfigurationParams)}.
+     * Point ids and distances are written to the given arrays ordered by
+     * increasing distance
+     *
+     * @return number of neighbors found
+     */
+    int findNeighbors(double[] point, final int K, int[] neighborIds, double[] distances);
 }
 
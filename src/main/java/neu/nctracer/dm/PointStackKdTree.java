@@ -0,0 +1,344 @@
+package neu.nctracer.dm;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import neu.nctracer.data.PointStack;
+
+/**
+ * KD-tree over the points of a {@link PointStack} stored in primitive arrays.
+ * Tree is implicit - point ids are permuted such that the median of every
+ * range is the node splitting the range, so no node objects are created.<br>
+ *
+ * Queries do not modify the tree and use only the arrays passed by the
+ * caller, thus a built tree can be queried by multiple threads.<br>
+ *
+ * Node arrays are held in buffers so that a tree persisted with
+ * {@link KdTreeFile} can be used directly from a memory-mapped file.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class PointStackKdTree {
+
+    private final PointStack points;
+
+    // point ids arranged as implicit tree. Node of range [lo, hi) is at the
+    // middle of the range
+    private final IntBuffer ids;
+    // split axis of the node at same position in ids
+    private final ByteBuffer splitAxes;
+    // inverse of the range of stack coordinates along every axis, 0 for axes
+    // with a single value
+    private final double[] rangeScales;
+
+    public PointStackKdTree(PointStack points) {
+        this.points = points;
+
+        int[] idArray = new int[points.size()];
+        byte[] axisArray = new byte[points.size()];
+        for (int i = 0; i < idArray.length; i++) {
+            idArray[i] = i;
+        }
+        new Builder(points, idArray, axisArray).build(0, idArray.length);
+
+        this.ids = IntBuffer.wrap(idArray);
+        this.splitAxes = ByteBuffer.wrap(axisArray);
+        this.rangeScales = computeRangeScales(points);
+    }
+
+    /**
+     * Tree over already arranged node arrays (see {@link KdTreeFile})
+     */
+    PointStackKdTree(PointStack points, IntBuffer ids, ByteBuffer splitAxes) {
+        if (ids.remaining() != points.size() || splitAxes.remaining() != points.size())
+            throw new IllegalArgumentException("Tree has "
+                                               + ids.remaining()
+                                               + " nodes but the stack has "
+                                               + points.size()
+                                               + " points.");
+        this.points = points;
+        this.ids = ids.slice();
+        this.splitAxes = splitAxes.slice();
+        this.rangeScales = computeRangeScales(points);
+    }
+
+    private static double[] computeRangeScales(PointStack points) {
+        double[] scales = new double[points.getDimension()];
+        for (int axis = 0; axis < scales.length; axis++) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int id = 0; id < points.size(); id++) {
+                double value = points.getCoordinate(id, axis);
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            scales[axis] = (max > min) ? 1.0 / (max - min) : 0.0;
+        }
+        return scales;
+    }
+
+    public PointStack getPoints() {
+        return points;
+    }
+
+    IntBuffer getIds() {
+        return ids.duplicate();
+    }
+
+    ByteBuffer getSplitAxes() {
+        return splitAxes.duplicate();
+    }
+
+    /**
+     * Finds at most <tt>k</tt> nearest points within <tt>maxDistance</tt> of
+     * the given coordinates. Ids and euclidean distances of the neighbors are
+     * written to the given arrays ordered by increasing distance
+     *
+     * @return number of neighbors found
+     */
+    public int findNeighbors(double[] point,
+                             int k,
+                             double maxDistance,
+                             int[] neighborIds,
+                             double[] neighborDistances) {
+        if (k < 1 || ids.capacity() == 0)
+            return 0;
+
+        // distances are kept squared while searching
+        double maxDistanceSquared = (maxDistance == Double.MAX_VALUE) ? Double.MAX_VALUE
+                                                                      : maxDistance * maxDistance;
+        int count = search(0,
+                           ids.capacity(),
+                           point,
+                           null,
+                           k,
+                           maxDistanceSquared,
+                           neighborIds,
+                           neighborDistances,
+                           0);
+
+        for (int i = 0; i < count; i++) {
+            neighborDistances[i] = Math.sqrt(neighborDistances[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Finds at most <tt>k</tt> nearest points of the given coordinates, where
+     * difference along every axis is divided by the range of the stack
+     * coordinates along the axis. Picks same neighbors as Weka KDTree with
+     * its default normalized EuclideanDistance, which is what stacks with
+     * differently spread axes (e.g. narrow z) were originally matched with.
+     * Euclidean distances of the neighbors are written to the arrays ordered
+     * by increasing distance
+     *
+     * @return number of neighbors found
+     */
+    public int findNormalizedNeighbors(double[] point,
+                                       int k,
+                                       int[] neighborIds,
+                                       double[] neighborDistances) {
+        if (k < 1 || ids.capacity() == 0)
+            return 0;
+
+        int count = search(0,
+                           ids.capacity(),
+                           point,
+                           rangeScales,
+                           k,
+                           Double.MAX_VALUE,
+                           neighborIds,
+                           neighborDistances,
+                           0);
+
+        // report plain euclidean distances, same as the Weka based search
+        for (int i = 0; i < count; i++) {
+            double distance = Math.sqrt(points.distanceSquared(neighborIds[i], point));
+            int id = neighborIds[i];
+            int position = i;
+            while (position > 0 && neighborDistances[position - 1] > distance) {
+                neighborIds[position] = neighborIds[position - 1];
+                neighborDistances[position] = neighborDistances[position - 1];
+                position--;
+            }
+            neighborIds[position] = id;
+            neighborDistances[position] = distance;
+        }
+        return count;
+    }
+
+    /**
+     * Searches the subtree of range <tt>[lo, hi)</tt>. Differences along
+     * every axis are multiplied by <tt>scales</tt> unless it is null
+     */
+    private int search(int lo,
+                       int hi,
+                       double[] point,
+                       double[] scales,
+                       int k,
+                       double maxDistanceSquared,
+                       int[] neighborIds,
+                       double[] neighborDistances,
+                       int count) {
+        if (lo >= hi)
+            return count;
+
+        int mid = (lo + hi) >>> 1;
+        int id = ids.get(mid);
+        double distance = (null == scales) ? points.distanceSquared(id, point)
+                                           : scaledDistanceSquared(id, point, scales);
+        if (distance <= maxDistanceSquared)
+            count = insert(id, distance, count, k, neighborIds, neighborDistances);
+
+        int axis = splitAxes.get(mid);
+        double diff = point[axis] - points.getCoordinate(id, axis);
+        if (null != scales)
+            diff *= scales[axis];
+
+        // search the side containing the point first
+        int nearLo = (diff < 0) ? lo : mid + 1;
+        int nearHi = (diff < 0) ? mid : hi;
+        int farLo = (diff < 0) ? mid + 1 : lo;
+        int farHi = (diff < 0) ? hi : mid;
+
+        count = search(nearLo,
+                       nearHi,
+                       point,
+                       scales,
+                       k,
+                       maxDistanceSquared,
+                       neighborIds,
+                       neighborDistances,
+                       count);
+
+        double bound = (count < k) ? maxDistanceSquared
+                                   : Math.min(maxDistanceSquared, neighborDistances[count - 1]);
+        if (diff * diff <= bound)
+            count = search(farLo,
+                           farHi,
+                           point,
+                           scales,
+                           k,
+                           maxDistanceSquared,
+                           neighborIds,
+                           neighborDistances,
+                           count);
+        return count;
+    }
+
+    private double scaledDistanceSquared(int id, double[] point, double[] scales) {
+        double distance = 0.0;
+        for (int axis = 0; axis < scales.length; axis++) {
+            double diff = (point[axis] - points.getCoordinate(id, axis)) * scales[axis];
+            distance += diff * diff;
+        }
+        return distance;
+    }
+
+    /**
+     * Inserts neighbor in the arrays sorted by increasing distance, keeping at
+     * most <tt>k</tt> neighbors
+     *
+     * @return number of neighbors in the arrays after insertion
+     */
+    static int insert(int id,
+                      double distance,
+                      int count,
+                      int k,
+                      int[] neighborIds,
+                      double[] neighborDistances) {
+        if (count == k && distance >= neighborDistances[count - 1])
+            return count;
+
+        int position = (count == k) ? count - 1 : count++;
+        while (position > 0 && neighborDistances[position - 1] > distance) {
+            neighborIds[position] = neighborIds[position - 1];
+            neighborDistances[position] = neighborDistances[position - 1];
+            position--;
+        }
+        neighborIds[position] = id;
+        neighborDistances[position] = distance;
+        return count;
+    }
+
+    /**
+     * Arranges the node arrays while building the tree
+     */
+    private static class Builder {
+        private final PointStack points;
+        private final int[] ids;
+        private final byte[] splitAxes;
+
+        Builder(PointStack points, int[] ids, byte[] splitAxes) {
+            this.points = points;
+            this.ids = ids;
+            this.splitAxes = splitAxes;
+        }
+
+        void build(int lo, int hi) {
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                int axis = widestAxis(lo, hi);
+                select(lo, hi - 1, mid, axis);
+                splitAxes[mid] = (byte) axis;
+
+                build(lo, mid);
+                lo = mid + 1;
+            }
+        }
+
+        /**
+         * Axis along which points in the range are spread the most
+         */
+        private int widestAxis(int lo, int hi) {
+            int widest = 0;
+            double maxSpread = -1;
+            for (int axis = 0; axis < points.getDimension(); axis++) {
+                double min = Double.MAX_VALUE;
+                double max = -Double.MAX_VALUE;
+                for (int i = lo; i < hi; i++) {
+                    double value = points.getCoordinate(ids[i], axis);
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                if (max - min > maxSpread) {
+                    maxSpread = max - min;
+                    widest = axis;
+                }
+            }
+            return widest;
+        }
+
+        /**
+         * Rearranges ids in <tt>[left, right]</tt> such that id at position
+         * <tt>n</tt> has median coordinate along the axis, with smaller values
+         * before it and larger values after it
+         */
+        private void select(int left, int right, int n, int axis) {
+            while (right > left) {
+                double pivot = points.getCoordinate(ids[(left + right) >>> 1], axis);
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (points.getCoordinate(ids[i], axis) < pivot)
+                        i++;
+                    while (points.getCoordinate(ids[j], axis) > pivot)
+                        j--;
+                    if (i <= j) {
+                        int temp = ids[i];
+                        ids[i++] = ids[j];
+                        ids[j--] = temp;
+                    }
+                }
+
+                if (n <= j)
+                    right = j;
+                else if (n >= i)
+                    left = i;
+                else
+                    return;
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package neu.nctracer.dm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+
+import neu.nctracer.data.PointStack;
+import neu.nctracer.exception.HdfsException;
+import neu.nctracer.exception.ParsingException;
+import neu.nctracer.log.LogManager;
+import neu.nctracer.utils.BinaryStackFile;
+import neu.nctracer.utils.DataParser;
+
+/**
+ * JVM-wide registry of image stacks read from local files. Every file is read
+ * only once, no matter how many mappers (e.g. threads of a
+ * <tt>MultithreadedMapper</tt>) ask for it. Stacks are immutable, thus the
+ * same instance is handed to all the callers.<br>
+ *
+ * Registry counts references to every stack. Stack is dropped when the last
+ * reference is released. KD-tree over a registered stack is built once and
+ * shared the same way (see {@link #getKdTree(PointStack)}). If the job ships
+ * a pre-built tree for the stack file (see {@link KdTreeFile}), the tree is
+ * memory-mapped instead of being built.<br>
+ *
+ * Time spent loading stacks and trees is accumulated till drained by
+ * {@link #drainLoadTimes()}, so that every load is reported exactly once
+ * however many mappers share it.<br>
+ *
+ * Thread safe.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public final class PointStackRegistry {
+
+    // guarded by itself
+    private static final Map<String, Entry> entries = new HashMap<>();
+
+    private static class Entry {
+        // written while holding the entry lock
+        private volatile PointStack stack = null;
+        // guarded by the entry
+        private PointStackKdTree kdTree = null;
+        // local path of pre-built tree, if any. Set before the stack
+        private volatile String kdTreeFilePath = null;
+
+        // guarded by entries map
+        private int references = 0;
+    }
+
+    // nanoseconds spent loading stacks and trees, since the last drain
+    private static final AtomicLong readNanos = new AtomicLong();
+    private static final AtomicLong parseNanos = new AtomicLong();
+    private static final AtomicLong indexNanos = new AtomicLong();
+
+    /**
+     * Time spent by the registry loading stacks and building (or mapping)
+     * KD-trees
+     */
+    public static final class LoadTimes {
+        private final long readNanos;
+        private final long parseNanos;
+        private final long indexNanos;
+
+        private LoadTimes(long readNanos, long parseNanos, long indexNanos) {
+            this.readNanos = readNanos;
+            this.parseNanos = parseNanos;
+            this.indexNanos = indexNanos;
+        }
+
+        /**
+         * Time spent opening and memory-mapping the files. Text files are
+         * read while being parsed, thus their reading counts as parsing
+         */
+        public long getReadNanos() {
+            return readNanos;
+        }
+
+        public long getParseNanos() {
+            return parseNanos;
+        }
+
+        public long getIndexNanos() {
+            return indexNanos;
+        }
+    }
+
+    /**
+     * Returns load times accumulated since the previous call and resets them
+     */
+    public static LoadTimes drainLoadTimes() {
+        return new LoadTimes(readNanos.getAndSet(0),
+                             parseNanos.getAndSet(0),
+                             indexNanos.getAndSet(0));
+    }
+
+    /**
+     * Returns stack read from local file, reading the file only if no other
+     * caller holds a reference to it. Every call must be paired with
+     * {@link #release(PointStack)}
+     */
+    public static PointStack acquire(Configuration conf,
+                                     String localFilePath,
+                                     boolean singlePrecision) throws ParsingException,
+                                                              HdfsException {
+        String key = new File(localFilePath).getAbsolutePath() + (singlePrecision ? "#float" : "#double");
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (null == entry) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+            entry.references++;
+        }
+
+        // callers asking for same file wait till the first one reads it
+        boolean loaded = false;
+        try {
+            synchronized (entry) {
+                if (null == entry.stack) {
+                    entry.kdTreeFilePath = conf.get(KdTreeFile.indexFileKey(new File(localFilePath).getName()));
+                    entry.stack = load(conf, localFilePath, singlePrecision);
+                }
+                loaded = true;
+                return entry.stack;
+            }
+        } finally {
+            if (!loaded)
+                release(key, entry);
+        }
+    }
+
+    private static PointStack load(Configuration conf,
+                                   String localFilePath,
+                                   boolean singlePrecision) throws ParsingException,
+                                                            HdfsException {
+        long start = System.nanoTime();
+        ByteBuffer binaryStack;
+        try {
+            binaryStack = BinaryStackFile.isBinaryStack(localFilePath) ? BinaryStackFile.map(localFilePath)
+                                                                       : null;
+        } catch (IOException e) {
+            throw new HdfsException("Error while reading image stack file [" + localFilePath + "]",
+                                    e);
+        }
+        long read = System.nanoTime();
+
+        PointStack stack = (null != binaryStack) ? BinaryStackFile.readPointStack(binaryStack,
+                                                                                 singlePrecision)
+                                                 : DataParser.parseStack(conf,
+                                                                         localFilePath,
+                                                                         false,
+                                                                         singlePrecision);
+        readNanos.addAndGet(read - start);
+        parseNanos.addAndGet(System.nanoTime() - read);
+        return stack;
+    }
+
+    /**
+     * Releases reference to the stack acquired using
+     * {@link #acquire(Configuration, String, boolean)}. Does nothing if the
+     * stack is not registered
+     */
+    public static void release(PointStack stack) {
+        synchronized (entries) {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next().getValue();
+                if (entry.stack == stack) {
+                    if (--entry.references == 0)
+                        iterator.remove();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void release(String key, Entry entry) {
+        synchronized (entries) {
+            if (--entry.references == 0)
+                entries.remove(key);
+        }
+    }
+
+    /**
+     * Returns KD-tree over the points of the stack. Tree of a registered stack
+     * is built once and shared by all the callers. A new tree is built for
+     * stacks which are not registered
+     */
+    public static PointStackKdTree getKdTree(PointStack stack) {
+        Entry entry = null;
+        synchronized (entries) {
+            for (Entry registered : entries.values()) {
+                if (registered.stack == stack) {
+                    entry = registered;
+                    break;
+                }
+            }
+        }
+
+        if (null == entry)
+            return loadKdTree(null, stack);
+
+        synchronized (entry) {
+            if (null == entry.kdTree)
+                entry.kdTree = loadKdTree(entry.kdTreeFilePath, stack);
+            return entry.kdTree;
+        }
+    }
+
+    private static PointStackKdTree loadKdTree(String kdTreeFilePath, PointStack stack) {
+        long start = System.nanoTime();
+        try {
+            return mapOrBuildKdTree(kdTreeFilePath, stack);
+        } finally {
+            indexNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Maps pre-built tree from local file, or builds a new one if there is no
+     * usable file
+     */
+    private static PointStackKdTree mapOrBuildKdTree(String kdTreeFilePath, PointStack stack) {
+        if (null == kdTreeFilePath || !new File(kdTreeFilePath).isFile())
+            return new PointStackKdTree(stack);
+
+        try {
+            return KdTreeFile.read(BinaryStackFile.map(kdTreeFilePath), stack);
+        } catch (IOException | ParsingException e) {
+            LogManager.getLogManager()
+                      .getDefaultLogger()
+                      .warn("Cannot use pre-built KD-tree ["
+                            + kdTreeFilePath
+                            + "]. Building a new one. "
+                            + e.getMessage());
+            return new PointStackKdTree(stack);
+        }
+    }
+
+    private PointStackRegistry() {
+        // deny object creation
+    }
+}
@@ -0,0 +1,247 @@
+package neu.nctracer.dm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import neu.nctracer.data.DataCorrespondence;
+import neu.nctracer.data.Match;
+
+/**
+ * Keeps track of <tt>K</tt> best matches offered to it. Matches are held in a
+ * bounded min-heap backed by arrays, so worst of the kept matches can be
+ * replaced in logarithmic time. Heap slots hold the {@link Match} itself
+ * rather than only its score, as correspondences of a kept match are emitted
+ * as is and its translation is needed for suppression. Translations are
+ * copied to a primitive array once, so suppression checks do not walk the
+ * correspondences.<br>
+ *
+ * Applies non-maximum suppression - a match whose translation lies within
+ * suppression radius of an already kept match is treated as a duplicate. It
+ * is dropped if any of its kept duplicates is better, otherwise it replaces
+ * all of them.<br>
+ *
+ * Not thread safe.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class TopKMatches {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // number of best matches to be kept
+    public static final String PARAM_TOP_K = "match.top.k";
+    // translations closer than this distance are considered duplicates
+    public static final String PARAM_SUPPRESSION_RADIUS = "match.suppression.radius";
+
+    private final int k;
+    private final double suppressionRadius;
+
+    // min-heap ordered by match quality. Slot 0 holds the worst kept match
+    private final Match[] matches;
+    private final double[][] translations;
+    private int size = 0;
+
+    public TopKMatches(int k, double suppressionRadius) {
+        if (k < 1)
+            throw new IllegalArgumentException("Number of matches to be kept must be positive. Found ["
+                                               + k
+                                               + "]");
+        this.k = k;
+        this.suppressionRadius = suppressionRadius;
+        this.matches = new Match[k];
+        this.translations = new double[k][];
+    }
+
+    /**
+     * Returns true if the match is good enough to be kept, ignoring
+     * suppression
+     */
+    public boolean canAccept(Match match) {
+        return size < k || isBetter(match, matches[0]);
+    }
+
+    /**
+     * Offers match to be kept
+     *
+     * @return true if the match was kept
+     */
+    public boolean offer(Match match) {
+        if (null == match.getCorrespondences() || match.getCorrespondences().isEmpty())
+            return false;
+
+        if (!canAccept(match))
+            return false;
+
+        double[] translation = computeTranslation(match);
+
+        for (int i = 0; i < size; i++) {
+            if (isDuplicate(i, translation) && !isBetter(match, matches[i]))
+                return false;
+        }
+
+        // replace all the duplicates with this better match
+        if (!removeDuplicates(translation) && size == k) {
+            // evict the worst match
+            removeAt(0);
+        }
+
+        matches[size] = match;
+        translations[size] = translation;
+        siftUp(size++);
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Score a match must reach to be kept. Negative infinity until
+     * <tt>K</tt> matches are kept
+     */
+    public double getThreshold() {
+        return (size < k) ? Double.NEGATIVE_INFINITY : matches[0].getScore();
+    }
+
+    /**
+     * Threshold can bound matches of other instances only without
+     * suppression. Otherwise merging may suppress several of the kept
+     * matches in favour of one nearby match, and a match below the threshold
+     * can still make it to the merged top <tt>K</tt>
+     */
+    public boolean isThresholdShareable() {
+        return suppressionRadius <= 0;
+    }
+
+    /**
+     * Returns kept matches ranked from best to worst
+     */
+    public List<Match> getRankedMatches() {
+        List<Match> ranked = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ranked.add(matches[i]);
+        }
+
+        // natural ordering of matches is by descending score
+        Collections.sort(ranked);
+        return ranked;
+    }
+
+    private boolean isDuplicate(int index, double[] translation) {
+        double distance = 0.0;
+        double[] other = translations[index];
+        for (int j = 0; j < translation.length; j++) {
+            double diff = translation[j] - other[j];
+            distance += diff * diff;
+        }
+        return Math.sqrt(distance) <= suppressionRadius;
+    }
+
+    /**
+     * Removes kept matches within suppression radius of the translation and
+     * restores the heap
+     *
+     * @return true if any match was removed
+     */
+    private boolean removeDuplicates(double[] translation) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (isDuplicate(i, translation))
+                continue;
+            matches[kept] = matches[i];
+            translations[kept] = translations[i];
+            kept++;
+        }
+        if (kept == size)
+            return false;
+
+        for (int i = kept; i < size; i++) {
+            matches[i] = null;
+            translations[i] = null;
+        }
+        size = kept;
+        for (int i = (size >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        return true;
+    }
+
+    private void removeAt(int index) {
+        size--;
+        if (index != size) {
+            swap(index, size);
+            siftDown(index);
+            siftUp(index);
+        }
+        matches[size] = null;
+        translations[size] = null;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isBetter(matches[parent], matches[index]))
+                return;
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int worst = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+
+            if (left < size && isBetter(matches[worst], matches[left]))
+                worst = left;
+            if (right < size && isBetter(matches[worst], matches[right]))
+                worst = right;
+            if (worst == index)
+                return;
+
+            swap(index, worst);
+            index = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Match match = matches[i];
+        matches[i] = matches[j];
+        matches[j] = match;
+
+        double[] translation = translations[i];
+        translations[i] = translations[j];
+        translations[j] = translation;
+    }
+
+    private static boolean isBetter(Match match, Match other) {
+        // matches are ordered by descending score
+        return match.compareTo(other) < 0;
+    }
+
+    /**
+     * Translation of a match is the average movement of its source points
+     */
+    private static double[] computeTranslation(Match match) {
+        double[] translation = null;
+        for (DataCorrespondence correspondence : match.getCorrespondences()) {
+            double[] source = correspondence.getSource().getFeatures();
+            double[] translatedSource = correspondence.getTranslatedSource().getFeatures();
+            if (null == translation)
+                translation = new double[source.length];
+
+            for (int i = 0; i < source.length; i++) {
+                translation[i] += translatedSource[i] - source[i];
+            }
+        }
+
+        for (int i = 0; i < translation.length; i++) {
+            translation[i] /= match.getCorrespondences().size();
+        }
+        return translation;
+    }
+}
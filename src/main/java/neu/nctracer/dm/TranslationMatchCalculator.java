@@ -1,7 +1,8 @@
 package neu.nctracer.dm;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -14,7 +15,10 @@ import neu.nctracer.conf.cli.ConfigurationParams;
 import neu.nctracer.data.DataCorrespondence;
 import neu.nctracer.data.DataObject;
 import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.ImageData;
+import neu.nctracer.data.PointIdLookup;
 import neu.nctracer.data.Match;
+import neu.nctracer.data.PointStack;
 import neu.nctracer.exception.ReflectionUtilsException;
 import neu.nctracer.utils.ReflectionUtils;
 
@@ -35,11 +39,29 @@ public class TranslationMatchCalculator implements MatchCalculator {
     // determines the class used for determining correspondence
     public static final String PARAM_NEAREST_NEIGHBOR_CLASS = "nearest.neighbor.class";
 
+    // number of nearest target points considered for every source point
+    private static final int NUM_NEIGHBORS = 50;
+
     private NearestNeighbors nearestNeighbors = null;
     private ConfigurationParams params;
 
+    // target points currently indexed by nearest neighbors. Index is built
+    // once and reused till different target is passed
+    private Object indexedTarget = null;
+
     private double alpha;
 
+    // transformations which cannot reach this score are abandoned
+    private double minimumScore = Double.NEGATIVE_INFINITY;
+
+    private final MatchStatistics statistics = new MatchStatistics();
+
+    // errors picked by greedy matching of the last transformation, recorded
+    // only if enabled
+    private boolean recordErrors = false;
+    private double[] errorSequence = new double[64];
+    private int sequenceLength = 0;
+
     /**
      * Registers classes and other parameters to be used by the algorithm.
      * Caller can specify class names for following parameters in the
@@ -58,11 +80,49 @@ public class TranslationMatchCalculator implements MatchCalculator {
 
         this.alpha = Double.parseDouble(params.getParam("correpondence.score.function.alpha",
                                                         "0.5"));
+        // score bound used for early abandonment assumes this range
+        if (alpha < 0 || alpha > 1)
+            throw new IllegalArgumentException("Parameter [correpondence.score.function.alpha] must be between 0 and 1. Found ["
+                                               + alpha
+                                               + "]");
 
         // make a copy so it can be passed on to invoked classes
         this.params = params;
     }
 
+    /**
+     * Abandons neighbor search of a transformation as soon as an upper bound
+     * on its score falls below the minimum score (see
+     * {@link #findMatch(PointStack, PointStack, DataTransformation)})
+     */
+    @Override
+    public void setMinimumScore(double minimumScore) {
+        this.minimumScore = minimumScore;
+    }
+
+    /**
+     * Records errors of all the correspondences greedy matching can pick,
+     * not just the ones kept in the match, so that the transformation can be
+     * scored for any alpha (see {@link ErrorSequence}). Transformations are
+     * never abandoned while recording, as the bound depends on alpha
+     */
+    public void setRecordErrors(boolean recordErrors) {
+        this.recordErrors = recordErrors;
+    }
+
+    /**
+     * Returns errors recorded for the last transformation passed to
+     * {@link #findMatch(PointStack, PointStack, DataTransformation)}
+     */
+    public ErrorSequence getErrorSequence(double[] translation) {
+        return new ErrorSequence(translation, Arrays.copyOf(errorSequence, sequenceLength));
+    }
+
+    @Override
+    public MatchStatistics getStatistics() {
+        return statistics;
+    }
+
     private void instantiateNeareastNeighborClass(String nearestNeighborsClass) {
 
         if (null == nearestNeighborsClass) {
@@ -92,11 +152,15 @@ public class TranslationMatchCalculator implements MatchCalculator {
                                List<DataObject> target,
                                DataTransformation<T> transform) {
 
+        statistics.transformationEvaluated();
         Map<DataObject, DataObject> translatedObjects = translateSourceObjects(source, transform);
 
-        // user might have set configurations for nearest neighbor. Thus pass
-        // the config object to nearest neighbors class
-        this.nearestNeighbors.setup(target, this.params);
+        if (indexedTarget != target) {
+            // user might have set configurations for nearest neighbor. Thus
+            // pass the config object to nearest neighbors class
+            this.nearestNeighbors.setup(target, this.params);
+            indexedTarget = target;
+        }
 
         Queue<DataCorrespondence> minHeap = new PriorityQueue<>();
 
@@ -105,7 +169,8 @@ public class TranslationMatchCalculator implements MatchCalculator {
             DataObject translatedSourceObj = entry.getValue();
 
             Map<DataObject, Double> neighbors = this.nearestNeighbors.findNeighbors(translatedSourceObj,
-                                                                                    50);
+                                                                                    NUM_NEIGHBORS);
+            statistics.neighborQueried(null == neighbors ? 0 : neighbors.size());
             if (null == neighbors || neighbors.isEmpty()) {
                 continue;
             }
@@ -126,11 +191,262 @@ public class TranslationMatchCalculator implements MatchCalculator {
         return match;
     }
 
+    /**
+     * Same as {@link #findMatch(List, List, DataTransformation)}, but works
+     * on point ids and primitive coordinates. Data objects are created only
+     * for the correspondences kept in the match.<br>
+     *
+     * If minimum score is set, the bound of
+     * {@link #computeScoreBound(double[], int, int, int)} is checked a few
+     * times during neighbor search and hopeless transformations are abandoned
+     * with an empty match
+     */
+    public <T> Match findMatch(PointStack source,
+                               PointStack target,
+                               DataTransformation<T> transform) {
+        if (indexedTarget != target) {
+            this.nearestNeighbors.setup(target, this.params);
+            indexedTarget = target;
+        }
+
+        statistics.transformationEvaluated();
+        sequenceLength = 0;
+        double[] translation = transform.getTranslation();
+        double[] translatedPoint = new double[source.getDimension()];
+        int[] neighborIds = new int[NUM_NEIGHBORS];
+        double[] distances = new double[NUM_NEIGHBORS];
+
+        CandidatePairs candidates = new CandidatePairs(source.size() * 4);
+
+        // distance to the nearest neighbor of every searched source point
+        double[] nearestDistances = new double[source.size()];
+        int numNearest = 0;
+        boolean abandonable = minimumScore > Double.NEGATIVE_INFINITY && !recordErrors;
+        int checkInterval = Math.max(64, source.size() / 16);
+
+        for (int sourceId = 0; sourceId < source.size(); sourceId++) {
+            if (abandonable
+                && sourceId % checkInterval == 0
+                && computeScoreBound(nearestDistances,
+                                     numNearest,
+                                     source.size() - sourceId,
+                                     Math.min(source.size(), target.size())) < minimumScore) {
+                statistics.transformationAbandoned();
+                return new Match(Double.MIN_VALUE, new LinkedHashSet<DataCorrespondence>());
+            }
+
+            source.copyPoint(sourceId, translatedPoint);
+            for (int i = 0; i < translatedPoint.length; i++) {
+                translatedPoint[i] += translation[i];
+            }
+
+            int count = this.nearestNeighbors.findNeighbors(translatedPoint,
+                                                            NUM_NEIGHBORS,
+                                                            neighborIds,
+                                                            distances);
+            statistics.neighborQueried(count);
+            for (int i = 0; i < count; i++) {
+                candidates.add(sourceId, neighborIds[i], distances[i]);
+            }
+            if (count > 0)
+                nearestDistances[numNearest++] = distances[0];
+        }
+
+        return generateMatch(candidates, source, target, translation);
+    }
+
+    /**
+     * Upper bound on the score of a match. Greedy matching picks errors in
+     * increasing order and every source point is matched at least as far as
+     * its nearest neighbor. Thus <tt>m</tt>-th correspondence has error of at
+     * least <tt>m</tt>-th smallest nearest neighbor distance, where points
+     * not yet searched are assumed to have distance 0.
+     *
+     * @param nearestDistances
+     *            - nearest neighbor distances of searched points, first
+     *            <tt>numNearest</tt> are used
+     * @param numUnsearched
+     *            - number of source points not yet searched
+     * @param maxCorrespondences
+     *            - maximum number of correspondences in a match
+     */
+    private double computeScoreBound(double[] nearestDistances,
+                                     int numNearest,
+                                     int numUnsearched,
+                                     int maxCorrespondences) {
+        double[] sorted = Arrays.copyOf(nearestDistances, numNearest);
+        Arrays.sort(sorted);
+
+        int maxCount = Math.min(maxCorrespondences, numUnsearched + numNearest);
+        double bound = generateScore(Math.min(maxCount, numUnsearched), 0.0);
+        for (int count = numUnsearched + 1; count <= maxCount; count++) {
+            bound = Math.max(bound, generateScore(count, sorted[count - numUnsearched - 1]));
+        }
+        return bound;
+    }
+
+    /**
+     * Greedily picks pairs with minimum error, same as
+     * {@link #generateMatch(Queue, List, List)}
+     */
+    private Match generateMatch(CandidatePairs candidates,
+                                PointStack source,
+                                PointStack target,
+                                double[] translation) {
+        BitSet usedSource = new BitSet(source.size());
+        BitSet usedTarget = new BitSet(target.size());
+        int unusedSourceCount = source.size();
+        int unusedTargetCount = target.size();
+
+        Set<DataCorrespondence> correspondences = new LinkedHashSet<>();
+        double score = Double.MIN_VALUE;
+        int matchCount = 0;
+        // while recording, greedy matching continues after the match is found
+        boolean matchFound = false;
+
+        candidates.heapify();
+        while (!candidates.isEmpty() && unusedSourceCount > 0 && unusedTargetCount > 0) {
+            int candidate = candidates.poll();
+            int sourceId = candidates.sourceIds[candidate];
+            int targetId = candidates.targetIds[candidate];
+
+            if (usedSource.get(sourceId) || usedTarget.get(targetId))
+                continue;
+
+            usedSource.set(sourceId);
+            usedTarget.set(targetId);
+            unusedSourceCount--;
+            unusedTargetCount--;
+
+            double error = candidates.errors[candidate];
+            if (recordErrors)
+                recordError(error);
+            if (matchFound)
+                continue;
+
+            double currentScore = generateScore(++matchCount, error);
+            if (currentScore < score) {
+                if (!recordErrors)
+                    break;
+                matchFound = true;
+                continue;
+            }
+
+            score = currentScore;
+            double[] translatedFeatures = source.getPoint(sourceId);
+            for (int i = 0; i < translatedFeatures.length; i++) {
+                translatedFeatures[i] += translation[i];
+            }
+            DataObject translatedSource = new ImageData();
+            translatedSource.setFeatures(translatedFeatures);
+
+            correspondences.add(new DataCorrespondence(source.getDataObject(sourceId),
+                                                       translatedSource,
+                                                       target.getDataObject(targetId),
+                                                       error));
+        }
+
+        return new Match(score, correspondences);
+    }
+
+    private void recordError(double error) {
+        if (sequenceLength == errorSequence.length)
+            errorSequence = Arrays.copyOf(errorSequence, sequenceLength * 2);
+        errorSequence[sequenceLength++] = error;
+    }
+
+    /**
+     * Candidate source-target pairs held in parallel primitive arrays along
+     * with a binary min-heap of pair indexes ordered by error
+     */
+    private static class CandidatePairs {
+        private int[] sourceIds;
+        private int[] targetIds;
+        private double[] errors;
+        private int size = 0;
+
+        private int[] heap = null;
+        private int heapSize = 0;
+
+        CandidatePairs(int initialCapacity) {
+            int capacity = Math.max(initialCapacity, 16);
+            sourceIds = new int[capacity];
+            targetIds = new int[capacity];
+            errors = new double[capacity];
+        }
+
+        void add(int sourceId, int targetId, double error) {
+            if (size == errors.length) {
+                sourceIds = Arrays.copyOf(sourceIds, size * 2);
+                targetIds = Arrays.copyOf(targetIds, size * 2);
+                errors = Arrays.copyOf(errors, size * 2);
+            }
+            sourceIds[size] = sourceId;
+            targetIds[size] = targetId;
+            errors[size] = error;
+            size++;
+        }
+
+        void heapify() {
+            heap = new int[size];
+            for (int i = 0; i < size; i++) {
+                heap[i] = i;
+            }
+            heapSize = size;
+            for (int i = (heapSize >>> 1) - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        boolean isEmpty() {
+            return heapSize == 0;
+        }
+
+        /**
+         * Removes and returns index of the pair with minimum error
+         */
+        int poll() {
+            int top = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(0);
+            return top;
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                int smallest = index;
+                int left = 2 * index + 1;
+                int right = left + 1;
+                if (left < heapSize && isLess(heap[left], heap[smallest]))
+                    smallest = left;
+                if (right < heapSize && isLess(heap[right], heap[smallest]))
+                    smallest = right;
+                if (smallest == index)
+                    return;
+
+                int temp = heap[index];
+                heap[index] = heap[smallest];
+                heap[smallest] = temp;
+                index = smallest;
+            }
+        }
+
+        private boolean isLess(int pair1, int pair2) {
+            int compare = Double.compare(errors[pair1], errors[pair2]);
+            // ties are broken by the order in which pairs were found
+            return compare < 0 || (compare == 0 && pair1 < pair2);
+        }
+    }
+
     private Match generateMatch(Queue<DataCorrespondence> minHeap,
                                 List<DataObject> source,
                                 List<DataObject> target) {
-        Set<DataObject> unusedSourceObjects = new HashSet<>(source);
-        Set<DataObject> unusedTargetObjects = new HashSet<>(target);
+        PointIdLookup sourceIds = new PointIdLookup(source);
+        PointIdLookup targetIds = new PointIdLookup(target);
+        BitSet usedSource = new BitSet(sourceIds.capacity());
+        BitSet usedTarget = new BitSet(targetIds.capacity());
+        int unusedSourceCount = source.size();
+        int unusedTargetCount = target.size();
 
         Set<DataCorrespondence> correspondences = new LinkedHashSet<>();
         double score = Double.MIN_VALUE;
@@ -139,23 +455,25 @@ public class TranslationMatchCalculator implements MatchCalculator {
         int matchCount = 0;
 
         // loop until we find all distinct pairs
-        while (!minHeap.isEmpty()
-               && !unusedSourceObjects.isEmpty()
-               && !unusedTargetObjects.isEmpty()) {
+        while (!minHeap.isEmpty() && unusedSourceCount > 0 && unusedTargetCount > 0) {
 
             DataCorrespondence correspondence = minHeap.poll();
 
-            DataObject sourceObj = correspondence.getSource();
-            DataObject targetObj = correspondence.getTarget();
+            int sourceId = sourceIds.idOf(correspondence.getSource());
+            int targetId = targetIds.idOf(correspondence.getTarget());
 
             // use this pair only if source and target points are not
             // already used by other processed pairs
-            if (unusedSourceObjects.contains(sourceObj)
-                && unusedTargetObjects.contains(targetObj)) {
+            if (sourceId != DataObject.NO_ID
+                && targetId != DataObject.NO_ID
+                && !usedSource.get(sourceId)
+                && !usedTarget.get(targetId)) {
 
-                // remove so that following pairs don't use them again
-                unusedSourceObjects.remove(sourceObj);
-                unusedTargetObjects.remove(targetObj);
+                // mark so that following pairs don't use them again
+                usedSource.set(sourceId);
+                usedTarget.set(targetId);
+                unusedSourceCount--;
+                unusedTargetCount--;
 
                 // generate score for this correspondence
                 double currentScore = generateScore(++matchCount, correspondence.getError());
@@ -197,7 +515,7 @@ public class TranslationMatchCalculator implements MatchCalculator {
             translateSourceObjects(List<DataObject> source, DataTransformation<T> transform) {
 
         Map<DataObject, DataObject> translatedObjects = new HashMap<>(source.size());
-        double[] translation = computeTranslation(transform);
+        double[] translation = transform.getTranslation();
         for (DataObject sourceObj : source) {
             DataObject translatedObj = sourceObj.deepClone();
             double[] features = translatedObj.getFeatures();
@@ -209,17 +527,5 @@ public class TranslationMatchCalculator implements MatchCalculator {
         }
         return translatedObjects;
     }
-
-    private <T> double[] computeTranslation(DataTransformation<T> transform) {
-        double[] directionAngles = transform.getAngles();
-        double distance = transform.getDistance();
-        double[] translation = new double[directionAngles.length];
-
-        for (int i = 0; i < translation.length; i++) {
-            translation[i] = distance * Math.cos(Math.toRadians(directionAngles[i]));
-        }
-
-        return translation;
-    }
 }
 
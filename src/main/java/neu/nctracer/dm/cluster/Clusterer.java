@@ -5,6 +5,7 @@ import java.util.List;
 
 import neu.nctracer.conf.cli.ConfigurationParams;
 import neu.nctracer.data.DataObject;
+import neu.nctracer.data.PointStack;
 
 /**
  * Contract for all classes implementing clustering algorithms
@@ -25,4 +26,10 @@ public interface Clusterer {
     void setup(ConfigurationParams params) throws IllegalArgumentException;
 
     List<DataCluster> createClusters(Collection<DataObject> dataPoints);
+
+    /**
+     * Clusters all the points of the stack. Clusters hold views of the stack
+     * points
+     */
+    List<DataCluster> createClusters(PointStack points);
 }
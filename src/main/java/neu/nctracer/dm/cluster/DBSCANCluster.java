@@ -9,6 +9,7 @@ import org.apache.commons.math3.ml.clustering.DBSCANClusterer;
 
 import neu.nctracer.conf.cli.ConfigurationParams;
 import neu.nctracer.data.DataObject;
+import neu.nctracer.data.PointStack;
 
 /**
  * Implementation for DBSCAN algorithm for clustering the data points with
@@ -75,4 +76,10 @@ public class DBSCANCluster implements Clusterer {
 
         return clusters;
     }
+
+    @Override
+    public List<DataCluster> createClusters(PointStack points) {
+        // DBSCAN visits every point many times. Create views only once
+        return createClusters(new ArrayList<>(points.asList()));
+    }
 }
@@ -0,0 +1,171 @@
+package neu.nctracer.mr;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.WritableUtils;
+
+import neu.nctracer.dm.ErrorSequence;
+
+/**
+ * Rescores translations for many values of
+ * <tt>correpondence.score.function.alpha</tt> without running the job again.
+ * Point-to-point map tasks record error sequences of their best translations
+ * (see {@link ErrorSequence}) if {@link #PARAM_RECORD_DIR} is set, and this
+ * tool finds best translation for every alpha from the recorded
+ * sequences.<br>
+ *
+ * Results are limited to what was recorded. Every mapper thread keeps only
+ * its best {@link #PARAM_RECORD_TOP} sequences, ranked by score at the alpha
+ * of the run, so a translation which scores best at a distant alpha but was
+ * not among them is never seen. Sequences of candidate ranges skipped by a
+ * resumed checkpoint are not recorded either. Thus the best translation for
+ * an alpha far from the run's alpha, or of a resumed run, may be missed.<br>
+ *
+ * Every mapper thread writes its sequences to its own file in the directory:
+ * <br>
+ * <tt>number of sequences (vint) | sequences</tt>
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public final class AlphaSweep {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // directory error sequences are recorded to, recording is disabled if
+    // not set
+    public static final String PARAM_RECORD_DIR = "record.errors.dir";
+    // number of best translations recorded by every mapper thread
+    public static final String PARAM_RECORD_TOP = "record.errors.top";
+
+    /**
+     * Writes sequences to a new file of the directory
+     */
+    public static void write(Configuration conf,
+                             String dir,
+                             String name,
+                             Collection<ErrorSequence> sequences) throws IOException {
+        Path file = new Path(dir, name);
+        FileSystem fs = file.getFileSystem(conf);
+        DataOutputStream out = fs.create(file, true);
+        try {
+            WritableUtils.writeVInt(out, sequences.size());
+            for (ErrorSequence sequence : sequences) {
+                sequence.write(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads sequences from all the files of the directory
+     */
+    public static List<ErrorSequence> read(Configuration conf, String dir) throws IOException {
+        Path path = new Path(dir);
+        FileSystem fs = path.getFileSystem(conf);
+        List<ErrorSequence> sequences = new ArrayList<>();
+        for (FileStatus file : fs.listStatus(path)) {
+            if (!file.isFile() || file.getPath().getName().startsWith("_"))
+                continue;
+
+            DataInputStream in = fs.open(file.getPath());
+            try {
+                int numSequences = WritableUtils.readVInt(in);
+                for (int i = 0; i < numSequences; i++) {
+                    ErrorSequence sequence = new ErrorSequence();
+                    sequence.readFields(in);
+                    sequences.add(sequence);
+                }
+            } finally {
+                IOUtils.closeStream(in);
+            }
+        }
+        return sequences;
+    }
+
+    /**
+     * Returns best scoring sequence for every alpha, null if none of the
+     * sequences has a correspondence for it
+     */
+    public static ErrorSequence[] sweep(List<ErrorSequence> sequences, double[] alphas) {
+        ErrorSequence[] best = new ErrorSequence[alphas.length];
+        double[] bestScores = new double[alphas.length];
+        Arrays.fill(bestScores, Double.NEGATIVE_INFINITY);
+
+        for (ErrorSequence sequence : sequences) {
+            for (int i = 0; i < alphas.length; i++) {
+                if (sequence.size(alphas[i]) == 0)
+                    continue;
+
+                double score = sequence.score(alphas[i]);
+                if (score > bestScores[i]) {
+                    bestScores[i] = score;
+                    best[i] = sequence;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Prints best translation among the recorded sequences for evenly spaced
+     * values of alpha<br>
+     * Usage: <tt>AlphaSweep [record-dir] [from] [to] [steps]</tt>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("Usage: AlphaSweep [record-dir] [from] [to] [steps]");
+            System.out.println("Finds the best translation among the recorded error sequences only: the top "
+                               + PARAM_RECORD_TOP
+                               + " sequences of every mapper thread, ranked at alpha of the run. "
+                               + "Candidate ranges skipped by a resumed checkpoint are not recorded.");
+            System.exit(0);
+        }
+
+        double from = Double.parseDouble(args[1]);
+        double to = Double.parseDouble(args[2]);
+        int steps = Math.max(1, Integer.parseInt(args[3]));
+        double[] alphas = new double[steps];
+        for (int i = 0; i < steps; i++) {
+            alphas[i] = (steps == 1) ? from : from + (to - from) * i / (steps - 1);
+        }
+
+        List<ErrorSequence> sequences = read(new Configuration(), args[0]);
+        System.out.println("Read "
+                           + sequences.size()
+                           + " error sequence(s). Only recorded translations are considered.");
+
+        ErrorSequence[] best = sweep(sequences, alphas);
+        for (int i = 0; i < alphas.length; i++) {
+            if (null == best[i]) {
+                System.out.println("alpha=" + alphas[i] + " no match");
+                continue;
+            }
+            System.out.println("alpha="
+                               + alphas[i]
+                               + " score="
+                               + best[i].score(alphas[i])
+                               + " correspondences="
+                               + best[i].size(alphas[i])
+                               + " translation="
+                               + Arrays.toString(best[i].getTranslation()));
+        }
+    }
+
+    private AlphaSweep() {
+        // deny object creation
+    }
+}
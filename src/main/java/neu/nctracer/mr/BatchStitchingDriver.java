@@ -0,0 +1,356 @@
+package neu.nctracer.mr;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.Match;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.dm.AllPairsCandidateGenerator;
+import neu.nctracer.dm.CandidateGenerator;
+import neu.nctracer.dm.TopKMatches;
+import neu.nctracer.dm.TranslationMatchCalculator;
+import neu.nctracer.exception.HdfsException;
+import neu.nctracer.exception.ParsingException;
+import neu.nctracer.exception.ReflectionUtilsException;
+import neu.nctracer.mr.BatchTranslationReducer.BatchTranslationCombiner;
+import neu.nctracer.mr.BatchTranslationReducer.BatchTranslationGroupComparator;
+import neu.nctracer.mr.BatchTranslationReducer.BatchTranslationPartitioner;
+import neu.nctracer.utils.DataParser;
+import neu.nctracer.utils.HdfsFileUtils;
+import neu.nctracer.utils.ReflectionUtils;
+
+/**
+ * Driver class to stitch many stack pairs using the point-to-point translation
+ * algorithm in a single mapreduce job, instead of one job per pair. Pairs are
+ * listed in a manifest file, one pair per line:<br>
+ *
+ * <tt>pair-id source-image-file target-image-file</tt><br>
+ *
+ * Relative file paths are resolved against the directory of the manifest.
+ * Empty lines and lines starting with <tt>#</tt> are ignored. Every image file
+ * is staged and shipped once, even if used by many pairs.<br>
+ *
+ * Map tasks generate candidates of all the pairs (see
+ * {@link BatchTranslationInputFormat}) and emit matches keyed by pair id.
+ * Matches of a pair are routed to the same reducer, which writes <tt>K</tt>
+ * best matches of every pair as <tt>pair-id [tab] match</tt> lines.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class BatchStitchingDriver extends MapReduceStitchingDriver {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // file listing stack pairs to be stitched
+    public static final String PARAM_MANIFEST_FILE = "batch.manifest.file";
+    // number of reduce tasks, defaults to number of pairs up to 8
+    public static final String PARAM_NUM_REDUCERS = "batch.reducers";
+
+    private static final Pattern PAIR_ID_PATTERN = Pattern.compile("[A-Za-z0-9_.-]+");
+    private static final int MAX_DEFAULT_REDUCERS = 8;
+    // stacks kept parsed while counting candidates
+    private static final int MAX_PARSED_STACKS = 4;
+
+    private ConfigurationParams params = null;
+    private final List<StackPair> pairs = new ArrayList<>();
+    // HDFS path of every staged local image file
+    private final Map<String, String> stagedFiles = new LinkedHashMap<>();
+    private Class<? extends CandidateGenerator> generatorClass = null;
+    private long totalCandidates = 0;
+    private long totalQueries = 0;
+
+    /**
+     * Stack pair listed in the manifest
+     */
+    private static class StackPair {
+        private final String id;
+        private final String localSourcePath;
+        private final String localTargetPath;
+        private long numCandidates;
+
+        StackPair(String id, String localSourcePath, String localTargetPath) {
+            this.id = id;
+            this.localSourcePath = localSourcePath;
+            this.localTargetPath = localTargetPath;
+        }
+    }
+
+    public BatchStitchingDriver() {
+        super(BatchStitchingDriver.class);
+    }
+
+    @Override
+    public void setup(ConfigurationParams params) throws HdfsException {
+        this.params = params;
+        super.setup(params);
+        countCandidates();
+        logger.info("Batch stitching mapreduce job setup successful for "
+                    + pairs.size()
+                    + " stack pair(s) with "
+                    + totalCandidates
+                    + " candidate translation(s) in total.");
+    }
+
+    /**
+     * Stages image files of all the pairs listed in the manifest instead of
+     * single source and target file
+     */
+    @Override
+    protected void stageImageFiles(ConfigurationParams params) throws HdfsException,
+                                                               IllegalArgumentException {
+        String manifestPath = params.getParam(PARAM_MANIFEST_FILE, null);
+        if (null == manifestPath || manifestPath.isEmpty())
+            throw new IllegalArgumentException("Mandatory parameter ["
+                                               + PARAM_MANIFEST_FILE
+                                               + "] is not set. "
+                                               + "This parameter specifies file listing stack pairs to be stitched.");
+        readManifest(new File(manifestPath));
+
+        logger.debug("Staging image files of " + pairs.size() + " stack pair(s) on HDFS.");
+        for (StackPair pair : pairs) {
+            stageImageFile(params, pair.localSourcePath);
+            stageImageFile(params, pair.localTargetPath);
+        }
+    }
+
+    private void stageImageFile(ConfigurationParams params, String localPath) throws HdfsException {
+        if (stagedFiles.containsKey(localPath))
+            return;
+        stagedFiles.put(localPath, stagingArea.stageFile(convertToConfiguredFormat(params, localPath)));
+    }
+
+    private void readManifest(File manifest) throws HdfsException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new HdfsException("Error reading manifest file [" + manifest + "]", e);
+        }
+
+        Set<String> pairIds = new HashSet<>();
+        File baseDir = manifest.getAbsoluteFile().getParentFile();
+        int lineNumber = 0;
+        for (String line : lines) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] fields = line.split("\\s+");
+            if (fields.length != 3)
+                throw new IllegalArgumentException("Line "
+                                                   + lineNumber
+                                                   + " of manifest file ["
+                                                   + manifest
+                                                   + "] must have pair id, source and target image file.");
+            if (!PAIR_ID_PATTERN.matcher(fields[0]).matches())
+                throw new IllegalArgumentException("Invalid pair id ["
+                                                   + fields[0]
+                                                   + "] at line "
+                                                   + lineNumber
+                                                   + " of manifest file ["
+                                                   + manifest
+                                                   + "]. Pair id may contain letters, digits, '_', '.' and '-'.");
+            if (!pairIds.add(fields[0]))
+                throw new IllegalArgumentException("Duplicate pair id ["
+                                                   + fields[0]
+                                                   + "] at line "
+                                                   + lineNumber
+                                                   + " of manifest file ["
+                                                   + manifest
+                                                   + "]");
+
+            pairs.add(new StackPair(fields[0],
+                                    resolve(baseDir, fields[1]),
+                                    resolve(baseDir, fields[2])));
+        }
+
+        if (pairs.isEmpty())
+            throw new IllegalArgumentException("Manifest file [" + manifest + "] lists no stack pairs.");
+    }
+
+    private static String resolve(File baseDir, String path) {
+        File file = new File(path);
+        return (file.isAbsolute() ? file : new File(baseDir, path)).getAbsolutePath();
+    }
+
+    /**
+     * Counts candidates of every pair the same way map tasks generate them.
+     * Only the recently used stacks are kept parsed, so that the client does
+     * not hold all the stacks of a large manifest in memory
+     */
+    private void countCandidates() throws HdfsException {
+        String className = params.getParam(TranslationInputFormat.CANDIDATE_GENERATOR_CLASS,
+                                           AllPairsCandidateGenerator.class.getName());
+        Map<String, PointStack> stacks = new LinkedHashMap<String, PointStack>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PointStack> eldest) {
+                return size() > MAX_PARSED_STACKS;
+            }
+        };
+        try {
+            for (StackPair pair : pairs) {
+                PointStack source = parseStack(stacks, pair.localSourcePath);
+                PointStack target = parseStack(stacks, pair.localTargetPath);
+
+                CandidateGenerator generator = ReflectionUtils.instantiate(className,
+                                                                           CandidateGenerator.class);
+                generator.setup(source, target, params);
+                this.generatorClass = generator.getClass();
+
+                pair.numCandidates = generator.size();
+                totalCandidates += pair.numCandidates;
+                totalQueries += pair.numCandidates * source.size();
+                logger.debug("Pair [" + pair.id + "] has " + pair.numCandidates + " candidate(s).");
+            }
+        } catch (ReflectionUtilsException e) {
+            throw new HdfsException("Class ["
+                                    + className
+                                    + "] specified as parameter to ["
+                                    + TranslationInputFormat.CANDIDATE_GENERATOR_CLASS
+                                    + "] cannot be instantiated",
+                                    e);
+        } catch (ParsingException e) {
+            throw new HdfsException("Error while parsing image data.", e);
+        }
+    }
+
+    private PointStack parseStack(Map<String, PointStack> stacks,
+                                  String localPath) throws ParsingException, HdfsException {
+        PointStack stack = stacks.get(localPath);
+        if (null == stack) {
+            stack = DataParser.parseStack(conf, localPath, false, false, parserThreads);
+            stacks.put(localPath, stack);
+        }
+        return stack;
+    }
+
+    @Override
+    public boolean run() throws HdfsException {
+        try {
+            Job job = createJobInstance();
+
+            configureExecutionMode(job, selectExecutionMode(totalQueries, false));
+            setJobConfigurations(job);
+
+            // add image files of all the pairs to distributed cache
+            addPairsToCache(job);
+
+            // add all required jars to mapreduce job
+            addJarsToDistributedCache(job);
+
+            // using multi-threaded mapper
+            job.setMapperClass(MultithreadedMapper.class);
+            MultithreadedMapper.setMapperClass(job, BatchTranslationMapper.class);
+            MultithreadedMapper.setNumberOfThreads(job,
+                                                   Integer.parseInt(params.getParam("num.threads.per.mapper",
+                                                                                    "2")));
+            job.setMapOutputKeyClass(PairMatchKey.class);
+            job.setMapOutputValueClass(NullWritable.class);
+
+            // Reduce phase configurations
+            job.setCombinerClass(BatchTranslationCombiner.class);
+            job.setPartitionerClass(BatchTranslationPartitioner.class);
+            job.setGroupingComparatorClass(BatchTranslationGroupComparator.class);
+            job.setReducerClass(BatchTranslationReducer.class);
+            job.setNumReduceTasks(getNumReducers());
+
+            job.setInputFormatClass(BatchTranslationInputFormat.class);
+            job.getConfiguration().set(TranslationInputFormat.CANDIDATE_GENERATOR_CLASS,
+                                       generatorClass.getName());
+            TranslationInputFormat.setCandidatesPerSplit(job,
+                                                         Long.parseLong(params.getParam("num.input.lines.mapper",
+                                                                                        "1000")));
+
+            job.setOutputKeyClass(Text.class);
+            job.setOutputValueClass(Match.class);
+
+            FileOutputFormat.setOutputPath(job, new Path(hdfsOutputPath));
+
+            logger.info("Starting mapreduce job to stitch " + pairs.size() + " stack pair(s).");
+            boolean status = job.waitForCompletion(true);
+            cleanup(job, status);
+
+            return status;
+
+        } catch (IOException e) {
+            throw new HdfsException(e.getMessage(), e);
+        } catch (ClassNotFoundException e) {
+            throw new HdfsException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            throw new HdfsException(e.getMessage(), e);
+        } catch (URISyntaxException e) {
+            throw new HdfsException(e);
+        }
+    }
+
+    private int getNumReducers() {
+        String numReducers = params.getParam(PARAM_NUM_REDUCERS, null);
+        if (null != numReducers)
+            return Math.max(1, Integer.parseInt(numReducers));
+        return Math.min(pairs.size(), MAX_DEFAULT_REDUCERS);
+    }
+
+    /**
+     * Adds every staged image file to distributed cache once and registers
+     * pairs with the names of their files. Files are linked under the name of
+     * their checksum directory, so that different files with same name do not
+     * clash
+     */
+    private void addPairsToCache(Job job) throws HdfsException, URISyntaxException {
+        Map<String, String> linkNames = new HashMap<>();
+        for (Map.Entry<String, String> staged : stagedFiles.entrySet()) {
+            Path path = HdfsFileUtils.getPath(conf, staged.getValue(), true);
+            String linkName = path.getParent().getName() + "_" + path.getName();
+            job.addCacheFile(new URI(path + "#" + linkName));
+            linkNames.put(staged.getKey(), linkName);
+        }
+
+        for (StackPair pair : pairs) {
+            BatchTranslationInputFormat.addPair(job,
+                                                pair.id,
+                                                linkNames.get(pair.localSourcePath),
+                                                linkNames.get(pair.localTargetPath),
+                                                pair.numCandidates);
+        }
+    }
+
+    private void setJobConfigurations(Job job) {
+        String matchCalculationClass = params.getParam("match.calculator.class",
+                                                       TranslationMatchCalculator.class.getName());
+        job.getConfiguration().set("match.calculator.class", matchCalculationClass);
+
+        int topK = Integer.parseInt(params.getParam(TopKMatches.PARAM_TOP_K, "1"));
+        job.getConfiguration().setInt(TopKMatches.PARAM_TOP_K, topK);
+        String suppressionRadius = params.getParam(TopKMatches.PARAM_SUPPRESSION_RADIUS, "0.0");
+        job.getConfiguration().set(TopKMatches.PARAM_SUPPRESSION_RADIUS, suppressionRadius);
+        logger.debug("Emitting "
+                     + topK
+                     + " best match(es) per pair with suppression radius "
+                     + suppressionRadius);
+    }
+}
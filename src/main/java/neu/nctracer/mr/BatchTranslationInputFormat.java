@@ -0,0 +1,354 @@
+package neu.nctracer.mr;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import neu.nctracer.conf.cli.CLIConfigurationManager;
+import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.dm.CandidateGenerator;
+import neu.nctracer.dm.PointStackRegistry;
+import neu.nctracer.exception.HdfsException;
+import neu.nctracer.exception.ParsingException;
+
+/**
+ * Input format of batch stitching job (see {@link BatchStitchingDriver}).
+ * Same as {@link TranslationInputFormat}, but generates candidates of many
+ * stack pairs. Candidates of all the pairs are laid out one pair after the
+ * other and cut into splits of equal number of candidates. Thus a split holds
+ * one or more segments, each being a range of candidates of a single pair.<br>
+ *
+ * Key is the pair id and value is the transformation.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class BatchTranslationInputFormat extends InputFormat<Text, DataTransformation<DataObject>> {
+
+    public static final String PAIR_IDS = "batch.pair.ids";
+
+    /**
+     * Registers pair with the names of its image files in distributed cache
+     * and number of candidates counted by the client. Pairs are split in the
+     * order of registration
+     */
+    public static void addPair(Job job,
+                               String pairId,
+                               String sourceFileName,
+                               String targetFileName,
+                               long numCandidates) {
+        Configuration conf = job.getConfiguration();
+        String pairIds = conf.get(PAIR_IDS);
+        conf.set(PAIR_IDS, (null == pairIds || pairIds.isEmpty()) ? pairId : pairIds + "," + pairId);
+        conf.set(sourceFileKey(pairId), sourceFileName);
+        conf.set(targetFileKey(pairId), targetFileName);
+        conf.setLong(numCandidatesKey(pairId), numCandidates);
+    }
+
+    public static String sourceFileKey(String pairId) {
+        return "batch.pair." + pairId + ".source";
+    }
+
+    public static String targetFileKey(String pairId) {
+        return "batch.pair." + pairId + ".target";
+    }
+
+    public static String numCandidatesKey(String pairId) {
+        return "batch.pair." + pairId + ".candidates";
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext context) throws IOException,
+                                                          InterruptedException {
+        Configuration conf = context.getConfiguration();
+        String[] pairIds = conf.getStrings(PAIR_IDS);
+        if (null == pairIds || pairIds.length == 0)
+            throw new IOException("No stack pairs are set. Parameter [" + PAIR_IDS + "] is mandatory.");
+
+        long candidatesPerSplit = Math.max(1,
+                                           conf.getLong(TranslationInputFormat.CANDIDATES_PER_SPLIT,
+                                                        1000));
+
+        List<InputSplit> splits = new ArrayList<>();
+        PairRangesSplit split = new PairRangesSplit();
+        for (String pairId : pairIds) {
+            long numCandidates = conf.getLong(numCandidatesKey(pairId), -1);
+            if (numCandidates < 0)
+                throw new IOException("Number of candidates of pair ["
+                                      + pairId
+                                      + "] is not set. Parameter ["
+                                      + numCandidatesKey(pairId)
+                                      + "] is mandatory.");
+
+            long start = 0;
+            while (start < numCandidates) {
+                long length = Math.min(candidatesPerSplit - split.getLength(), numCandidates - start);
+                split.addSegment(pairId, start, length);
+                start += length;
+
+                if (split.getLength() == candidatesPerSplit) {
+                    splits.add(split);
+                    split = new PairRangesSplit();
+                }
+            }
+        }
+        if (split.getLength() > 0)
+            splits.add(split);
+        return splits;
+    }
+
+    @Override
+    public RecordReader<Text, DataTransformation<DataObject>>
+           createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException,
+                                                                            InterruptedException {
+        return new PairRangesRecordReader();
+    }
+
+    /**
+     * Ranges of candidate indexes <tt>[start, start + length)</tt> of one or
+     * more stack pairs
+     */
+    public static class PairRangesSplit extends InputSplit implements Writable {
+
+        private final List<String> pairIds = new ArrayList<>();
+        private final List<Long> starts = new ArrayList<>();
+        private final List<Long> lengths = new ArrayList<>();
+        private long length = 0;
+
+        public PairRangesSplit() {
+            // defined for sake of making it work as a Writable class
+        }
+
+        void addSegment(String pairId, long start, long length) {
+            pairIds.add(pairId);
+            starts.add(start);
+            lengths.add(length);
+            this.length += length;
+        }
+
+        public int getNumSegments() {
+            return pairIds.size();
+        }
+
+        public String getPairId(int segment) {
+            return pairIds.get(segment);
+        }
+
+        public long getStart(int segment) {
+            return starts.get(segment);
+        }
+
+        public long getLength(int segment) {
+            return lengths.get(segment);
+        }
+
+        /**
+         * Number of candidates in the split
+         */
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public String[] getLocations() {
+            // candidates are generated, no data locality
+            return new String[0];
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, pairIds.size());
+            for (int i = 0; i < pairIds.size(); i++) {
+                Text.writeString(out, pairIds.get(i));
+                out.writeLong(starts.get(i));
+                out.writeLong(lengths.get(i));
+            }
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            pairIds.clear();
+            starts.clear();
+            lengths.clear();
+            length = 0;
+
+            int numSegments = WritableUtils.readVInt(in);
+            for (int i = 0; i < numSegments; i++) {
+                addSegment(Text.readString(in), in.readLong(), in.readLong());
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < pairIds.size(); i++) {
+                if (i > 0)
+                    builder.append(", ");
+                builder.append("pair ")
+                       .append(pairIds.get(i))
+                       .append(" candidates [")
+                       .append(starts.get(i))
+                       .append(", ")
+                       .append(starts.get(i) + lengths.get(i))
+                       .append(")");
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Generates candidates of the split segment by segment. Image stacks of a
+     * segment are held only while the segment is being read and are shared
+     * with the mappers running in the same JVM (see
+     * {@link PointStackRegistry})
+     */
+    public static class PairRangesRecordReader
+            extends RecordReader<Text, DataTransformation<DataObject>> {
+
+        private PairRangesSplit split = null;
+        private Configuration conf = null;
+        private ConfigurationParams params = null;
+        private boolean singlePrecision = false;
+
+        private int segment = -1;
+        private CandidateGenerator generator = null;
+        private PointStack source = null;
+        private PointStack target = null;
+        private long current;
+        private long end;
+
+        // candidates read from completed segments
+        private long completed = 0;
+
+        private final Text key = new Text();
+        private final DataTransformation<DataObject> value = new DataTransformation<>();
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException,
+                                                                             InterruptedException {
+            this.split = (PairRangesSplit) split;
+            this.conf = context.getConfiguration();
+            try {
+                this.params = CLIConfigurationManager.getHandler().getConfigurationParamsInstance();
+                String[] strings = conf.getStrings("configurable.params");
+                if (null != strings)
+                    params.parseParams(strings);
+            } catch (ParsingException e) {
+                throw new HdfsException("Error parsing configuration parameters", e);
+            }
+            this.singlePrecision = PointStack.isSinglePrecision(params.getParam(PointStack.PARAM_PRECISION,
+                                                                                "double"));
+        }
+
+        /**
+         * Releases stacks of the current segment and sets up generator for the
+         * next one
+         */
+        private boolean nextSegment() throws IOException {
+            if (segment >= split.getNumSegments())
+                return false;
+            if (segment >= 0)
+                completed += split.getLength(segment);
+            releaseStacks();
+
+            if (++segment >= split.getNumSegments())
+                return false;
+
+            String pairId = split.getPairId(segment);
+            try {
+                source = PointStackRegistry.acquire(conf,
+                                                    conf.get(sourceFileKey(pairId)),
+                                                    singlePrecision);
+                target = PointStackRegistry.acquire(conf,
+                                                    conf.get(targetFileKey(pairId)),
+                                                    singlePrecision);
+            } catch (ParsingException e) {
+                throw new HdfsException("Error while reading image data of pair ["
+                                        + pairId
+                                        + "] for candidate generation.",
+                                        e);
+            }
+
+            generator = TranslationInputFormat.createCandidateGenerator(conf);
+            generator.setup(source, target, params);
+
+            key.set(pairId);
+            current = split.getStart(segment);
+            end = current + split.getLength(segment);
+            if (end > generator.size())
+                throw new HdfsException("Segment of pair ["
+                                        + pairId
+                                        + "] ending at ["
+                                        + end
+                                        + "] exceeds number of candidates ["
+                                        + generator.size()
+                                        + "]. Image data differs from the data seen by the client.");
+            return true;
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            while (null == generator || current >= end) {
+                if (!nextSegment())
+                    return false;
+            }
+
+            generator.generate(current, value);
+            current++;
+            return true;
+        }
+
+        @Override
+        public Text getCurrentKey() {
+            return key;
+        }
+
+        @Override
+        public DataTransformation<DataObject> getCurrentValue() {
+            return value;
+        }
+
+        @Override
+        public float getProgress() {
+            if (split.getLength() == 0)
+                return 1.0f;
+
+            long read = completed;
+            if (segment >= 0 && segment < split.getNumSegments())
+                read += current - split.getStart(segment);
+            return read / (float) split.getLength();
+        }
+
+        private void releaseStacks() {
+            if (null != source)
+                PointStackRegistry.release(source);
+            if (null != target)
+                PointStackRegistry.release(target);
+            source = null;
+            target = null;
+            generator = null;
+        }
+
+        @Override
+        public void close() {
+            releaseStacks();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package neu.nctracer.mr;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.Match;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.dm.MatchCalculator;
+import neu.nctracer.dm.MatchStatistics;
+import neu.nctracer.dm.PointStackRegistry;
+import neu.nctracer.dm.TopKMatches;
+import neu.nctracer.dm.TranslationMatchCalculator;
+import neu.nctracer.exception.HdfsException;
+import neu.nctracer.exception.ParsingException;
+import neu.nctracer.exception.ReflectionUtilsException;
+import neu.nctracer.utils.ReflectionUtils;
+
+/**
+ * Mapper of batch stitching job (see {@link BatchStitchingDriver}). Evaluates
+ * candidates of many stack pairs and keeps <tt>K</tt> best matches of every
+ * pair, emitted keyed by pair id once all the input is read.<br>
+ *
+ * Stacks of the most recently used pairs are held in an LRU cache, so that
+ * the stacks and the indexes built over them (see {@link PointStackRegistry})
+ * stay in memory while the mapper moves between pairs. Stacks of the least
+ * recently used pair are released once the cache is full.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class BatchTranslationMapper
+        extends ImageStitchingMapper<Text, DataTransformation<DataObject>, PairMatchKey, NullWritable> {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // number of stack pairs a mapper keeps in memory
+    public static final String PARAM_CACHED_PAIRS = "batch.cache.pairs";
+
+    private MatchCalculator matchCalculator = null;
+    private LinkedHashMap<String, PointStack[]> cachedPairs = null;
+    // best matches of every pair seen by this mapper
+    private final Map<String, TopKMatches> bestMatches = new LinkedHashMap<>();
+    private boolean singlePrecision = false;
+
+    private final LatencyHistogram matchLatency = new LatencyHistogram();
+    private long matchNanos = 0;
+    private long pairLoads = 0;
+    private long emittedCount = 0;
+
+    @Override
+    protected void
+              setup(Mapper<Text, DataTransformation<DataObject>, PairMatchKey, NullWritable>.Context context) throws IOException,
+                                                                                                            InterruptedException {
+        super.setup(context);
+
+        this.matchCalculator = createMatchCalculator();
+        this.matchCalculator.setup(params);
+        this.singlePrecision = isSinglePrecision();
+
+        final int capacity = Math.max(1, Integer.parseInt(params.getParam(PARAM_CACHED_PAIRS, "4")));
+        this.cachedPairs = new LinkedHashMap<String, PointStack[]>(capacity + 1, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, PointStack[]> eldest) {
+                if (size() <= capacity)
+                    return false;
+                release(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Stacks are acquired per pair as candidates arrive (see
+     * {@link #getStacks(String)})
+     */
+    @Override
+    protected void readImageData() {
+        // nothing to read upfront
+    }
+
+    private MatchCalculator createMatchCalculator() {
+        String className = conf.get("match.calculator.class");
+        if (null == className)
+            return new TranslationMatchCalculator();
+
+        try {
+            return ReflectionUtils.instantiate(className, MatchCalculator.class);
+        } catch (ReflectionUtilsException e) {
+            logger.warn("Class [ "
+                        + className
+                        + "] specified as parameter to [match.calculator.class] cannot be instantiated");
+            return new TranslationMatchCalculator();
+        }
+    }
+
+    /**
+     * Returns source and target stacks of the pair, acquiring them if the pair
+     * is not cached
+     */
+    private PointStack[] getStacks(String pairId) throws HdfsException {
+        PointStack[] stacks = cachedPairs.get(pairId);
+        if (null != stacks)
+            return stacks;
+
+        stacks = new PointStack[2];
+        try {
+            stacks[0] = PointStackRegistry.acquire(conf,
+                                                   conf.get(BatchTranslationInputFormat.sourceFileKey(pairId)),
+                                                   singlePrecision);
+            stacks[1] = PointStackRegistry.acquire(conf,
+                                                   conf.get(BatchTranslationInputFormat.targetFileKey(pairId)),
+                                                   singlePrecision);
+        } catch (ParsingException e) {
+            release(stacks);
+            throw new HdfsException("Error while reading image data of pair [" + pairId + "]", e);
+        }
+
+        pairLoads++;
+        cachedPairs.put(pairId, stacks);
+        return stacks;
+    }
+
+    private TopKMatches getBestMatches(String pairId) {
+        TopKMatches matches = bestMatches.get(pairId);
+        if (null == matches) {
+            matches = PointToPointTranslationReducer.createTopKMatches(conf);
+            bestMatches.put(pairId, matches);
+        }
+        return matches;
+    }
+
+    private static void release(PointStack[] stacks) {
+        for (PointStack stack : stacks) {
+            if (null != stack)
+                PointStackRegistry.release(stack);
+        }
+    }
+
+    @Override
+    protected void
+              map(Text key,
+                  DataTransformation<DataObject> value,
+                  Mapper<Text, DataTransformation<DataObject>, PairMatchKey, NullWritable>.Context context) throws IOException,
+                                                                                                            InterruptedException {
+        String pairId = key.toString();
+        PointStack[] stacks = getStacks(pairId);
+        TopKMatches pairMatches = getBestMatches(pairId);
+
+        // bound of this pair only, scores of other pairs are not comparable
+        matchCalculator.setMinimumScore(pairMatches.getThreshold());
+
+        long start = System.nanoTime();
+        Match match = matchCalculator.findMatch(stacks[0], stacks[1], value);
+        long elapsed = System.nanoTime() - start;
+        matchLatency.record(elapsed);
+        matchNanos += elapsed;
+
+        if (match.getCorrespondences() == null || match.getCorrespondences().isEmpty())
+            return;
+
+        match.setSinglePrecision(singlePrecision);
+        pairMatches.offer(match);
+    }
+
+    @Override
+    protected void
+              cleanup(Mapper<Text, DataTransformation<DataObject>, PairMatchKey, NullWritable>.Context context) throws IOException,
+                                                                                                                InterruptedException {
+        for (Entry<String, TopKMatches> entry : bestMatches.entrySet()) {
+            for (Match match : entry.getValue().getRankedMatches()) {
+                context.write(new PairMatchKey(entry.getKey(), match), NullWritable.get());
+                emittedCount++;
+            }
+        }
+        publishCounters(context);
+
+        for (PointStack[] stacks : cachedPairs.values()) {
+            release(stacks);
+        }
+        cachedPairs.clear();
+
+        super.cleanup(context);
+    }
+
+    private void
+            publishCounters(Mapper<Text, DataTransformation<DataObject>, PairMatchKey, NullWritable>.Context context) {
+        MatchStatistics statistics = matchCalculator.getStatistics();
+        context.getCounter(StitchingCounters.TRANSFORMATIONS_EVALUATED)
+               .increment(statistics.getTransformationsEvaluated());
+        context.getCounter(StitchingCounters.TRANSFORMATIONS_PRUNED)
+               .increment(statistics.getTransformationsAbandoned());
+        context.getCounter(StitchingCounters.NEIGHBOR_QUERIES)
+               .increment(statistics.getNeighborQueries());
+        context.getCounter(StitchingCounters.CANDIDATES_PUSHED)
+               .increment(statistics.getCandidatesPushed());
+        context.getCounter(StitchingCounters.MATCH_MILLIS).increment(matchNanos / 1000000);
+        context.getCounter(StitchingCounters.MATCHES_EMITTED).increment(emittedCount);
+        context.getCounter(StitchingCounters.PAIR_LOADS).increment(pairLoads);
+        matchLatency.publish(context);
+    }
+}
@@ -0,0 +1,142 @@
+package neu.nctracer.mr;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import neu.nctracer.data.Match;
+import neu.nctracer.dm.TopKMatches;
+
+/**
+ * Reducer of batch stitching job (see {@link BatchStitchingDriver}). Emits
+ * <tt>K</tt> best matches of every stack pair routed to it, ranked from best to
+ * worst, as <tt>pair id - match</tt> records.<br>
+ *
+ * All the matches of a pair are received in a single reduce call sorted by
+ * descending score. Thus reducer stops reading a pair as soon as no other
+ * match can make it to the top <tt>K</tt> of the pair.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class BatchTranslationReducer extends Reducer<PairMatchKey, NullWritable, Text, Match> {
+
+    @Override
+    protected void
+              reduce(PairMatchKey key,
+                     Iterable<NullWritable> value,
+                     Reducer<PairMatchKey, NullWritable, Text, Match>.Context context) throws IOException,
+                                                                                       InterruptedException {
+        TopKMatches bestMatches = PointToPointTranslationReducer.createTopKMatches(context.getConfiguration());
+
+        // key object is refilled by the framework for every value
+        for (@SuppressWarnings("unused")
+        NullWritable ignore : value) {
+            Match match = key.getMatch();
+            if (!bestMatches.canAccept(match))
+                break;
+            context.getCounter(StitchingCounters.REDUCE_MATCHES_READ).increment(1);
+            bestMatches.offer(new Match(match));
+        }
+
+        Text pairId = new Text(key.getPairIdText());
+        for (Match match : bestMatches.getRankedMatches()) {
+            context.write(pairId, match);
+            context.getCounter(StitchingCounters.REDUCE_MATCHES_WRITTEN).increment(1);
+        }
+    }
+
+    /**
+     * Merges matches emitted by all the mapper threads of a map task and
+     * forwards only <tt>K</tt> best of every pair
+     *
+     * @author Ankur Shanbhag
+     *
+     */
+    public static class BatchTranslationCombiner
+            extends Reducer<PairMatchKey, NullWritable, PairMatchKey, NullWritable> {
+
+        private final Map<String, TopKMatches> bestMatches = new LinkedHashMap<>();
+
+        @Override
+        protected void
+                  reduce(PairMatchKey key,
+                         Iterable<NullWritable> value,
+                         Reducer<PairMatchKey, NullWritable, PairMatchKey, NullWritable>.Context context) throws IOException,
+                                                                                                          InterruptedException {
+            String pairId = key.getPairId();
+            TopKMatches pairMatches = bestMatches.get(pairId);
+            if (null == pairMatches) {
+                pairMatches = PointToPointTranslationReducer.createTopKMatches(context.getConfiguration());
+                bestMatches.put(pairId, pairMatches);
+            }
+
+            for (@SuppressWarnings("unused")
+            NullWritable ignore : value) {
+                Match match = key.getMatch();
+                pairMatches.offer(new Match(match));
+            }
+        }
+
+        @Override
+        protected void
+                  cleanup(Reducer<PairMatchKey, NullWritable, PairMatchKey, NullWritable>.Context context) throws IOException,
+                                                                                                           InterruptedException {
+            for (Entry<String, TopKMatches> entry : bestMatches.entrySet()) {
+                for (Match match : entry.getValue().getRankedMatches()) {
+                    context.write(new PairMatchKey(entry.getKey(), match), NullWritable.get());
+                }
+            }
+            bestMatches.clear();
+            super.cleanup(context);
+        }
+    }
+
+    /**
+     * Routes all the matches of a pair to the same reducer
+     *
+     * @author Ankur Shanbhag
+     *
+     */
+    public static class BatchTranslationPartitioner extends Partitioner<PairMatchKey, NullWritable> {
+        @Override
+        public int getPartition(PairMatchKey key, NullWritable value, int numPartitions) {
+            return (key.getPairIdText().hashCode() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    /**
+     * Groups all the records of a pair together in a single reduce call
+     *
+     * @author Ankur Shanbhag
+     *
+     */
+    public static class BatchTranslationGroupComparator extends WritableComparator {
+        public BatchTranslationGroupComparator() {
+            super(PairMatchKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                return PairMatchKey.comparePairIds(b1, s1, b2, s2);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Error reading pair id.", e);
+            }
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public int compare(WritableComparable w1, WritableComparable w2) {
+            return ((PairMatchKey) w1).getPairIdText().compareTo(((PairMatchKey) w2).getPairIdText());
+        }
+    }
+}
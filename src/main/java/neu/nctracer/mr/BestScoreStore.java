@@ -0,0 +1,57 @@
+package neu.nctracer.mr;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Channel through which map tasks share the best scores found so far. Every
+ * publisher (a mapper thread) publishes its own score bound and reads back the
+ * best bound published by any publisher, including tasks which have already
+ * finished. Thus late-starting tasks begin with the bound found by earlier
+ * ones.<br>
+ *
+ * Implementations must tolerate concurrent publishers and need not be exact -
+ * a stale or missing score only means less pruning.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public interface BestScoreStore {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // share score bounds between map tasks
+    public static final String PARAM_ENABLED = "match.score.sharing";
+    // implementation of the store
+    public static final String PARAM_STORE_CLASS = "match.score.store.class";
+    // minimum time between two reads or publishes of a mapper
+    public static final String PARAM_INTERVAL_MILLIS = "match.score.sharing.interval.ms";
+    // mappers stop evaluating candidates once K matches reach this score
+    public static final String PARAM_TARGET_SCORE = "match.target.score";
+
+    // job configuration key holding directory of the store, set by driver
+    public static final String STORE_DIR = "match.score.store.dir";
+
+    /**
+     * @param dir
+     *            - directory shared by all the publishers of the job
+     * @param publisherId
+     *            - id unique to the caller
+     */
+    void setup(Configuration conf, String dir, String publisherId) throws IOException;
+
+    /**
+     * Replaces score previously published by this publisher
+     */
+    void publish(double score) throws IOException;
+
+    /**
+     * Returns best score published by any publisher or negative infinity if
+     * none was published
+     */
+    double readBest() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,46 @@
+package neu.nctracer.mr;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+
+/**
+ * Reads candidate transformations materialized in a binary
+ * <tt>SequenceFile</tt> (see
+ * {@link PointToPointTranslationDriver#writeTranslationsToHdfs(java.util.Collection)}).
+ * Key is the candidate id and value is the transformation. Files are
+ * splittable at sync markers, so no per-record parsing is required.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class CandidateFileInputFormat
+        extends SequenceFileInputFormat<LongWritable, DataTransformation<DataObject>> {
+
+    /**
+     * Sizes the splits to hold approximately specified number of candidates.
+     * Splits of a block-compressed file cannot be smaller than a compressed
+     * block, thus small files may be processed by fewer mappers
+     */
+    public static void setCandidatesPerSplit(Job job,
+                                             Path candidateFile,
+                                             long numCandidates,
+                                             long candidatesPerSplit) throws IOException {
+        FileInputFormat.addInputPath(job, candidateFile);
+        if (numCandidates <= 0)
+            return;
+
+        FileSystem fs = candidateFile.getFileSystem(job.getConfiguration());
+        long fileLength = fs.getFileStatus(candidateFile).getLen();
+        long splitSize = (long) Math.ceil((double) fileLength * candidatesPerSplit / numCandidates);
+        FileInputFormat.setMaxInputSplitSize(job, Math.max(1, splitSize));
+    }
+}
@@ -0,0 +1,201 @@
+package neu.nctracer.mr;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.WritableUtils;
+
+import neu.nctracer.data.Match;
+
+/**
+ * Durable record of the candidate ranges evaluated by completed map tasks
+ * along with the best matches found in them. Lets a failed or cancelled run be
+ * resumed by a new run, which evaluates only the remaining candidates (see
+ * {@link TranslationInputFormat}) and merges the saved matches into its
+ * result.<br>
+ *
+ * <tt>dir/_attempts/[task attempt id]/[publisher id]</tt> - matches written by
+ * the threads of a running task <br>
+ * <tt>dir/ranges/[start]-[length]/[publisher id]</tt> - matches of a completed
+ * range <br>
+ *
+ * A task attempt writes to its own directory, which is renamed to the range
+ * directory only once all its threads are done (see
+ * {@link CheckpointingMultithreadedMapper}). Thus a range is either completed
+ * with all its matches, or not recorded at all.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class CheckpointStore {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // record completed candidate ranges so that failed runs can be resumed
+    public static final String PARAM_ENABLED = "checkpoint";
+    // evaluate only candidates not recorded by an earlier run of same input
+    public static final String PARAM_RESUME = "resume";
+
+    // job configuration key holding directory of the checkpoint, set by driver
+    public static final String CHECKPOINT_DIR = "checkpoint.dir";
+
+    private static final String ATTEMPTS_DIR = "_attempts";
+    private static final String RANGES_DIR = "ranges";
+    private static final String RANGE_SEPARATOR = "-";
+
+    private final FileSystem fs;
+    private final Path dir;
+
+    public CheckpointStore(Configuration conf, String dir) throws IOException {
+        this.dir = new Path(dir);
+        this.fs = this.dir.getFileSystem(conf);
+    }
+
+    /**
+     * Returns store of the job or null if checkpointing is not enabled for
+     * the job
+     */
+    public static CheckpointStore get(Configuration conf) throws IOException {
+        String dir = conf.get(CHECKPOINT_DIR);
+        return (null == dir) ? null : new CheckpointStore(conf, dir);
+    }
+
+    /**
+     * Creates directory of the task attempt, so that the range is recorded
+     * even if none of the threads finds a match
+     */
+    public void beginAttempt(String attemptId) throws IOException {
+        fs.mkdirs(new Path(new Path(dir, ATTEMPTS_DIR), attemptId));
+    }
+
+    /**
+     * Writes matches found by a thread of the task attempt
+     */
+    public void writeMatches(String attemptId,
+                             String publisherId,
+                             Collection<Match> matches) throws IOException {
+        Path file = new Path(new Path(new Path(dir, ATTEMPTS_DIR), attemptId), publisherId);
+        DataOutputStream out = fs.create(file, true);
+        try {
+            WritableUtils.writeVInt(out, matches.size());
+            for (Match match : matches) {
+                match.write(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Records range <tt>[start, start + length)</tt> as completed with the
+     * matches written by the attempt. If another attempt of the same task has
+     * already recorded the range, matches of this attempt are discarded
+     */
+    public void commitRange(String attemptId, long start, long length) throws IOException {
+        Path attemptDir = new Path(new Path(dir, ATTEMPTS_DIR), attemptId);
+        Path rangesDir = new Path(dir, RANGES_DIR);
+        Path rangeDir = new Path(rangesDir, start + RANGE_SEPARATOR + length);
+
+        fs.mkdirs(rangesDir);
+        // rename into an existing directory would nest the attempt under it
+        if (fs.exists(rangeDir) || !fs.rename(attemptDir, rangeDir))
+            fs.delete(attemptDir, true);
+    }
+
+    /**
+     * Returns completed ranges as <tt>{start, length}</tt> sorted by start
+     */
+    public List<long[]> readCompletedRanges() throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        Path rangesDir = new Path(dir, RANGES_DIR);
+        if (!fs.isDirectory(rangesDir))
+            return ranges;
+
+        for (FileStatus status : fs.listStatus(rangesDir)) {
+            long[] range = parseRange(status.getPath().getName());
+            if (null != range)
+                ranges.add(range);
+        }
+
+        Collections.sort(ranges, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] range1, long[] range2) {
+                return Long.compare(range1[0], range2[0]);
+            }
+        });
+        return ranges;
+    }
+
+    /**
+     * Reads matches of all the completed ranges
+     */
+    public List<Match> readMatches() throws IOException {
+        List<Match> matches = new ArrayList<>();
+        Path rangesDir = new Path(dir, RANGES_DIR);
+        if (!fs.isDirectory(rangesDir))
+            return matches;
+
+        for (FileStatus range : fs.listStatus(rangesDir)) {
+            if (null == parseRange(range.getPath().getName()))
+                continue;
+
+            for (FileStatus file : fs.listStatus(range.getPath())) {
+                if (!file.isFile())
+                    continue;
+
+                DataInputStream in = fs.open(file.getPath());
+                try {
+                    int numMatches = WritableUtils.readVInt(in);
+                    for (int i = 0; i < numMatches; i++) {
+                        Match match = new Match();
+                        match.readFields(in);
+                        matches.add(match);
+                    }
+                } finally {
+                    IOUtils.closeStream(in);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Deletes directories of attempts which never completed
+     */
+    public void deleteAttempts() throws IOException {
+        fs.delete(new Path(dir, ATTEMPTS_DIR), true);
+    }
+
+    public void delete() throws IOException {
+        fs.delete(dir, true);
+    }
+
+    public String getDir() {
+        return dir.toString();
+    }
+
+    private static long[] parseRange(String name) {
+        int index = name.indexOf(RANGE_SEPARATOR);
+        if (index < 0)
+            return null;
+
+        try {
+            return new long[] { Long.parseLong(name.substring(0, index)),
+                                Long.parseLong(name.substring(index + 1)) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
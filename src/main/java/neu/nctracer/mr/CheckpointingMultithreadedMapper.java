@@ -0,0 +1,47 @@
+package neu.nctracer.mr;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
+
+import neu.nctracer.mr.TranslationInputFormat.CandidateRangeSplit;
+
+/**
+ * Multi-threaded mapper which records the candidate range of its split as
+ * completed once all the mapper threads are done (see
+ * {@link CheckpointStore}). Matches are written by the threads themselves.
+ * Behaves same as {@link MultithreadedMapper} if checkpointing is not enabled
+ * for the job or the split is not a candidate range.
+ *
+ * @author Ankur Shanbhag
+ *
+ * @param <K1>
+ *            - Input key to the Mapper
+ * @param <V1>
+ *            - Input value to the Mapper
+ * @param <K2>
+ *            - Output key emitted by Mapper
+ * @param <V2>
+ *            - Output value emitted by Mapper
+ */
+public class CheckpointingMultithreadedMapper<K1, V1, K2, V2>
+        extends MultithreadedMapper<K1, V1, K2, V2> {
+
+    @Override
+    public void run(Context context) throws IOException, InterruptedException {
+        CheckpointStore store = CheckpointStore.get(context.getConfiguration());
+        InputSplit split = context.getInputSplit();
+        if (null == store || !(split instanceof CandidateRangeSplit)) {
+            super.run(context);
+            return;
+        }
+
+        String attemptId = context.getTaskAttemptID().toString();
+        store.beginAttempt(attemptId);
+        super.run(context);
+
+        CandidateRangeSplit range = (CandidateRangeSplit) split;
+        store.commitRange(attemptId, range.getStart(), range.getLength());
+    }
+}
@@ -0,0 +1,40 @@
+package neu.nctracer.mr;
+
+/**
+ * Where the stitching jobs run. For small stack pairs submitting a job to the
+ * cluster takes longer than the computation, thus the drivers can pick the
+ * mode from the estimated size of the job (see
+ * {@link MapReduceStitchingDriver#selectExecutionMode(long, boolean)}).
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public enum ExecutionMode {
+    // submit the job to the cluster
+    CLUSTER,
+    // run the job in client JVM using LocalJobRunner
+    LOCAL,
+    // run all the tasks of the job in the application master container
+    UBER,
+    // bypass Hadoop and compute matches using a thread pool of client JVM
+    INPROCESS;
+
+    /**
+     * Parses value of parameter <tt>execution.mode</tt>
+     *
+     * @return mode or null for <tt>auto</tt>
+     */
+    public static ExecutionMode parse(String mode) {
+        if (null == mode || "auto".equalsIgnoreCase(mode))
+            return null;
+
+        try {
+            return valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value ["
+                                               + mode
+                                               + "] for parameter [execution.mode]. "
+                                               + "Expected one of auto, cluster, local, uber, inprocess.");
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package neu.nctracer.mr;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+
+import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.dm.MatchCalculator;
+import neu.nctracer.dm.TranslationMatchCalculator;
+import neu.nctracer.exception.ReflectionUtilsException;
+import neu.nctracer.log.LogManager;
+import neu.nctracer.log.Logger;
+import neu.nctracer.utils.ReflectionUtils;
+
+/**
+ * Plans execution of point-to-point matching job from a cost model instead of
+ * static parameters.<br>
+ *
+ * 1. Calibrates the configured {@link MatchCalculator} on a sample of
+ * candidates to estimate cost of evaluating a single candidate. <br>
+ * 2. Estimates memory of a map task from sizes of the image stacks, the index
+ * and the per-thread matching buffers. <br>
+ * 3. Picks number of threads per mapper from the vcores a container may use,
+ * candidates per split so that a map task runs for about the target time and
+ * container memory to hold the estimated memory with headroom. <br>
+ *
+ * Calibration runs on the client, thus the plan assumes cores of the cluster
+ * nodes to be about as fast as the client's. Values explicitly set by the user
+ * for <tt>num.input.lines.mapper</tt> and <tt>num.threads.per.mapper</tt>
+ * always take precedence.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class ExecutionPlanner {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // set to true to plan split size and threads instead of using static
+    // values
+    public static final String PARAM_ENABLED = "execution.planner";
+    // wall-clock time a map task should run for
+    public static final String PARAM_TARGET_TASK_SECONDS = "planner.target.task.seconds";
+    // number of candidates evaluated while calibrating
+    public static final String PARAM_CALIBRATION_SAMPLES = "planner.calibration.samples";
+    // upper bound on threads per mapper
+    public static final String PARAM_MAX_THREADS = "planner.max.threads";
+
+    private static final String PARAM_INPUT_LINES = "num.input.lines.mapper";
+    private static final String PARAM_THREADS = "num.threads.per.mapper";
+    // values the driver uses for the above if the planner is disabled
+    private static final String DEFAULT_INPUT_LINES = "1000";
+    private static final String DEFAULT_THREADS = "2";
+
+    // candidates evaluated before timing to let the JIT compile hot paths
+    private static final int WARMUP_SAMPLES = 8;
+    // matching buffers of a thread per source point (50 neighbor pairs of
+    // ids, error and heap slot)
+    private static final long BYTES_PER_SOURCE_POINT_PER_THREAD = 50 * 20;
+    private static final long JVM_OVERHEAD_BYTES = 256L << 20;
+    private static final double MEMORY_HEADROOM = 1.5;
+    private static final double HEAP_FRACTION = 0.8;
+
+    private final Logger logger = LogManager.getLogManager().getDefaultLogger();
+
+    private final ConfigurationParams params;
+    private final Configuration conf;
+
+    /**
+     * Chosen execution plan along with the estimates it is based on
+     */
+    public static class Plan {
+        private final long candidatesPerSplit;
+        private final int threadsPerMapper;
+        private final int containerMemoryMb;
+        private final double candidateCostMillis;
+        private final long taskMemoryBytes;
+        private final long numSplits;
+        private final double taskSeconds;
+
+        Plan(long candidatesPerSplit,
+             int threadsPerMapper,
+             int containerMemoryMb,
+             double candidateCostMillis,
+             long taskMemoryBytes,
+             long numSplits,
+             double taskSeconds) {
+            this.candidatesPerSplit = candidatesPerSplit;
+            this.threadsPerMapper = threadsPerMapper;
+            this.containerMemoryMb = containerMemoryMb;
+            this.candidateCostMillis = candidateCostMillis;
+            this.taskMemoryBytes = taskMemoryBytes;
+            this.numSplits = numSplits;
+            this.taskSeconds = taskSeconds;
+        }
+
+        public long getCandidatesPerSplit() {
+            return candidatesPerSplit;
+        }
+
+        public int getThreadsPerMapper() {
+            return threadsPerMapper;
+        }
+
+        /**
+         * Memory of map container in MB, 0 if cluster default is to be kept
+         */
+        public int getContainerMemoryMb() {
+            return containerMemoryMb;
+        }
+
+        public double getCandidateCostMillis() {
+            return candidateCostMillis;
+        }
+
+        public long getTaskMemoryBytes() {
+            return taskMemoryBytes;
+        }
+
+        public long getNumSplits() {
+            return numSplits;
+        }
+
+        public double getTaskSeconds() {
+            return taskSeconds;
+        }
+
+        /**
+         * Sets thread count, vcores and memory of the map containers
+         */
+        public void apply(Job job) {
+            Configuration conf = job.getConfiguration();
+            conf.setInt("mapreduce.map.cpu.vcores", threadsPerMapper);
+            if (containerMemoryMb > 0) {
+                conf.setInt("mapreduce.map.memory.mb", containerMemoryMb);
+                conf.set("mapreduce.map.java.opts",
+                         "-Xmx" + (int) (containerMemoryMb * HEAP_FRACTION) + "m");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "candidates per split = "
+                   + candidatesPerSplit
+                   + ", splits = "
+                   + numSplits
+                   + ", threads per mapper = "
+                   + threadsPerMapper
+                   + ", container memory = "
+                   + (containerMemoryMb > 0 ? containerMemoryMb + " MB" : "cluster default")
+                   + " (estimated cost per candidate = "
+                   + String.format("%.3f", candidateCostMillis)
+                   + " ms, estimated task time = "
+                   + String.format("%.1f", taskSeconds)
+                   + " s, estimated task memory = "
+                   + (taskMemoryBytes >> 20)
+                   + " MB)";
+        }
+    }
+
+    public ExecutionPlanner(ConfigurationParams params, Configuration conf) {
+        this.params = params;
+        this.conf = conf;
+    }
+
+    public static boolean isEnabled(ConfigurationParams params) {
+        return Boolean.parseBoolean(params.getParam(PARAM_ENABLED, "false"));
+    }
+
+    /**
+     * Calibrates matching on the sample and plans execution of
+     * <tt>numCandidates</tt> candidates
+     */
+    public Plan plan(PointStack source,
+                     PointStack target,
+                     List<DataTransformation<DataObject>> sample,
+                     long numCandidates) {
+        double candidateCostMillis = calibrate(source, target, sample);
+
+        int threads = planThreads();
+        long taskMemoryBytes = estimateTaskMemory(source, target, threads);
+        int containerMemoryMb = planContainerMemory(taskMemoryBytes);
+
+        long candidatesPerSplit = planCandidatesPerSplit(candidateCostMillis, threads, numCandidates);
+        long numSplits = (numCandidates + candidatesPerSplit - 1) / candidatesPerSplit;
+        double taskSeconds = candidatesPerSplit * candidateCostMillis / threads / 1000;
+
+        Plan plan = new Plan(candidatesPerSplit,
+                             threads,
+                             containerMemoryMb,
+                             candidateCostMillis,
+                             taskMemoryBytes,
+                             numSplits,
+                             taskSeconds);
+        logger.info("Execution plan for " + numCandidates + " candidate(s): " + plan);
+        logOverrides(plan);
+        return plan;
+    }
+
+    /**
+     * Logs every setting the plan replaces along with the value it would
+     * otherwise have, so that changed behavior of existing runs is visible
+     */
+    private void logOverrides(Plan plan) {
+        if (null == params.getParam(PARAM_INPUT_LINES, null))
+            logger.info("Execution planner overrides "
+                        + PARAM_INPUT_LINES
+                        + ": "
+                        + DEFAULT_INPUT_LINES
+                        + " -> "
+                        + plan.getCandidatesPerSplit());
+        if (null == params.getParam(PARAM_THREADS, null))
+            logger.info("Execution planner overrides "
+                        + PARAM_THREADS
+                        + ": "
+                        + DEFAULT_THREADS
+                        + " -> "
+                        + plan.getThreadsPerMapper());
+        logger.info("Execution planner overrides mapreduce.map.cpu.vcores: "
+                    + conf.get("mapreduce.map.cpu.vcores", "cluster default")
+                    + " -> "
+                    + plan.getThreadsPerMapper());
+        if (plan.getContainerMemoryMb() > 0)
+            logger.info("Execution planner overrides mapreduce.map.memory.mb: "
+                        + conf.get("mapreduce.map.memory.mb", "cluster default")
+                        + " -> "
+                        + plan.getContainerMemoryMb());
+    }
+
+    /**
+     * Average milliseconds taken to evaluate a candidate
+     */
+    private double calibrate(PointStack source,
+                             PointStack target,
+                             List<DataTransformation<DataObject>> sample) {
+        if (sample.isEmpty())
+            return 0;
+
+        MatchCalculator matchCalculator = createMatchCalculator();
+        matchCalculator.setup(params);
+
+        int warmup = Math.min(WARMUP_SAMPLES, sample.size() / 2);
+        for (int i = 0; i < warmup; i++) {
+            matchCalculator.findMatch(source, target, sample.get(i));
+        }
+
+        long start = System.nanoTime();
+        for (int i = warmup; i < sample.size(); i++) {
+            matchCalculator.findMatch(source, target, sample.get(i));
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double costMillis = elapsed / 1e6 / (sample.size() - warmup);
+        logger.debug("Calibrated matching on "
+                     + (sample.size() - warmup)
+                     + " candidate(s) in "
+                     + (elapsed / 1000000)
+                     + " ms");
+        return costMillis;
+    }
+
+    private MatchCalculator createMatchCalculator() {
+        String className = params.getParam("match.calculator.class",
+                                           TranslationMatchCalculator.class.getName());
+        try {
+            return ReflectionUtils.instantiate(className, MatchCalculator.class);
+        } catch (ReflectionUtilsException e) {
+            logger.warn("Class ["
+                        + className
+                        + "] specified as parameter to [match.calculator.class] cannot be instantiated. "
+                        + "Calibrating with default match calculator.");
+            return new TranslationMatchCalculator();
+        }
+    }
+
+    /**
+     * One thread per vcore a map container may get
+     */
+    private int planThreads() {
+        String userThreads = params.getParam(PARAM_THREADS, null);
+        if (null != userThreads)
+            return Integer.parseInt(userThreads);
+
+        int maxThreads = Integer.parseInt(params.getParam(PARAM_MAX_THREADS, "4"));
+        int maxVcores = conf.getInt("yarn.scheduler.maximum-allocation-vcores", 4);
+        return Math.max(1, Math.min(maxThreads, maxVcores));
+    }
+
+    /**
+     * Stacks and index are shared by the threads, matching buffers are not
+     */
+    private long estimateTaskMemory(PointStack source, PointStack target, int threads) {
+        boolean singlePrecision = PointStack.isSinglePrecision(params.getParam(PointStack.PARAM_PRECISION,
+                                                                               "double"));
+        long bytesPerCoordinate = singlePrecision ? 4 : 8;
+        long stackBytes = ((long) source.size() * source.getDimension()
+                           + (long) target.size() * target.getDimension())
+                          * bytesPerCoordinate;
+        // KD-tree node is an int id and a byte split axis
+        long indexBytes = target.size() * 5L;
+        long threadBytes = source.size() * BYTES_PER_SOURCE_POINT_PER_THREAD;
+
+        return JVM_OVERHEAD_BYTES + stackBytes + indexBytes + threads * threadBytes;
+    }
+
+    /**
+     * Keeps cluster default unless the task needs more memory
+     */
+    private int planContainerMemory(long taskMemoryBytes) {
+        int defaultMb = conf.getInt("mapreduce.map.memory.mb", 1024);
+        int maxMb = conf.getInt("yarn.scheduler.maximum-allocation-mb", 8192);
+
+        int requiredMb = (int) Math.ceil(taskMemoryBytes * MEMORY_HEADROOM / HEAP_FRACTION / (1 << 20));
+        if (requiredMb <= defaultMb)
+            return 0;
+
+        if (requiredMb > maxMb)
+            logger.warn("Estimated map task memory of "
+                        + requiredMb
+                        + " MB exceeds maximum container size of "
+                        + maxMb
+                        + " MB.");
+        return Math.min(requiredMb, maxMb);
+    }
+
+    private long planCandidatesPerSplit(double candidateCostMillis, int threads, long numCandidates) {
+        String userLines = params.getParam(PARAM_INPUT_LINES, null);
+        if (null != userLines)
+            return Math.max(1, Long.parseLong(userLines));
+
+        if (candidateCostMillis <= 0)
+            return Math.max(1, numCandidates);
+
+        double targetMillis = Double.parseDouble(params.getParam(PARAM_TARGET_TASK_SECONDS, "60"))
+                              * 1000;
+        long candidates = (long) (targetMillis * threads / candidateCostMillis);
+        return Math.max(1, Math.min(candidates, Math.max(1, numCandidates)));
+    }
+}
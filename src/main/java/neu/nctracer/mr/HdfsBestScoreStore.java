@@ -0,0 +1,85 @@
+package neu.nctracer.mr;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Keeps published scores as empty marker files in a directory on HDFS (or any
+ * other Hadoop file system). Score is encoded in the name of the marker, thus
+ * reading the best score needs a single directory listing and no file is ever
+ * opened for reading.<br>
+ *
+ * <tt>dir/[publisher id].score-[bits of the score in hex]</tt>
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class HdfsBestScoreStore implements BestScoreStore {
+
+    private static final String MARKER_SEPARATOR = ".score-";
+
+    private FileSystem fs = null;
+    private Path dir = null;
+    private String publisherId = null;
+
+    // marker of the last published score
+    private Path marker = null;
+
+    @Override
+    public void setup(Configuration conf, String dir, String publisherId) throws IOException {
+        this.dir = new Path(dir);
+        this.fs = this.dir.getFileSystem(conf);
+        this.publisherId = publisherId;
+        fs.mkdirs(this.dir);
+    }
+
+    @Override
+    public void publish(double score) throws IOException {
+        Path newMarker = new Path(dir, toMarkerName(publisherId, score));
+        fs.create(newMarker, true).close();
+
+        // new marker is created first, so readers always see a score
+        if (null != marker && !marker.equals(newMarker))
+            fs.delete(marker, false);
+        marker = newMarker;
+    }
+
+    @Override
+    public double readBest() throws IOException {
+        double best = Double.NEGATIVE_INFINITY;
+        for (FileStatus status : fs.listStatus(dir)) {
+            best = Math.max(best, parseMarkerName(status.getPath().getName()));
+        }
+        return best;
+    }
+
+    @Override
+    public void close() {
+        // markers are kept for tasks starting later
+    }
+
+    static String toMarkerName(String publisherId, double score) {
+        return publisherId + MARKER_SEPARATOR + Long.toString(Double.doubleToLongBits(score), 16);
+    }
+
+    /**
+     * Returns score encoded in the name or negative infinity if the name is
+     * not a marker (e.g. a file being written)
+     */
+    static double parseMarkerName(String name) {
+        int index = name.lastIndexOf(MARKER_SEPARATOR);
+        if (index < 0)
+            return Double.NEGATIVE_INFINITY;
+
+        try {
+            long bits = Long.parseLong(name.substring(index + MARKER_SEPARATOR.length()), 16);
+            return Double.longBitsToDouble(bits);
+        } catch (NumberFormatException e) {
+            return Double.NEGATIVE_INFINITY;
+        }
+    }
+}
@@ -5,6 +5,7 @@ public final class HdfsConstants {
     public static final String SOURCE_IMAGE_FILE_NAME = "hadoop.image.source.file";
     public static final String TARGET_IMAGE_FILE_NAME = "hadoop.image.target.file";
     public static final String IMAGE_MATCHING_ERROR = "image.matching.error.threshold";
+    public static final String CLUSTER_PAIR_THREADS = "image.matching.cluster.pair.threads";
 
     private HdfsConstants() {
         // deny object creation
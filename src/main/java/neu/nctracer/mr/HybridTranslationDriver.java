@@ -0,0 +1,229 @@
+package neu.nctracer.mr;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+
+import neu.nctracer.data.DataCorrespondence;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.ImageData;
+import neu.nctracer.data.Match;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.dm.KdTrees;
+import neu.nctracer.dm.NearestNeighbors;
+import neu.nctracer.exception.HdfsException;
+import neu.nctracer.exception.ParsingException;
+import neu.nctracer.utils.DataTransformer;
+import neu.nctracer.utils.HdfsFileUtils;
+
+/**
+ * Driver class which combines clustering and point-to-point stitching
+ * algorithms.<br>
+ *
+ * 1. Runs clustering job (see {@link ImageDataClusteringDriver}) to find
+ * cluster-to-cluster translations. Number of matching points between the
+ * clusters is used as support for the translation. <br>
+ * 2. Picks translations with highest support as candidates. <br>
+ * 3. Expands every candidate to translations between pairs of source and
+ * target points which lie close to each other after applying the candidate
+ * translation. <br>
+ * 4. Runs point-to-point matching job (see
+ * {@link PointToPointTranslationDriver}) only on the expanded translations.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class HybridTranslationDriver extends PointToPointTranslationDriver {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // maximum number of cluster translations to be expanded
+    public static final String PARAM_MAX_CANDIDATES = "hybrid.max.candidates";
+    // number of nearby target points paired with every translated source point
+    public static final String PARAM_EXPANSION_NEIGHBORS = "hybrid.expansion.neighbors";
+    // maximum distance of target point from translated source point
+    public static final String PARAM_EXPANSION_RADIUS = "hybrid.expansion.radius";
+
+    private String hdfsClusterInputPath = null;
+    private String hdfsClusterOutputPath = null;
+    private String threshold = null;
+
+    public HybridTranslationDriver() {
+        super(HybridTranslationDriver.class);
+    }
+
+    /**
+     * Writes only the translations in the neighborhood of cluster-to-cluster
+     * translations
+     */
+    @Override
+    protected void prepareTranslations(PointStack sourceData,
+                                       PointStack targetData) throws HdfsException {
+        List<Match> clusterMatches = runClusteringStage();
+        logger.info("Clustering stage generated " + clusterMatches.size() + " translation(s).");
+
+        int maxCandidates = Integer.parseInt(params.getParam(PARAM_MAX_CANDIDATES, "50"));
+        List<Match> candidates = selectCandidates(clusterMatches, maxCandidates);
+
+        Set<DataTransformation<DataObject>> translations = expandCandidates(candidates, targetData);
+        logger.info("Expanded "
+                    + candidates.size()
+                    + " candidate(s) to "
+                    + translations.size()
+                    + " point-to-point translation(s) instead of "
+                    + ((long) sourceData.size() * targetData.size())
+                    + ".");
+
+        writeTranslationsToHdfs(translations);
+    }
+
+    private List<Match> runClusteringStage() throws HdfsException {
+        String inputPath = params.getParam("local.input.path", null);
+        if (null == inputPath || inputPath.isEmpty())
+            throw new IllegalArgumentException("Mandatory parameter [local.input.path] is not set. "
+                                               + "This parameter specifies input configuration params for clustering.");
+
+        this.threshold = params.getParam("error.threshold", "5");
+        this.hdfsClusterInputPath = HdfsFileUtils.copyFromLocal(inputPath, hdfsBaseDirPath, conf);
+        this.hdfsClusterOutputPath = hdfsBaseDirPath + Path.SEPARATOR + "cluster-stage-output";
+
+        try {
+            Job job = createJobInstance();
+            configureExecutionMode(job, selectExecutionMode(-1, false));
+            ImageDataClusteringDriver.configureClusteringJob(job,
+                                                             hdfsClusterInputPath,
+                                                             hdfsClusterOutputPath,
+                                                             threshold);
+            addImageFilesToCache(job);
+            addJarsToDistributedCache(job);
+
+            logger.info("Starting clustering stage to find candidate translations.");
+            boolean status = job.waitForCompletion(true);
+            logCounters(job);
+            if (!status)
+                throw new HdfsException("Clustering stage terminated with errors. Check hadoop logs for details.");
+
+            return readClusterMatches();
+        } catch (IOException e) {
+            throw new HdfsException(e.getMessage(), e);
+        } catch (ClassNotFoundException e) {
+            throw new HdfsException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            throw new HdfsException(e.getMessage(), e);
+        } catch (URISyntaxException e) {
+            throw new HdfsException(e);
+        }
+    }
+
+    private List<Match> readClusterMatches() throws HdfsException {
+        List<Match> matches = new ArrayList<>();
+        for (Path path : HdfsFileUtils.listFilePaths(hdfsClusterOutputPath, conf, true)) {
+            if (!path.getName().startsWith("part-"))
+                continue;
+
+            String data = HdfsFileUtils.readFileAsString(conf, path.toString(), true);
+            for (String line : data.split("\\r?\\n")) {
+                if (line.trim().isEmpty())
+                    continue;
+                try {
+                    Match match = Match.parse(line.trim());
+                    if (null != match.getCorrespondences() && !match.getCorrespondences().isEmpty())
+                        matches.add(match);
+                } catch (ParsingException e) {
+                    throw new HdfsException("Error parsing clustering stage output.", e);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Orders cluster matches by support (number of correspondences) and picks
+     * the top ones
+     */
+    private List<Match> selectCandidates(List<Match> clusterMatches, int maxCandidates) {
+        List<Match> candidates = new ArrayList<>(clusterMatches);
+        Collections.sort(candidates, new Comparator<Match>() {
+            @Override
+            public int compare(Match m1, Match m2) {
+                return m2.getCorrespondences().size() - m1.getCorrespondences().size();
+            }
+        });
+
+        if (candidates.size() > maxCandidates)
+            return candidates.subList(0, maxCandidates);
+        return candidates;
+    }
+
+    /**
+     * Applies candidate translation to every source point supporting it and
+     * defines point-to-point translations to nearby target points
+     */
+    private Set<DataTransformation<DataObject>> expandCandidates(List<Match> candidates,
+                                                                 PointStack targetData) {
+        int numNeighbors = Integer.parseInt(params.getParam(PARAM_EXPANSION_NEIGHBORS, "3"));
+        double radius = Double.parseDouble(params.getParam(PARAM_EXPANSION_RADIUS, threshold));
+
+        NearestNeighbors nearestNeighbors = new KdTrees();
+        nearestNeighbors.setup(targetData, params);
+
+        Set<DataTransformation<DataObject>> translations = new LinkedHashSet<>();
+        for (Match candidate : candidates) {
+            double[] translation = computeTranslation(candidate);
+
+            for (DataCorrespondence correspondence : candidate.getCorrespondences()) {
+                DataObject source = correspondence.getSource();
+
+                DataObject translatedSource = new ImageData();
+                translatedSource.setFeatures(DataTransformer.doTranslation(source, translation));
+
+                Map<DataObject, Double> neighbors = nearestNeighbors.findNeighbors(translatedSource,
+                                                                                   numNeighbors);
+                for (Entry<DataObject, Double> neighbor : neighbors.entrySet()) {
+                    if (neighbor.getValue() > radius)
+                        continue;
+                    DataTransformation<DataObject> transformation = defineTranslation(source,
+                                                                                      neighbor.getKey());
+                    // candidates are ordered by support, first one seen is the strongest
+                    transformation.setSupport(candidate.getCorrespondences().size());
+                    translations.add(transformation);
+                }
+            }
+        }
+        return translations;
+    }
+
+    /**
+     * Translation of a cluster match is the average movement of its source
+     * points
+     */
+    private double[] computeTranslation(Match match) {
+        double[] translation = null;
+        for (DataCorrespondence correspondence : match.getCorrespondences()) {
+            double[] movement = DataTransformer.computeRelativePosition(correspondence.getTranslatedSource(),
+                                                                        correspondence.getSource());
+            if (null == translation)
+                translation = new double[movement.length];
+            for (int i = 0; i < movement.length; i++) {
+                translation[i] += movement[i];
+            }
+        }
+
+        for (int i = 0; i < translation.length; i++) {
+            translation[i] /= match.getCorrespondences().size();
+        }
+        return translation;
+    }
+}
@@ -55,26 +55,14 @@ public class ImageDataClusteringDriver extends MapReduceStitchingDriver {
 
         try {
             Job job = createJobInstance();
-            job.setMapperClass(ImageDataClusteringMapper.class);
-
-            job.getConfiguration().setInt("mapreduce.input.lineinputformat.linespermap", 3);
-            job.getConfiguration().set(HdfsConstants.IMAGE_MATCHING_ERROR, threshold);
+            configureExecutionMode(job, selectExecutionMode(-1, false));
+            configureClusteringJob(job, hdfsInputPath, hdfsOutputPath, threshold);
 
             addImageFilesToCache(job);
             
             // add all required jars to mapreduce job
             addJarsToDistributedCache(job);
 
-            NLineInputFormat.addInputPath(job, new Path(hdfsInputPath));
-            job.setInputFormatClass(NLineInputFormat.class);
-
-            // map only job
-            job.setNumReduceTasks(0);
-            job.setOutputKeyClass(Text.class);
-            job.setOutputValueClass(NullWritable.class);
-
-            FileOutputFormat.setOutputPath(job, new Path(hdfsOutputPath));
-
             logger.info("Starting mapreduce job to perform image stitching operation.");
             boolean status = job.waitForCompletion(true);
             cleanup(job, status);
@@ -89,5 +77,29 @@ public class ImageDataClusteringDriver extends MapReduceStitchingDriver {
             throw new HdfsException(e.getMessage(), e);
         }
     }
-}
 
+    /**
+     * Sets up map only job which clusters image data points using every input
+     * line as clustering configuration and emits matches between consistent
+     * groups of clusters
+     */
+    static void configureClusteringJob(Job job,
+                                       String inputPath,
+                                       String outputPath,
+                                       String threshold) throws IOException {
+        job.setMapperClass(ImageDataClusteringMapper.class);
+
+        job.getConfiguration().setInt("mapreduce.input.lineinputformat.linespermap", 3);
+        job.getConfiguration().set(HdfsConstants.IMAGE_MATCHING_ERROR, threshold);
+
+        NLineInputFormat.addInputPath(job, new Path(inputPath));
+        job.setInputFormatClass(NLineInputFormat.class);
+
+        // map only job
+        job.setNumReduceTasks(0);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(NullWritable.class);
+
+        FileOutputFormat.setOutputPath(job, new Path(outputPath));
+    }
+}
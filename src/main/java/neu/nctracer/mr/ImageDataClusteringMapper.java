@@ -2,14 +2,23 @@ package neu.nctracer.mr;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.LongWritable;
@@ -24,6 +33,7 @@ import neu.nctracer.data.DataObject;
 import neu.nctracer.data.DataTransformation;
 import neu.nctracer.data.ImageData;
 import neu.nctracer.data.Match;
+import neu.nctracer.data.PointIdLookup;
 import neu.nctracer.dm.cluster.Clusterer;
 import neu.nctracer.dm.cluster.DBSCANCluster;
 import neu.nctracer.dm.cluster.DataCluster;
@@ -54,7 +64,12 @@ import neu.nctracer.utils.ReflectionUtils;
  * 6. Find group of translations which are consistent across different pairs of
  * clusters in source and target with minimum error.<br>
  * 7. Emit one-to-one correspondences from cluster pairs belonging to the group
- * found above.
+ * found above.<br>
+ * 
+ * Steps 3 to 5 are independent for every cluster pair and are evaluated on a
+ * bounded pool of worker threads. Pool size can be set with parameter
+ * <tt>image.matching.cluster.pair.threads</tt> and defaults to number of vcores
+ * allocated to the map container.
  * 
  * @author Ankur Shanbhag
  *
@@ -70,6 +85,17 @@ public class ImageDataClusteringMapper
 
     private Clusterer clusterer = null;
 
+    // workers evaluating cluster pairs. null when pairs are evaluated serially
+    private ExecutorService pairEvaluationPool = null;
+
+    // instrumentation, updated by the pair evaluation workers
+    private final LatencyHistogram pairLatency = new LatencyHistogram();
+    private final AtomicLong pairsEvaluated = new AtomicLong();
+    private final AtomicLong pairNanos = new AtomicLong();
+    private final AtomicLong neighborQueries = new AtomicLong();
+    private final AtomicLong candidatesPushed = new AtomicLong();
+    private long matchesEmitted = 0;
+
     @Override
     protected void
               setup(Mapper<LongWritable, Text, Text, NullWritable>.Context context) throws IOException,
@@ -91,9 +117,33 @@ public class ImageDataClusteringMapper
 
         threshold = conf.getDouble(HdfsConstants.IMAGE_MATCHING_ERROR, 0.0);
 
+        int numVcores = conf.getInt("mapreduce.map.cpu.vcores", 1);
+        int numThreads = Integer.parseInt(params.getParam(HdfsConstants.CLUSTER_PAIR_THREADS,
+                                                          String.valueOf(numVcores)));
+        if (numThreads > 1)
+            pairEvaluationPool = Executors.newFixedThreadPool(numThreads);
+        logger.debug("Evaluating cluster pairs using " + Math.max(numThreads, 1) + " thread(s).");
+
         logger.info("Image stitching mapreduce job setup phase successful.");
     }
 
+    @Override
+    protected void
+              cleanup(Mapper<LongWritable, Text, Text, NullWritable>.Context context) throws IOException,
+                                                                                      InterruptedException {
+        if (null != pairEvaluationPool)
+            pairEvaluationPool.shutdownNow();
+
+        context.getCounter(StitchingCounters.TRANSFORMATIONS_EVALUATED).increment(pairsEvaluated.get());
+        context.getCounter(StitchingCounters.NEIGHBOR_QUERIES).increment(neighborQueries.get());
+        context.getCounter(StitchingCounters.CANDIDATES_PUSHED).increment(candidatesPushed.get());
+        context.getCounter(StitchingCounters.MATCH_MILLIS).increment(pairNanos.get() / 1000000);
+        context.getCounter(StitchingCounters.MATCHES_EMITTED).increment(matchesEmitted);
+        pairLatency.publish(context);
+
+        super.cleanup(context);
+    }
+
     @Override
     public void map(LongWritable key, Text value, Context context) throws IOException,
                                                                    InterruptedException {
@@ -109,35 +159,120 @@ public class ImageDataClusteringMapper
             throw new HdfsException(e);
         }
 
-        List<DataCluster> sourceClusters = clusterer.createClusters(getSourceDataObjects());
-        List<DataCluster> targetClusters = clusterer.createClusters(getTargetDataObjects());
+        List<DataCluster> sourceClusters = clusterer.createClusters(getSourceStack());
+        List<DataCluster> targetClusters = clusterer.createClusters(getTargetStack());
 
-        List<List<DataTransformation<DataCluster>>> allTransformations = new ArrayList<>();
         Map<DataTransformation<DataCluster>, Match> resultMap = new HashMap<>();
+        List<List<DataTransformation<DataCluster>>> allTransformations = evaluateClusterPairs(sourceClusters,
+                                                                                              targetClusters,
+                                                                                              resultMap);
 
+        if (allTransformations.size() < 2)
+            return;
+
+        List<DataObject> transformations = groupTransformations(allTransformations);
+        emitCorrespondences(context, transformations, resultMap);
+
+        logger.info("Successfully performed map phase for input : " + value);
+    }
+
+    /**
+     * Defines translation and computes correspondences for every pair of
+     * source and target cluster. Results are collected in the order of the
+     * input clusters, irrespective of the order in which pairs complete. Thus
+     * equal translations of different pairs replace each other in the result
+     * map same as when pairs are evaluated sequentially
+     */
+    private List<List<DataTransformation<DataCluster>>>
+            evaluateClusterPairs(List<DataCluster> sourceClusters,
+                                 List<DataCluster> targetClusters,
+                                 Map<DataTransformation<DataCluster>, Match> resultMap) throws HdfsException,
+                                                                                        InterruptedException {
+
+        List<Future<PairResult>> pairs = new ArrayList<>(sourceClusters.size()
+                                                         * targetClusters.size());
         for (DataCluster sourceCluster : sourceClusters) {
-            List<DataTransformation<DataCluster>> list = new ArrayList<>();
             for (DataCluster targetCluster : targetClusters) {
+                pairs.add(submit(new ClusterPairEvaluation(sourceCluster, targetCluster)));
+            }
+        }
 
-                DataTransformation<DataCluster> transformation = defineTranslation(sourceCluster,
-                                                                                   targetCluster);
-                Match match = computeCorrespondences(sourceCluster, targetCluster);
-
-                resultMap.put(transformation, match);
-                if (match.getCorrespondences().size() > 1)
-                    list.add(transformation);
+        List<List<DataTransformation<DataCluster>>> allTransformations = new ArrayList<>();
+        Iterator<Future<PairResult>> iterator = pairs.iterator();
+        for (int i = 0; i < sourceClusters.size(); i++) {
+            List<DataTransformation<DataCluster>> list = new ArrayList<>();
+            for (int j = 0; j < targetClusters.size(); j++) {
+                PairResult result = waitFor(iterator.next());
+                resultMap.put(result.transformation, result.match);
+                if (result.match.getCorrespondences().size() > 1)
+                    list.add(result.transformation);
             }
             if (!list.isEmpty())
                 allTransformations.add(list);
         }
+        return allTransformations;
+    }
 
-        if (allTransformations.size() < 2)
-            return;
+    private Future<PairResult> submit(ClusterPairEvaluation evaluation) throws HdfsException {
+        if (null != pairEvaluationPool)
+            return pairEvaluationPool.submit(evaluation);
 
-        List<DataObject> transformations = groupTransformations(allTransformations);
-        emitCorrespondences(context, transformations, resultMap);
+        // no worker threads configured. Evaluate in the calling thread
+        FutureTask<PairResult> task = new FutureTask<>(evaluation);
+        task.run();
+        return task;
+    }
 
-        logger.info("Successfully performed map phase for input : " + value);
+    private PairResult waitFor(Future<PairResult> pair) throws HdfsException, InterruptedException {
+        try {
+            return pair.get();
+        } catch (ExecutionException e) {
+            throw new HdfsException("Error while evaluating cluster pair.", e.getCause());
+        }
+    }
+
+    /**
+     * Translation between a pair of source and target cluster along with the
+     * match computed for the pair
+     */
+    private static class PairResult {
+
+        private final DataTransformation<DataCluster> transformation;
+        private final Match match;
+
+        PairResult(DataTransformation<DataCluster> transformation, Match match) {
+            this.transformation = transformation;
+            this.match = match;
+        }
+    }
+
+    /**
+     * Evaluates single pair of source and target cluster. Does not touch any
+     * shared state apart from the statistics, the caller records the result
+     */
+    private class ClusterPairEvaluation implements Callable<PairResult> {
+
+        private final DataCluster sourceCluster;
+        private final DataCluster targetCluster;
+
+        ClusterPairEvaluation(DataCluster sourceCluster, DataCluster targetCluster) {
+            this.sourceCluster = sourceCluster;
+            this.targetCluster = targetCluster;
+        }
+
+        @Override
+        public PairResult call() {
+            long start = System.nanoTime();
+            DataTransformation<DataCluster> transformation = defineTranslation(sourceCluster,
+                                                                               targetCluster);
+            Match match = computeCorrespondences(sourceCluster, targetCluster);
+
+            long elapsed = System.nanoTime() - start;
+            pairLatency.record(elapsed);
+            pairNanos.addAndGet(elapsed);
+            pairsEvaluated.incrementAndGet();
+            return new PairResult(transformation, match);
+        }
     }
 
     private List<DataObject>
@@ -240,6 +375,11 @@ public class ImageDataClusteringMapper
         Map<DataObject, DataObject> translatedObjMapping = movePoints(targetCentroid,
                                                                       relativeMovementMap);
 
+        // every translated point is compared with every target point
+        neighborQueries.addAndGet(translatedObjMapping.size());
+        candidatesPushed.addAndGet((long) translatedObjMapping.size()
+                                   * targetCluster.getDataPoints().size());
+
         // find correspondences between mapped source points and target points
         Set<DataCorrespondence> correspondences = findCorrespondences(translatedObjMapping,
                                                                       targetCluster);
@@ -294,22 +434,33 @@ public class ImageDataClusteringMapper
         SortedMap<Double, List<DataCorrespondence>> sortedMap = findSortedCorrespondences(translatedObjMapping,
                                                                                           targetCluster);
         // create lookup for fast access
-        Set<DataObject> sourceLookup = translatedObjMapping.keySet();
-        Set<DataObject> targetLookup = new HashSet<>(targetCluster.getDataPoints());
+        PointIdLookup sourceIds = new PointIdLookup(new ArrayList<>(translatedObjMapping.keySet()));
+        PointIdLookup targetIds = new PointIdLookup(targetCluster.getDataPoints());
+        BitSet usedSource = new BitSet(sourceIds.capacity());
+        BitSet usedTarget = new BitSet(targetIds.capacity());
+        int unusedSourceCount = translatedObjMapping.size();
+        int unusedTargetCount = targetCluster.getDataPoints().size();
 
         Set<DataCorrespondence> correspondences = new HashSet<>();
         for (Entry<Double, List<DataCorrespondence>> entry : sortedMap.entrySet()) {
             List<DataCorrespondence> list = entry.getValue();
             for (DataCorrespondence correspondence : list) {
+                int sourceId = sourceIds.idOf(correspondence.getSource());
+                int targetId = targetIds.idOf(correspondence.getTarget());
+
                 // add correspondence if source and target points are not added
-                if (sourceLookup.contains(correspondence.getSource())
-                    && targetLookup.contains(correspondence.getTarget())) {
+                if (sourceId != DataObject.NO_ID
+                    && targetId != DataObject.NO_ID
+                    && !usedSource.get(sourceId)
+                    && !usedTarget.get(targetId)) {
 
                     correspondences.add(correspondence);
-                    // remove from lookup once added as correspondence
-                    sourceLookup.remove(correspondence.getSource());
-                    targetLookup.remove(correspondence.getTarget());
-                    if (sourceLookup.isEmpty() || targetLookup.isEmpty())
+                    // mark once added as correspondence
+                    usedSource.set(sourceId);
+                    usedTarget.set(targetId);
+                    unusedSourceCount--;
+                    unusedTargetCount--;
+                    if (unusedSourceCount == 0 || unusedTargetCount == 0)
                         return correspondences;
                 }
             }
@@ -366,6 +517,7 @@ public class ImageDataClusteringMapper
                 Match match = resultMap.get(transform);
                 TEXT_KEY.set(match.toString());
                 context.write(TEXT_KEY, NullWritable.get());
+                matchesEmitted++;
             }
         }
     }
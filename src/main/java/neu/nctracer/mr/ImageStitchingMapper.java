@@ -1,6 +1,7 @@
 package neu.nctracer.mr;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
@@ -9,13 +10,13 @@ import org.apache.hadoop.mapreduce.Mapper;
 import neu.nctracer.conf.cli.CLIConfigurationManager;
 import neu.nctracer.conf.cli.ConfigurationParams;
 import neu.nctracer.data.DataObject;
-import neu.nctracer.data.ImageData;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.dm.PointStackRegistry;
+import neu.nctracer.dm.PointStackRegistry.LoadTimes;
 import neu.nctracer.exception.HdfsException;
 import neu.nctracer.exception.ParsingException;
 import neu.nctracer.log.LogManager;
 import neu.nctracer.log.Logger;
-import neu.nctracer.utils.DataParser;
-import neu.nctracer.utils.HdfsFileUtils;
 
 /**
  * Generic Mapper class to perform setup activity for mapreduce jobs
@@ -36,8 +37,12 @@ public abstract class ImageStitchingMapper<IN_KEY, IN_VAL, OUT_KEY, OUT_VAL>
 
     protected Logger logger = null;
 
-    private List<DataObject> sourceImageData = null;
-    private List<DataObject> targetImageData = null;
+    private PointStack sourceImageData = null;
+    private PointStack targetImageData = null;
+
+    // data object views of the stacks created on first request
+    private List<DataObject> sourceDataObjects = null;
+    private List<DataObject> targetDataObjects = null;
     protected Configuration conf = null;
 
     protected ConfigurationParams params = null;
@@ -50,6 +55,7 @@ public abstract class ImageStitchingMapper<IN_KEY, IN_VAL, OUT_KEY, OUT_VAL>
     protected void
               setup(Mapper<IN_KEY, IN_VAL, OUT_KEY, OUT_VAL>.Context context) throws IOException,
                                                                               InterruptedException {
+        long start = System.nanoTime();
         super.setup(context);
         setDefaultLogger();
 
@@ -62,6 +68,8 @@ public abstract class ImageStitchingMapper<IN_KEY, IN_VAL, OUT_KEY, OUT_VAL>
         } catch (ParsingException exp) {
             throw new HdfsException("Error parsing configuration parameters", exp);
         }
+        context.getCounter(StitchingCounters.SETUP_MILLIS)
+               .increment((System.nanoTime() - start) / 1000000);
     }
 
     protected void readImageData() throws ParsingException, HdfsException {
@@ -76,15 +84,45 @@ public abstract class ImageStitchingMapper<IN_KEY, IN_VAL, OUT_KEY, OUT_VAL>
                                                + HdfsConstants.TARGET_IMAGE_FILE_NAME
                                                + "]");
         
-        String sourceFileData = HdfsFileUtils.readFileAsString(conf, sourceFileName, false);
-        String targetFileData = HdfsFileUtils.readFileAsString(conf, targetFileName, false);
-        sourceImageData = DataParser.parseData(sourceFileData, ImageData.class);
-        targetImageData = DataParser.parseData(targetFileData, ImageData.class);
+        // files can be in text or binary format. Files are read only once
+        // and shared by all the mappers running in this JVM
+        boolean singlePrecision = isSinglePrecision();
+        sourceImageData = PointStackRegistry.acquire(conf, sourceFileName, singlePrecision);
+        targetImageData = PointStackRegistry.acquire(conf, targetFileName, singlePrecision);
 
         logger.info("Successfully read source and target image data files from distributed cache.");
 
     }
 
+    /**
+     * Releases image data shared with other mappers and publishes time spent
+     * loading the stacks and indexes
+     */
+    @Override
+    protected void
+              cleanup(Mapper<IN_KEY, IN_VAL, OUT_KEY, OUT_VAL>.Context context) throws IOException,
+                                                                                InterruptedException {
+        // indexes are built lazily, thus load times are drained only now
+        LoadTimes loadTimes = PointStackRegistry.drainLoadTimes();
+        context.getCounter(StitchingCounters.STACK_READ_MILLIS)
+               .increment(loadTimes.getReadNanos() / 1000000);
+        context.getCounter(StitchingCounters.STACK_PARSE_MILLIS)
+               .increment(loadTimes.getParseNanos() / 1000000);
+        context.getCounter(StitchingCounters.INDEX_BUILD_MILLIS)
+               .increment(loadTimes.getIndexNanos() / 1000000);
+
+        if (null != sourceImageData)
+            PointStackRegistry.release(sourceImageData);
+        if (null != targetImageData)
+            PointStackRegistry.release(targetImageData);
+        sourceImageData = null;
+        targetImageData = null;
+        sourceDataObjects = null;
+        targetDataObjects = null;
+
+        super.cleanup(context);
+    }
+
     protected void parseConfigurableParams() throws ParsingException {
         this.params = CLIConfigurationManager.getHandler().getConfigurationParamsInstance();
         String[] strings = this.conf.getStrings("configurable.params");
@@ -97,12 +135,32 @@ public abstract class ImageStitchingMapper<IN_KEY, IN_VAL, OUT_KEY, OUT_VAL>
         LogManager.getLogManager().setDefaultLogger(logger);
     }
 
-    protected List<DataObject> getSourceDataObjects() {
+    /**
+     * Checks if client asked for coordinates in single precision (see
+     * {@link PointStack#PARAM_PRECISION})
+     */
+    protected boolean isSinglePrecision() {
+        return PointStack.isSinglePrecision(params.getParam(PointStack.PARAM_PRECISION, "double"));
+    }
+
+    protected PointStack getSourceStack() {
         return sourceImageData;
     }
 
-    protected List<DataObject> getTargetDataObjects() {
+    protected PointStack getTargetStack() {
         return targetImageData;
     }
+
+    protected List<DataObject> getSourceDataObjects() {
+        if (null == sourceDataObjects)
+            sourceDataObjects = new ArrayList<>(sourceImageData.asList());
+        return sourceDataObjects;
+    }
+
+    protected List<DataObject> getTargetDataObjects() {
+        if (null == targetDataObjects)
+            targetDataObjects = new ArrayList<>(targetImageData.asList());
+        return targetDataObjects;
+    }
 }
 
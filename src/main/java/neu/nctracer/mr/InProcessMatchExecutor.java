@@ -0,0 +1,233 @@
+package neu.nctracer.mr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.Match;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.dm.CandidateGenerator;
+import neu.nctracer.dm.MatchCalculator;
+import neu.nctracer.dm.TopKMatches;
+import neu.nctracer.dm.TranslationMatchCalculator;
+import neu.nctracer.exception.HdfsException;
+import neu.nctracer.exception.ReflectionUtilsException;
+import neu.nctracer.log.LogManager;
+import neu.nctracer.log.Logger;
+import neu.nctracer.utils.ReflectionUtils;
+
+/**
+ * Evaluates candidate translations of the point-to-point algorithm on a
+ * thread pool of the client JVM, without Hadoop. Used for stack pairs small
+ * enough that job submission would take longer than the computation (see
+ * {@link ExecutionMode#INPROCESS}).<br>
+ *
+ * Does the same work as the mappers, combiner and reducer of the mapreduce
+ * job: every thread keeps its own <tt>K</tt> best matches, and the threads
+ * share the score bound used for early abandonment unless suppression is
+ * enabled (see {@link TopKMatches#isThresholdShareable()}). Results of the threads
+ * are merged into <tt>K</tt> best matches ranked by score.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class InProcessMatchExecutor {
+
+    // candidates claimed by a thread at once
+    private static final int CHUNK_SIZE = 64;
+
+    private final Logger logger = LogManager.getLogManager().getDefaultLogger();
+
+    private final ConfigurationParams params;
+    private final int numThreads;
+
+    // best score bound found by any of the threads
+    private double sharedBound = Double.NEGATIVE_INFINITY;
+
+    // same as the mappers, threads stop once K matches reach target score
+    private final double targetScore;
+    private volatile boolean targetReached = false;
+    private final boolean singlePrecision;
+
+    public InProcessMatchExecutor(ConfigurationParams params, int numThreads) {
+        this.params = params;
+        this.numThreads = Math.max(1, numThreads);
+
+        String target = params.getParam(BestScoreStore.PARAM_TARGET_SCORE, null);
+        this.targetScore = (null == target) ? Double.POSITIVE_INFINITY : Double.parseDouble(target);
+        this.singlePrecision = PointStack.isSinglePrecision(params.getParam(PointStack.PARAM_PRECISION,
+                                                                            "double"));
+    }
+
+    /**
+     * Evaluates all the candidates of the generator class. Every thread sets
+     * up its own generator instance
+     */
+    public List<Match> run(final PointStack source,
+                           final PointStack target,
+                           final Class<? extends CandidateGenerator> generatorClass,
+                           long numCandidates) throws HdfsException {
+        List<Worker> workers = new ArrayList<>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            final CandidateGenerator generator;
+            try {
+                generator = ReflectionUtils.instantiate(generatorClass.getName(),
+                                                        CandidateGenerator.class);
+            } catch (ReflectionUtilsException e) {
+                throw new HdfsException("Class ["
+                                        + generatorClass.getName()
+                                        + "] cannot be instantiated",
+                                        e);
+            }
+            generator.setup(source, target, params);
+
+            workers.add(new Worker(source, target) {
+                private final DataTransformation<DataObject> candidate = new DataTransformation<>();
+
+                @Override
+                DataTransformation<DataObject> candidate(long index) {
+                    generator.generate(index, candidate);
+                    return candidate;
+                }
+            });
+        }
+        return run(workers, numCandidates);
+    }
+
+    /**
+     * Evaluates the given candidates
+     */
+    public List<Match> run(PointStack source,
+                           PointStack target,
+                           final List<DataTransformation<DataObject>> candidates) throws HdfsException {
+        List<Worker> workers = new ArrayList<>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            workers.add(new Worker(source, target) {
+                @Override
+                DataTransformation<DataObject> candidate(long index) {
+                    return candidates.get((int) index);
+                }
+            });
+        }
+        return run(workers, candidates.size());
+    }
+
+    private List<Match> run(List<Worker> workers, long numCandidates) throws HdfsException {
+        long start = System.currentTimeMillis();
+        AtomicLong nextCandidate = new AtomicLong();
+        for (Worker worker : workers) {
+            worker.init(nextCandidate, numCandidates);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+        TopKMatches bestMatches = createTopKMatches();
+        try {
+            List<Future<TopKMatches>> results = new ArrayList<>(workers.size());
+            for (Worker worker : workers) {
+                results.add(pool.submit(worker));
+            }
+            // merge the same way combiner and reducer do
+            for (Future<TopKMatches> result : results) {
+                for (Match match : result.get().getRankedMatches()) {
+                    bestMatches.offer(match);
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new HdfsException("Error while evaluating candidate translations.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HdfsException("Interrupted while evaluating candidate translations.", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        logger.info("Evaluated "
+                    + numCandidates
+                    + " candidate translation(s) in-process using "
+                    + workers.size()
+                    + " thread(s) in "
+                    + (System.currentTimeMillis() - start)
+                    + " ms.");
+        return bestMatches.getRankedMatches();
+    }
+
+    private TopKMatches createTopKMatches() {
+        return new TopKMatches(Integer.parseInt(params.getParam(TopKMatches.PARAM_TOP_K, "1")),
+                               Double.parseDouble(params.getParam(TopKMatches.PARAM_SUPPRESSION_RADIUS,
+                                                                  "0.0")));
+    }
+
+    private MatchCalculator createMatchCalculator() {
+        String className = params.getParam("match.calculator.class",
+                                           TranslationMatchCalculator.class.getName());
+        try {
+            return ReflectionUtils.instantiate(className, MatchCalculator.class);
+        } catch (ReflectionUtilsException e) {
+            logger.warn("Class ["
+                        + className
+                        + "] specified as parameter to [match.calculator.class] cannot be instantiated");
+            return new TranslationMatchCalculator();
+        }
+    }
+
+    private synchronized double shareBound(double bound) {
+        sharedBound = Math.max(sharedBound, bound);
+        return sharedBound;
+    }
+
+    /**
+     * Evaluates chunks of candidates till all the candidates are claimed
+     */
+    private abstract class Worker implements Callable<TopKMatches> {
+        private final PointStack source;
+        private final PointStack target;
+        private AtomicLong nextCandidate;
+        private long numCandidates;
+
+        Worker(PointStack source, PointStack target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        void init(AtomicLong nextCandidate, long numCandidates) {
+            this.nextCandidate = nextCandidate;
+            this.numCandidates = numCandidates;
+        }
+
+        abstract DataTransformation<DataObject> candidate(long index);
+
+        @Override
+        public TopKMatches call() {
+            MatchCalculator matchCalculator = createMatchCalculator();
+            matchCalculator.setup(params);
+            TopKMatches bestMatches = createTopKMatches();
+
+            long start;
+            while (!targetReached && (start = nextCandidate.getAndAdd(CHUNK_SIZE)) < numCandidates) {
+                long end = Math.min(numCandidates, start + CHUNK_SIZE);
+                for (long index = start; index < end; index++) {
+                    Match match = matchCalculator.findMatch(source, target, candidate(index));
+                    match.setSinglePrecision(singlePrecision);
+                    bestMatches.offer(match);
+                }
+                double bound = bestMatches.getThreshold();
+                if (bestMatches.isThresholdShareable())
+                    bound = shareBound(bound);
+                matchCalculator.setMinimumScore(bound);
+                if (bound >= targetScore && !targetReached) {
+                    targetReached = true;
+                    logger.info("Target score [" + targetScore + "] reached. Skipping remaining candidates.");
+                }
+            }
+            return bestMatches;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package neu.nctracer.mr;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Histogram of latencies with power-of-two buckets of microseconds. Bucket
+ * <tt>i</tt> counts latencies in <tt>[2^(i-1), 2^i)</tt> microseconds. Buckets
+ * are published as Hadoop counters of group {@link #COUNTER_GROUP}, thus
+ * histograms of all the tasks are merged by the framework and percentiles of
+ * the whole job can be computed from the job counters.<br>
+ *
+ * Thread safe.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class LatencyHistogram {
+
+    public static final String COUNTER_GROUP = "Match latency (microseconds)";
+
+    // last bucket holds everything above ~35 minutes
+    private static final int NUM_BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucketOf(nanos / 1000));
+    }
+
+    /**
+     * Adds counts recorded so far to the counters of the task and resets them
+     */
+    public void publish(TaskAttemptContext context) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long count = buckets.getAndSet(i, 0);
+            if (count > 0)
+                context.getCounter(COUNTER_GROUP, bucketName(i)).increment(count);
+        }
+    }
+
+    /**
+     * Summarizes histogram held by the job counters as percentiles. Every
+     * percentile is reported as upper bound of its bucket
+     *
+     * @return summary or null if no latency was recorded
+     */
+    public static String summarize(Counters counters) {
+        CounterGroup group = counters.getGroup(COUNTER_GROUP);
+        long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for (Counter counter : group) {
+            int bucket = parseBucketName(counter.getName());
+            if (bucket >= 0) {
+                counts[bucket] += counter.getValue();
+                total += counter.getValue();
+            }
+        }
+        if (total == 0)
+            return null;
+
+        double[] percentiles = { 0.5, 0.9, 0.99, 1.0 };
+        String[] names = { "p50", "p90", "p99", "max" };
+        StringBuilder summary = new StringBuilder();
+        long seen = 0;
+        int next = 0;
+        for (int bucket = 0; bucket < NUM_BUCKETS && next < percentiles.length; bucket++) {
+            seen += counts[bucket];
+            while (next < percentiles.length && seen >= Math.ceil(percentiles[next] * total)) {
+                if (summary.length() > 0)
+                    summary.append(", ");
+                summary.append(names[next]).append(" < ").append(1L << bucket).append(" us");
+                next++;
+            }
+        }
+        return summary.append(" (").append(total).append(" samples)").toString();
+    }
+
+    private static int bucketOf(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, NUM_BUCKETS - 1);
+    }
+
+    /**
+     * Names sort in the order of the buckets
+     */
+    private static String bucketName(int bucket) {
+        return String.format("< 2^%02d", bucket);
+    }
+
+    private static int parseBucketName(String name) {
+        if (!name.startsWith("< 2^"))
+            return -1;
+        try {
+            int bucket = Integer.parseInt(name.substring(4));
+            return (bucket >= 0 && bucket < NUM_BUCKETS) ? bucket : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
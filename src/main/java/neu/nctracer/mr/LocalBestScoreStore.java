@@ -0,0 +1,60 @@
+package neu.nctracer.mr;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Stand-in for {@link HdfsBestScoreStore} keeping the marker files in a local
+ * directory. Useful when all the map tasks run on one machine (e.g. local job
+ * runner) or the directory is on a shared mount.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class LocalBestScoreStore implements BestScoreStore {
+
+    private File dir = null;
+    private String publisherId = null;
+
+    // marker of the last published score
+    private File marker = null;
+
+    @Override
+    public void setup(Configuration conf, String dir, String publisherId) throws IOException {
+        this.dir = new File(dir);
+        this.publisherId = publisherId;
+        if (!this.dir.isDirectory() && !this.dir.mkdirs() && !this.dir.isDirectory())
+            throw new IOException("Cannot create directory [" + dir + "]");
+    }
+
+    @Override
+    public void publish(double score) throws IOException {
+        File newMarker = new File(dir, HdfsBestScoreStore.toMarkerName(publisherId, score));
+        if (!newMarker.exists() && !newMarker.createNewFile() && !newMarker.exists())
+            throw new IOException("Cannot create file [" + newMarker + "]");
+
+        if (null != marker && !marker.equals(newMarker))
+            marker.delete();
+        marker = newMarker;
+    }
+
+    @Override
+    public double readBest() throws IOException {
+        String[] names = dir.list();
+        if (null == names)
+            throw new IOException("Cannot list directory [" + dir + "]");
+
+        double best = Double.NEGATIVE_INFINITY;
+        for (String name : names) {
+            best = Math.max(best, HdfsBestScoreStore.parseMarkerName(name));
+        }
+        return best;
+    }
+
+    @Override
+    public void close() {
+        // markers are kept for tasks starting later
+    }
+}
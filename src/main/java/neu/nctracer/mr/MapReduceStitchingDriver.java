@@ -1,26 +1,46 @@
 package neu.nctracer.mr;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 
 import neu.nctracer.conf.ConfigurationConstants;
 import neu.nctracer.conf.ConfigurationManager;
 import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.dm.KdTreeFile;
+import neu.nctracer.dm.KdTrees;
+import neu.nctracer.dm.PointStackKdTree;
+import neu.nctracer.dm.TranslationMatchCalculator;
 import neu.nctracer.exception.ConfigurationException;
 import neu.nctracer.exception.HdfsException;
 import neu.nctracer.exception.InvalidConfigKeyException;
+import neu.nctracer.exception.ParsingException;
 import neu.nctracer.log.LogManager;
 import neu.nctracer.log.Logger;
+import neu.nctracer.utils.BinaryStackFile;
+import neu.nctracer.utils.DataParser;
 import neu.nctracer.utils.HdfsFileUtils;
+import neu.nctracer.utils.HdfsStagingArea;
+import neu.nctracer.utils.StackTextParser;
 
 /**
  * Base class to perform common activities for all map-reduce driver classes
@@ -30,14 +50,39 @@ import neu.nctracer.utils.HdfsFileUtils;
  */
 public abstract class MapReduceStitchingDriver implements ImageStitcher {
 
+    /**
+     * Parameters that can be configured by the client
+     */
+    // auto, cluster, local, uber or inprocess (see ExecutionMode)
+    public static final String PARAM_EXECUTION_MODE = "execution.mode";
+    // auto mode runs jobs with fewer neighbor queries in-process
+    public static final String PARAM_INPROCESS_MAX_QUERIES = "execution.inprocess.max.queries";
+    // auto mode runs jobs with fewer neighbor queries using LocalJobRunner
+    public static final String PARAM_LOCAL_MAX_QUERIES = "execution.local.max.queries";
+
     protected Logger logger = LogManager.getLogManager().getDefaultLogger();
 
     protected Configuration conf;
+    // run-scoped directory holding all the files generated by the run
     protected String hdfsBaseDirPath;
+    protected HdfsStagingArea stagingArea;
     protected String hdfsOutputPath;
     protected String localOutputPath;
     protected String hdfsSourceImagePath;
     protected String hdfsTargetImagePath;
+    // threads parsing local text stacks on the client
+    protected int parserThreads;
+
+    // local target stack used to build the index shipped to the mappers
+    private String localTargetImagePath;
+    private boolean prebuiltIndex;
+    private String hdfsTargetIndexPath = null;
+    private boolean deleteRunDir;
+
+    // mode requested by the client, null for automatic selection
+    private ExecutionMode requestedMode;
+    private long inProcessMaxQueries;
+    private long localMaxQueries;
 
     private final Class<? extends MapReduceStitchingDriver> driverClass;
 
@@ -46,23 +91,44 @@ public abstract class MapReduceStitchingDriver implements ImageStitcher {
     }
 
     /**
-     * Sets up HDFS base directory required to perform any mapreduce operation.
-     * This directory will hold all the files i.e. input, output directory etc.
+     * Sets up HDFS directories required to perform any mapreduce operation.
+     * Image files and jars are staged in the shared area under
+     * <tt>hdfs.main.dir</tt> (see {@link HdfsStagingArea}). A new run
+     * directory holds all the other files i.e. input, output directory etc.
      * required by the stitching jobs
      */
     @Override
     public void setup(ConfigurationParams params) throws HdfsException, IllegalArgumentException {
         this.conf = createConfiguration(params);
 
-        this.hdfsBaseDirPath = params.getParam("hdfs.main.dir");
-        createHdfsBaseDir(params.getParam("hdfs.dirs.delete"));
+        String hdfsMainDir = params.getParam("hdfs.main.dir", null);
+        if (null == hdfsMainDir || hdfsMainDir.isEmpty())
+            throw new IllegalArgumentException("Mandatory parameter [hdfs.main.dir] is not set. "
+                                               + "This parameter specifies HDFS directory to hold all the files.");
+
+        this.parserThreads = Integer.parseInt(params.getParam(StackTextParser.PARAM_THREADS,
+                                                              String.valueOf(Runtime.getRuntime()
+                                                                                    .availableProcessors())));
+
+        this.stagingArea = new HdfsStagingArea(conf, hdfsMainDir);
+        collectGarbage(params);
+
+        this.hdfsBaseDirPath = stagingArea.createRunDir(driverClass.getSimpleName());
+        this.deleteRunDir = Boolean.valueOf(params.getParam("hdfs.dirs.delete", "false"));
+        logger.debug("Created HDFS run directory - " + hdfsBaseDirPath);
 
         this.hdfsOutputPath = hdfsBaseDirPath
                               + Path.SEPARATOR
                               + driverClass.getSimpleName()
                               + "_hdfs-output-dir";
 
-        copyImageFilesToHdfs(params);
+        stageImageFiles(params);
+        this.prebuiltIndex = usesPrebuiltIndex(params);
+
+        this.requestedMode = ExecutionMode.parse(params.getParam(PARAM_EXECUTION_MODE, "auto"));
+        this.inProcessMaxQueries = Long.parseLong(params.getParam(PARAM_INPROCESS_MAX_QUERIES,
+                                                                  "2000000"));
+        this.localMaxQueries = Long.parseLong(params.getParam(PARAM_LOCAL_MAX_QUERIES, "50000000"));
 
         this.localOutputPath = params.getParam("local.output.path", null);
         if (null == localOutputPath || localOutputPath.isEmpty())
@@ -71,9 +137,13 @@ public abstract class MapReduceStitchingDriver implements ImageStitcher {
 
     }
 
-    private void copyImageFilesToHdfs(ConfigurationParams params) throws HdfsException,
-                                                                  IllegalArgumentException {
-        logger.debug("Copying all image files to HDFS dir - " + hdfsBaseDirPath);
+    /**
+     * Stages source and target image files on HDFS. Drivers working on other
+     * image files can override this method
+     */
+    protected void stageImageFiles(ConfigurationParams params) throws HdfsException,
+                                                               IllegalArgumentException {
+        logger.debug("Staging all image files on HDFS.");
 
         String localSourceImage = params.getParam("local.image.source.file", null);
         if (null == localSourceImage)
@@ -85,13 +155,186 @@ public abstract class MapReduceStitchingDriver implements ImageStitcher {
             throw new IllegalArgumentException("Mandatory parameter [local.image.target.file] is not set. "
                                                + "This parameter specifies path to target image file.");
 
-        this.hdfsSourceImagePath = HdfsFileUtils.copyFromLocal(localSourceImage,
-                                                               hdfsBaseDirPath,
-                                                               conf);
+        localSourceImage = convertToConfiguredFormat(params, localSourceImage);
+        localTargetImage = convertToConfiguredFormat(params, localTargetImage);
+
+        this.hdfsSourceImagePath = stagingArea.stageFile(localSourceImage);
+        this.hdfsTargetImagePath = stagingArea.stageFile(localTargetImage);
+        this.localTargetImagePath = localTargetImage;
+    }
+
+    /**
+     * Index can be shipped only for the KD-tree implementation of nearest
+     * neighbors
+     */
+    private boolean usesPrebuiltIndex(ConfigurationParams params) {
+        String nearestNeighborClass = params.getParam(TranslationMatchCalculator.PARAM_NEAREST_NEIGHBOR_CLASS,
+                                                      KdTrees.class.getName());
+        return Boolean.parseBoolean(params.getParam(KdTreeFile.PARAM_PREBUILT_INDEX, "true"))
+               && KdTrees.class.getName().equals(nearestNeighborClass);
+    }
+
+    /**
+     * Builds KD-tree over the target image stack and copies it to HDFS. Tree
+     * is built only once for all the jobs run by the driver
+     */
+    private String buildTargetIndex() throws HdfsException {
+        if (null != hdfsTargetIndexPath)
+            return hdfsTargetIndexPath;
+
+        try {
+            PointStack target = DataParser.parseStack(conf,
+                                                      localTargetImagePath,
+                                                      false,
+                                                      false,
+                                                      parserThreads);
+            PointStackKdTree tree = new PointStackKdTree(target);
+
+            String fileName = new File(localTargetImagePath).getName() + KdTreeFile.FILE_EXTENSION;
+            File indexFile = createTempFile(fileName);
+            KdTreeFile.write(tree, indexFile.getAbsolutePath());
+
+            this.hdfsTargetIndexPath = stagingArea.stageFile(indexFile.getAbsolutePath());
+            logger.debug("Built KD-tree over target image stack ["
+                         + localTargetImagePath
+                         + "] at location ["
+                         + hdfsTargetIndexPath
+                         + "]");
+            return hdfsTargetIndexPath;
+        } catch (IOException e) {
+            throw new HdfsException("Error building index over target image stack.", e);
+        } catch (ParsingException e) {
+            throw new HdfsException("Error building index over target image stack.", e);
+        }
+    }
+
+    /**
+     * Returns local file with the given name in a new temporary directory.
+     * Files generated from different inputs with same name (or by concurrent
+     * runs) never overwrite each other, while the name is kept so that the
+     * staged file can be reused by later runs. Both are deleted on exit
+     */
+    private static File createTempFile(String fileName) throws IOException {
+        File dir = Files.createTempDirectory("nctracer").toFile();
+        dir.deleteOnExit();
+        File file = new File(dir, fileName);
+        // files are deleted on exit in reverse order of registration
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Converts the image file to binary format if asked for with parameter
+     * <tt>image.stack.format</tt>. Returns path to the file to be staged
+     */
+    protected String convertToConfiguredFormat(ConfigurationParams params,
+                                               String localImagePath) throws HdfsException {
+        if (!"binary".equalsIgnoreCase(params.getParam("image.stack.format", "text")))
+            return localImagePath;
+
+        String precisionParam = params.getParam("image.stack.precision", "double");
+        int precision = "float".equalsIgnoreCase(precisionParam) ? BinaryStackFile.SINGLE_PRECISION
+                                                                 : BinaryStackFile.DOUBLE_PRECISION;
+        return convertToBinaryStack(localImagePath, precision);
+    }
+
+    /**
+     * Converts local text image stack file to binary format so that mappers
+     * can memory-map it instead of parsing. Returns path to the binary file
+     */
+    private String convertToBinaryStack(String localImagePath, int precision) throws HdfsException {
+        try {
+            if (BinaryStackFile.isBinaryStack(localImagePath))
+                return localImagePath;
+
+            String fileName = new File(localImagePath).getName() + BinaryStackFile.FILE_EXTENSION;
+            File binaryFile = createTempFile(fileName);
+            BinaryStackFile.convert(localImagePath,
+                                    binaryFile.getAbsolutePath(),
+                                    precision,
+                                    parserThreads);
+
+            logger.debug("Converted image stack file ["
+                         + localImagePath
+                         + "] to binary format at location ["
+                         + binaryFile.getAbsolutePath()
+                         + "]");
+            return binaryFile.getAbsolutePath();
+        } catch (IOException e) {
+            throw new HdfsException("Error converting image stack file [" + localImagePath + "]",
+                                    e);
+        } catch (ParsingException e) {
+            throw new HdfsException("Error converting image stack file [" + localImagePath + "]",
+                                    e);
+        }
+    }
+
+    /**
+     * Returns mode requested by the client or picks one from the estimated
+     * size of the job. Small jobs run in-process (if supported by the
+     * driver), medium ones using LocalJobRunner and the rest on the cluster
+     *
+     * @param estimatedQueries
+     *            - nearest neighbor queries the job will run, negative if
+     *            unknown
+     * @param inProcessSupported
+     *            - whether the driver can compute results without Hadoop
+     */
+    protected ExecutionMode selectExecutionMode(long estimatedQueries, boolean inProcessSupported) {
+        ExecutionMode mode = requestedMode;
+        if (null == mode) {
+            if (estimatedQueries < 0)
+                mode = ExecutionMode.CLUSTER;
+            else if (inProcessSupported && estimatedQueries <= inProcessMaxQueries)
+                mode = ExecutionMode.INPROCESS;
+            else if (estimatedQueries <= localMaxQueries)
+                mode = ExecutionMode.LOCAL;
+            else
+                mode = ExecutionMode.CLUSTER;
+        } else if (mode == ExecutionMode.INPROCESS && !inProcessSupported) {
+            logger.warn("Job of ["
+                        + driverClass.getSimpleName()
+                        + "] cannot run in-process. Running it using LocalJobRunner.");
+            mode = ExecutionMode.LOCAL;
+        }
+
+        String reason;
+        if (null != requestedMode)
+            reason = "requested by the client";
+        else if (estimatedQueries < 0)
+            reason = "size of the job is unknown";
+        else
+            reason = "estimated " + estimatedQueries + " neighbor queries";
+        logger.info("Running job of ["
+                    + driverClass.getSimpleName()
+                    + "] in execution mode ["
+                    + mode
+                    + "], "
+                    + reason
+                    + ".");
+        return mode;
+    }
 
-        this.hdfsTargetImagePath = HdfsFileUtils.copyFromLocal(localTargetImage,
-                                                               hdfsBaseDirPath,
-                                                               conf);
+    /**
+     * Configures the job to run in the given mode. Output is written to the
+     * same HDFS location in every mode
+     */
+    protected void configureExecutionMode(Job job, ExecutionMode mode) {
+        Configuration jobConf = job.getConfiguration();
+        switch (mode) {
+        case LOCAL:
+            jobConf.set("mapreduce.framework.name", "local");
+            jobConf.setInt("mapreduce.local.map.tasks.maximum",
+                           Runtime.getRuntime().availableProcessors());
+            break;
+        case UBER:
+            jobConf.setBoolean("mapreduce.job.ubertask.enable", true);
+            // job size is already known to be small, let all the splits in
+            jobConf.setInt("mapreduce.job.ubertask.maxmaps", Integer.MAX_VALUE);
+            break;
+        default:
+            break;
+        }
     }
 
     protected final Job createJobInstance() throws IOException {
@@ -100,19 +343,18 @@ public abstract class MapReduceStitchingDriver implements ImageStitcher {
         return job;
     }
 
-    private void createHdfsBaseDir(String deleteOutputDir) throws HdfsException {
-        if (Boolean.valueOf(deleteOutputDir)) {
-            logger.debug("Deleting HDFS base directory - " + hdfsBaseDirPath);
-            HdfsFileUtils.delete(hdfsBaseDirPath, true, conf, true);
-            logger.info("Successfully deleted HDFS base directory - " + hdfsBaseDirPath);
-
-        } else if (HdfsFileUtils.isDir(hdfsBaseDirPath, conf, true)) {
-            throw new HdfsException("HDFS base directory aready exists - "
-                                    + hdfsBaseDirPath
-                                    + ". Cannot start mapreduce job to perform image stitching.");
-        }
-
-        HdfsFileUtils.createDir(hdfsBaseDirPath, false, conf, true);
+    /**
+     * Deletes old run directories and staged files not used for a while
+     */
+    private void collectGarbage(ConfigurationParams params) throws HdfsException {
+        long runMaxAgeHours = Long.parseLong(params.getParam(HdfsStagingArea.PARAM_RUN_MAX_AGE_HOURS,
+                                                             "24"));
+        long stagedMaxAgeDays = Long.parseLong(params.getParam(HdfsStagingArea.PARAM_STAGED_MAX_AGE_DAYS,
+                                                               "7"));
+        int deleted = stagingArea.collectGarbage(TimeUnit.HOURS.toMillis(runMaxAgeHours),
+                                                 TimeUnit.DAYS.toMillis(stagedMaxAgeDays));
+        if (deleted > 0)
+            logger.info("Deleted " + deleted + " old run or staging directories from HDFS.");
     }
 
     /**
@@ -152,10 +394,21 @@ public abstract class MapReduceStitchingDriver implements ImageStitcher {
         job.addCacheFile(targetUri);
         job.getConfiguration().set(HdfsConstants.SOURCE_IMAGE_FILE_NAME, sourcePath.getName());
         job.getConfiguration().set(HdfsConstants.TARGET_IMAGE_FILE_NAME, targetPath.getName());
+
+        if (prebuiltIndex) {
+            // mappers memory-map the tree instead of building it
+            Path indexPath = HdfsFileUtils.getPath(conf, buildTargetIndex(), true);
+            job.addCacheFile(new URI(indexPath + "#" + indexPath.getName()));
+            job.getConfiguration().set(KdTreeFile.indexFileKey(targetPath.getName()),
+                                       indexPath.getName());
+        }
     }
 
     /**
-     * Add all the dependent jar files to distributed cache
+     * Add all the dependent jar files to distributed cache. Jars are staged
+     * once on HDFS and shared by all the jobs and runs (see
+     * {@link HdfsStagingArea#stageJar(String)}), instead of being uploaded
+     * with every job
      * 
      * @param job
      * @throws HdfsException
@@ -166,26 +419,20 @@ public abstract class MapReduceStitchingDriver implements ImageStitcher {
             ConfigurationManager handler = ConfigurationManager.getConfigurationManager();
             String projectHome = handler.getConfig(ConfigurationConstants.PROJECT_BASE_DIR);
 
-            Configuration conf = job.getConfiguration();
-            FileSystem fs = FileSystem.getLocal(conf);
-
             File libDir = new File(projectHome, "/lib");
-            String localJars = cacheLocalJars(libDir, fs);
-            if (null == localJars || localJars.isEmpty()) {
+            File[] jars = listLocalJars(libDir);
+            if (jars.length == 0) {
                 logger.warn("No local dependent jar files found at location ["
                             + libDir.getAbsolutePath()
                             + "]");
                 return;
             }
 
-            final String hadoopTmpJars = "tmpjars";
-            String tmpJars = (null == conf.get(hadoopTmpJars)) ? localJars
-                                                               : (conf.get(hadoopTmpJars)
-                                                                  + ","
-                                                                  + localJars);
-
-            conf.set(hadoopTmpJars, tmpJars);
-            logger.debug("Dependent jar files added successfully. [" + localJars + "]");
+            for (File jar : jars) {
+                String stagedJar = stagingArea.stageJar(jar.getAbsolutePath());
+                job.addFileToClassPath(HdfsFileUtils.getPath(conf, stagedJar, true));
+            }
+            logger.debug(jars.length + " dependent jar files added successfully.");
         } catch (ConfigurationException e) {
             throw new HdfsException(e.getMessage(), e);
         } catch (InvalidConfigKeyException e) {
@@ -193,39 +440,50 @@ public abstract class MapReduceStitchingDriver implements ImageStitcher {
         }
     }
 
-    protected String cacheLocalJars(File libDir, FileSystem fs) {
-        StringBuilder builder = new StringBuilder();
-
+    protected File[] listLocalJars(File libDir) {
         if (!libDir.isDirectory())
-            return null;
+            return new File[0];
 
-        for (File file : libDir.listFiles()) {
-            if (!file.getName().endsWith(".jar"))
-                continue;
+        return libDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(".jar");
+            }
+        });
+    }
 
-            Path path = new Path(file.toString());
-            @SuppressWarnings("deprecation")
-            String qualified = path.makeQualified(fs).toString();
-            builder.append(qualified).append(",");
+    /**
+     * Prints stitching counters and match latency percentiles of the
+     * completed job (see {@link StitchingCounters})
+     */
+    protected void logCounters(Job job) throws IOException {
+        Counters counters = job.getCounters();
+        if (null == counters)
+            return;
+
+        StringBuilder builder = new StringBuilder("Counters of mapreduce job [" + job.getJobID() + "]:");
+        for (StitchingCounters counter : StitchingCounters.values()) {
+            builder.append("\n    ")
+                   .append(counter.name())
+                   .append(" = ")
+                   .append(counters.findCounter(counter).getValue());
         }
 
-        builder.delete(builder.length() - 1, builder.length());
-        return builder.toString();
+        String latency = LatencyHistogram.summarize(counters);
+        if (null != latency)
+            builder.append("\n    MATCH_LATENCY = ").append(latency);
+        logger.info(builder.toString());
     }
 
     protected void cleanup(Job job, boolean status) throws IOException, HdfsException {
+        logCounters(job);
         if (status) {
             if (job.isSuccessful()) {
                 logger.info("Mapreduce job with id ["
                             + job.getJobID()
                             + "] completed successfully.");
 
-                if (HdfsFileUtils.isDir(localOutputPath, conf, false)) {
-                    HdfsFileUtils.delete(localOutputPath, true, conf, false);
-                }
-                HdfsFileUtils.copyToLocal(hdfsOutputPath, localOutputPath, conf);
-                logger.info("HDFS output files copied to local file system at location - "
-                            + new File(localOutputPath).getAbsolutePath());
+                copyOutputToLocal();
             } else {
                 logger.error("Mapreduce job completed with error. Check hadoop logs for details.");
             }
@@ -233,5 +491,69 @@ public abstract class MapReduceStitchingDriver implements ImageStitcher {
             logger.error("Mapreduce job terminated with errors. Check hadoop logs for details.");
         }
     }
-}
 
+    /**
+     * Copies output of the run from HDFS to the local output path and deletes
+     * the run directory if asked for
+     */
+    protected void copyOutputToLocal() throws HdfsException {
+        if (HdfsFileUtils.isDir(localOutputPath, conf, false)) {
+            HdfsFileUtils.delete(localOutputPath, true, conf, false);
+        }
+        HdfsFileUtils.copyToLocal(hdfsOutputPath, localOutputPath, conf);
+        logger.info("HDFS output files copied to local file system at location - "
+                    + new File(localOutputPath).getAbsolutePath());
+
+        if (deleteRunDir) {
+            HdfsFileUtils.delete(hdfsBaseDirPath, true, conf, true);
+            logger.debug("Deleted HDFS run directory - " + hdfsBaseDirPath);
+        }
+    }
+
+    /**
+     * Reads records written by the reducers to the HDFS output directory, one
+     * record per line
+     */
+    protected List<String> readOutput() throws HdfsException {
+        List<String> records = new ArrayList<>();
+        for (Path file : HdfsFileUtils.listFilePaths(hdfsOutputPath, conf, true)) {
+            if (!file.getName().startsWith("part-"))
+                continue;
+
+            for (String line : HdfsFileUtils.readFileAsString(conf, file.toString(), true)
+                                            .split("\n")) {
+                if (!line.isEmpty())
+                    records.add(line);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Writes records to the HDFS output directory the same way a single
+     * reducer with <tt>TextOutputFormat</tt> does - one record per line in
+     * file <tt>part-r-00000</tt>, followed by the <tt>_SUCCESS</tt> marker.
+     * Used when results are computed without Hadoop
+     */
+    protected void writeOutput(List<?> records) throws HdfsException {
+        FileSystem fs = HdfsFileUtils.getFileSystem(conf, hdfsOutputPath, true);
+        Path outputDir = HdfsFileUtils.getPath(conf, hdfsOutputPath, true);
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(fs.create(new Path(outputDir, "part-r-00000"), true),
+                                            StandardCharsets.UTF_8);
+            for (Object record : records) {
+                writer.write(record.toString());
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            fs.create(new Path(outputDir, "_SUCCESS"), true).close();
+        } catch (IOException e) {
+            throw new HdfsException("Error writing output to HDFS directory [" + hdfsOutputPath + "]",
+                                    e);
+        } finally {
+            IOUtils.closeStream(writer);
+        }
+    }
+}
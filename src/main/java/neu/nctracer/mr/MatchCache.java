@@ -0,0 +1,522 @@
+package neu.nctracer.mr;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.IOUtils;
+
+import neu.nctracer.data.DataTransformation;
+
+/**
+ * Persistent cache of match scores, shared by all the runs on the same stacks
+ * with same matching parameters. Scores are keyed by the translation, quantized
+ * to a grid (see {@link #PARAM_QUANTUM}) and hashed to 64 bits. Besides exact
+ * scores, the cache records upper bounds of transformations abandoned early
+ * and transformations without any correspondences. Thus a rerun evaluates a
+ * transformation only if it may make it to the top <tt>K</tt>.<br>
+ *
+ * Cache is a directory of immutable segment files, each sorted by key and
+ * ending with an index of its blocks: <br>
+ * <tt>records (key long, score double, kind byte) | first key of every block
+ * (long) | number of records (long) | magic (long)</tt><br>
+ *
+ * Lookups read the block index of every segment upfront and load blocks on
+ * demand, keeping recently used blocks in an LRU cache. Every mapper thread
+ * writes its new entries to a new segment, and the driver merges all the
+ * segments into one once the job completes (see
+ * {@link #compact(Configuration, String)}).<br>
+ *
+ * Instances are not thread-safe.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class MatchCache {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // look up and record match scores in the persistent cache
+    public static final String PARAM_ENABLED = "match.cache";
+    // grid size translations are quantized to
+    public static final String PARAM_QUANTUM = "match.cache.quantum";
+    // number of blocks kept in memory by a mapper thread
+    public static final String PARAM_CACHED_BLOCKS = "match.cache.blocks";
+
+    // job configuration key holding directory of the cache, set by driver
+    public static final String CACHE_DIR = "match.cache.dir";
+
+    // kinds of cached scores
+    public static final byte EXACT = 0;
+    // true score is below the cached score
+    public static final byte UPPER_BOUND = 1;
+    // transformation has no correspondences
+    public static final byte EMPTY = 2;
+
+    private static final long MAGIC = 0x4e434d4341434831L;
+    private static final String SEGMENT_EXTENSION = ".seg";
+    private static final int RECORD_LENGTH = 17;
+    private static final int BLOCK_RECORDS = 1024;
+    private static final int TRAILER_LENGTH = 16;
+
+    private final FileSystem fs;
+    private final Path dir;
+    private final double quantum;
+    private final List<Segment> segments = new ArrayList<>();
+    private final LinkedHashMap<Long, Block> cachedBlocks;
+
+    // entries recorded by this instance, written by flush
+    private long[] newKeys = new long[1024];
+    private double[] newScores = new double[1024];
+    private byte[] newKinds = new byte[1024];
+    private int numNewEntries = 0;
+
+    /**
+     * Cached score along with its kind
+     */
+    public static class Entry {
+        private final double score;
+        private final byte kind;
+
+        Entry(double score, byte kind) {
+            this.score = score;
+            this.kind = kind;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+    }
+
+    /**
+     * Segment file opened for lookups
+     */
+    private static class Segment {
+        private final FSDataInputStream in;
+        private final long numRecords;
+        private final long[] firstKeys;
+
+        Segment(FSDataInputStream in, long numRecords, long[] firstKeys) {
+            this.in = in;
+            this.numRecords = numRecords;
+            this.firstKeys = firstKeys;
+        }
+    }
+
+    /**
+     * Records of a block, sorted by key
+     */
+    private static class Block {
+        private final long[] keys;
+        private final double[] scores;
+        private final byte[] kinds;
+
+        Block(int numRecords) {
+            this.keys = new long[numRecords];
+            this.scores = new double[numRecords];
+            this.kinds = new byte[numRecords];
+        }
+    }
+
+    /**
+     * Opens all the segments present in the directory
+     */
+    public MatchCache(Configuration conf,
+                      String dir,
+                      double quantum,
+                      final int maxCachedBlocks) throws IOException {
+        this.dir = new Path(dir);
+        this.fs = this.dir.getFileSystem(conf);
+        this.quantum = quantum;
+        this.cachedBlocks = new LinkedHashMap<Long, Block>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Block> eldest) {
+                return size() > maxCachedBlocks;
+            }
+        };
+
+        fs.mkdirs(this.dir);
+        for (Path path : listSegments(fs, this.dir)) {
+            segments.add(openSegment(fs, path));
+        }
+    }
+
+    /**
+     * Returns key of the translation quantized to the grid
+     */
+    public long key(DataTransformation<?> transformation) {
+        double[] translation = transformation.getTranslation();
+        long hash = 0xcbf29ce484222325L;
+        for (double component : translation) {
+            hash = (hash ^ Math.round(component / quantum)) * 0x100000001b3L;
+            hash = mix(hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Finalizer of 64-bit MurmurHash3
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Returns cached score of the key or null if none of the segments has it
+     */
+    public Entry lookup(long key) throws IOException {
+        Entry result = null;
+        for (int i = 0; i < segments.size(); i++) {
+            result = merge(result, lookup(i, key));
+        }
+        return result;
+    }
+
+    private Entry lookup(int segmentIndex, long key) throws IOException {
+        Segment segment = segments.get(segmentIndex);
+        int blockIndex = findBlock(segment.firstKeys, key);
+        if (blockIndex < 0)
+            return null;
+
+        Long blockId = ((long) segmentIndex << 32) | blockIndex;
+        Block block = cachedBlocks.get(blockId);
+        if (null == block) {
+            block = readBlock(segment, blockIndex);
+            cachedBlocks.put(blockId, block);
+        }
+
+        int index = Arrays.binarySearch(block.keys, key);
+        return (index < 0) ? null : new Entry(block.scores[index], block.kinds[index]);
+    }
+
+    /**
+     * Index of the last block starting at or before the key
+     */
+    private static int findBlock(long[] firstKeys, long key) {
+        int index = Arrays.binarySearch(firstKeys, key);
+        return (index >= 0) ? index : -index - 2;
+    }
+
+    private static Block readBlock(Segment segment, int blockIndex) throws IOException {
+        long first = (long) blockIndex * BLOCK_RECORDS;
+        int numRecords = (int) Math.min(BLOCK_RECORDS, segment.numRecords - first);
+        byte[] bytes = new byte[numRecords * RECORD_LENGTH];
+        segment.in.readFully(first * RECORD_LENGTH, bytes);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Block block = new Block(numRecords);
+        for (int i = 0; i < numRecords; i++) {
+            block.keys[i] = buffer.getLong();
+            block.scores[i] = buffer.getDouble();
+            block.kinds[i] = buffer.get();
+        }
+        return block;
+    }
+
+    /**
+     * Exact scores (and empty transformations) win over upper bounds. Of two
+     * upper bounds, the tighter one is kept
+     */
+    private static Entry merge(Entry first, Entry second) {
+        if (null == first)
+            return second;
+        if (null == second)
+            return first;
+        if (first.kind != UPPER_BOUND)
+            return first;
+        if (second.kind != UPPER_BOUND)
+            return second;
+        return (first.score <= second.score) ? first : second;
+    }
+
+    /**
+     * Records score to be written by the next {@link #flush(String)}
+     */
+    public void record(long key, double score, byte kind) {
+        if (numNewEntries == newKeys.length) {
+            newKeys = Arrays.copyOf(newKeys, numNewEntries * 2);
+            newScores = Arrays.copyOf(newScores, numNewEntries * 2);
+            newKinds = Arrays.copyOf(newKinds, numNewEntries * 2);
+        }
+        newKeys[numNewEntries] = key;
+        newScores[numNewEntries] = score;
+        newKinds[numNewEntries] = kind;
+        numNewEntries++;
+    }
+
+    /**
+     * Writes recorded entries to a new segment with the given name. Segment
+     * is written under a temporary name and renamed, so that readers never
+     * see partially written segments
+     */
+    public void flush(String segmentName) throws IOException {
+        if (numNewEntries == 0)
+            return;
+
+        Integer[] order = new Integer[numNewEntries];
+        for (int i = 0; i < numNewEntries; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer index1, Integer index2) {
+                return Long.compare(newKeys[index1], newKeys[index2]);
+            }
+        });
+
+        Path tempFile = new Path(dir, "_" + segmentName + SEGMENT_EXTENSION);
+        SegmentWriter writer = new SegmentWriter(fs.create(tempFile, true));
+        try {
+            Entry pending = null;
+            long pendingKey = 0;
+            for (int index : order) {
+                Entry entry = new Entry(newScores[index], newKinds[index]);
+                if (null != pending && newKeys[index] == pendingKey) {
+                    pending = merge(pending, entry);
+                    continue;
+                }
+                if (null != pending)
+                    writer.write(pendingKey, pending);
+                pending = entry;
+                pendingKey = newKeys[index];
+            }
+            writer.write(pendingKey, pending);
+        } finally {
+            writer.close();
+        }
+
+        if (!fs.rename(tempFile, new Path(dir, segmentName + SEGMENT_EXTENSION)))
+            throw new IOException("Cannot rename segment [" + tempFile + "]");
+        numNewEntries = 0;
+    }
+
+    public void close() {
+        for (Segment segment : segments) {
+            IOUtils.closeStream(segment.in);
+        }
+        segments.clear();
+        cachedBlocks.clear();
+    }
+
+    /**
+     * Merges all the segments of the cache into a single segment. Entries of
+     * same key are merged the same way lookups do
+     *
+     * @return number of entries in the merged segment, or -1 if there was
+     *         nothing to merge
+     */
+    public static long compact(Configuration conf, String dir) throws IOException {
+        Path dirPath = new Path(dir);
+        FileSystem fs = dirPath.getFileSystem(conf);
+        List<Path> paths = listSegments(fs, dirPath);
+        if (paths.size() < 2)
+            return -1;
+
+        PriorityQueue<SegmentCursor> cursors = new PriorityQueue<>(paths.size(), CURSOR_ORDER);
+        String segmentName = "compact-" + System.currentTimeMillis();
+        Path tempFile = new Path(dirPath, "_" + segmentName + SEGMENT_EXTENSION);
+        SegmentWriter writer = null;
+        long numEntries = 0;
+        try {
+            for (Path path : paths) {
+                SegmentCursor cursor = new SegmentCursor(fs, path);
+                if (cursor.next())
+                    cursors.add(cursor);
+                else
+                    cursor.close();
+            }
+
+            writer = new SegmentWriter(fs.create(tempFile, true));
+            while (!cursors.isEmpty()) {
+                SegmentCursor cursor = cursors.poll();
+                long key = cursor.key;
+                Entry entry = cursor.entry;
+                advance(cursor, cursors);
+
+                while (!cursors.isEmpty() && cursors.peek().key == key) {
+                    SegmentCursor duplicate = cursors.poll();
+                    entry = merge(entry, duplicate.entry);
+                    advance(duplicate, cursors);
+                }
+                writer.write(key, entry);
+                numEntries++;
+            }
+            writer.close();
+            writer = null;
+        } finally {
+            for (SegmentCursor cursor : cursors) {
+                cursor.close();
+            }
+            if (null != writer)
+                writer.close();
+        }
+
+        if (!fs.rename(tempFile, new Path(dirPath, segmentName + SEGMENT_EXTENSION)))
+            throw new IOException("Cannot rename segment [" + tempFile + "]");
+        for (Path path : paths) {
+            fs.delete(path, false);
+        }
+        return numEntries;
+    }
+
+    private static void advance(SegmentCursor cursor,
+                                PriorityQueue<SegmentCursor> cursors) throws IOException {
+        if (cursor.next())
+            cursors.add(cursor);
+        else
+            cursor.close();
+    }
+
+    /**
+     * Segments of the directory, excluding the ones being written
+     */
+    private static List<Path> listSegments(FileSystem fs, Path dir) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        if (!fs.isDirectory(dir))
+            return paths;
+
+        for (FileStatus status : fs.listStatus(dir, new PathFilter() {
+            @Override
+            public boolean accept(Path path) {
+                return path.getName().endsWith(SEGMENT_EXTENSION) && !path.getName().startsWith("_");
+            }
+        })) {
+            paths.add(status.getPath());
+        }
+        return paths;
+    }
+
+    private static Segment openSegment(FileSystem fs, Path path) throws IOException {
+        long length = fs.getFileStatus(path).getLen();
+        FSDataInputStream in = fs.open(path);
+        try {
+            if (length < TRAILER_LENGTH)
+                throw new IOException("Segment [" + path + "] is truncated");
+
+            byte[] trailer = new byte[TRAILER_LENGTH];
+            in.readFully(length - TRAILER_LENGTH, trailer);
+            ByteBuffer trailerBuffer = ByteBuffer.wrap(trailer);
+            long numRecords = trailerBuffer.getLong();
+            if (trailerBuffer.getLong() != MAGIC)
+                throw new IOException("File [" + path + "] is not a match cache segment");
+
+            int numBlocks = (int) ((numRecords + BLOCK_RECORDS - 1) / BLOCK_RECORDS);
+            if (length != numRecords * RECORD_LENGTH + numBlocks * 8L + TRAILER_LENGTH)
+                throw new IOException("Segment [" + path + "] is truncated");
+
+            byte[] index = new byte[numBlocks * 8];
+            in.readFully(numRecords * RECORD_LENGTH, index);
+            ByteBuffer indexBuffer = ByteBuffer.wrap(index);
+            long[] firstKeys = new long[numBlocks];
+            for (int i = 0; i < numBlocks; i++) {
+                firstKeys[i] = indexBuffer.getLong();
+            }
+            return new Segment(in, numRecords, firstKeys);
+        } catch (IOException e) {
+            IOUtils.closeStream(in);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes records in ascending order of keys, followed by the block index
+     */
+    private static class SegmentWriter {
+        private final DataOutputStream out;
+        private long[] firstKeys = new long[16];
+        private long numRecords = 0;
+
+        SegmentWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write(long key, Entry entry) throws IOException {
+            if (numRecords % BLOCK_RECORDS == 0) {
+                int block = (int) (numRecords / BLOCK_RECORDS);
+                if (block == firstKeys.length)
+                    firstKeys = Arrays.copyOf(firstKeys, block * 2);
+                firstKeys[block] = key;
+            }
+            out.writeLong(key);
+            out.writeDouble(entry.score);
+            out.writeByte(entry.kind);
+            numRecords++;
+        }
+
+        void close() throws IOException {
+            int numBlocks = (int) ((numRecords + BLOCK_RECORDS - 1) / BLOCK_RECORDS);
+            for (int i = 0; i < numBlocks; i++) {
+                out.writeLong(firstKeys[i]);
+            }
+            out.writeLong(numRecords);
+            out.writeLong(MAGIC);
+            out.close();
+        }
+    }
+
+    private static final Comparator<SegmentCursor> CURSOR_ORDER = new Comparator<SegmentCursor>() {
+        @Override
+        public int compare(SegmentCursor cursor1, SegmentCursor cursor2) {
+            return Long.compare(cursor1.key, cursor2.key);
+        }
+    };
+
+    /**
+     * Reads records of a segment in order
+     */
+    private static class SegmentCursor {
+        private final DataInputStream in;
+        private final long numRecords;
+        private long read = 0;
+
+        private long key;
+        private Entry entry;
+
+        SegmentCursor(FileSystem fs, Path path) throws IOException {
+            Segment segment = openSegment(fs, path);
+            segment.in.close();
+            this.numRecords = segment.numRecords;
+            this.in = new DataInputStream(new BufferedInputStream(fs.open(path), 1 << 16));
+        }
+
+        boolean next() throws IOException {
+            if (read == numRecords)
+                return false;
+            key = in.readLong();
+            entry = new Entry(in.readDouble(), in.readByte());
+            read++;
+            return true;
+        }
+
+        void close() {
+            IOUtils.closeStream(in);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package neu.nctracer.mr;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import neu.nctracer.data.Match;
+
+/**
+ * Map output key of batch stitching job (see {@link BatchStitchingDriver}).
+ * Match along with id of the stack pair it belongs to. Keys are sorted by pair
+ * id and then by descending score of the match.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class PairMatchKey implements WritableComparable<PairMatchKey> {
+
+    private final Text pairId = new Text();
+    private Match match = new Match();
+
+    static {
+        // register raw comparator used by the framework for sorting keys
+        WritableComparator.define(PairMatchKey.class, new Comparator());
+    }
+
+    public PairMatchKey() {
+        // defined for sake of making it work as a Writable class
+    }
+
+    public PairMatchKey(String pairId, Match match) {
+        set(pairId, match);
+    }
+
+    public void set(String pairId, Match match) {
+        this.pairId.set(pairId);
+        this.match = match;
+    }
+
+    public String getPairId() {
+        return pairId.toString();
+    }
+
+    public Text getPairIdText() {
+        return pairId;
+    }
+
+    public Match getMatch() {
+        return match;
+    }
+
+    /**
+     * <tt>pair id (Text) | match (see {@link Match#write(DataOutput)})</tt>
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        pairId.write(out);
+        match.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        pairId.readFields(in);
+        match.readFields(in);
+    }
+
+    @Override
+    public int compareTo(PairMatchKey other) {
+        int result = pairId.compareTo(other.pairId);
+        if (result != 0)
+            return result;
+        return match.compareTo(other.match);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * pairId.hashCode() + match.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        PairMatchKey other = (PairMatchKey) obj;
+        return pairId.equals(other.pairId) && match.equals(other.match);
+    }
+
+    @Override
+    public String toString() {
+        return pairId + "\t" + match;
+    }
+
+    /**
+     * Length of serialized pair id, including its length prefix
+     */
+    static int pairIdLength(byte[] bytes, int start) throws IOException {
+        return WritableUtils.decodeVIntSize(bytes[start]) + WritableComparator.readVInt(bytes, start);
+    }
+
+    /**
+     * Compares serialized pair ids (see {@link Text.Comparator})
+     */
+    static int comparePairIds(byte[] b1, int s1, byte[] b2, int s2) throws IOException {
+        int prefix1 = WritableUtils.decodeVIntSize(b1[s1]);
+        int prefix2 = WritableUtils.decodeVIntSize(b2[s2]);
+        return WritableComparator.compareBytes(b1,
+                                               s1 + prefix1,
+                                               WritableComparator.readVInt(b1, s1),
+                                               b2,
+                                               s2 + prefix2,
+                                               WritableComparator.readVInt(b2, s2));
+    }
+
+    /**
+     * Compares serialized keys by pair id bytes and then by match (see
+     * {@link Match.Comparator}). Matches are never deserialized
+     *
+     * @author Ankur Shanbhag
+     *
+     */
+    public static class Comparator extends WritableComparator {
+
+        private static final Match.Comparator MATCH_COMPARATOR = new Match.Comparator();
+
+        public Comparator() {
+            super(PairMatchKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                int result = comparePairIds(b1, s1, b2, s2);
+                if (result != 0)
+                    return result;
+
+                int length1 = pairIdLength(b1, s1);
+                int length2 = pairIdLength(b2, s2);
+                return MATCH_COMPARATOR.compare(b1,
+                                                s1 + length1,
+                                                l1 - length1,
+                                                b2,
+                                                s2 + length2,
+                                                l2 - length2);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Error reading pair id.", e);
+            }
+        }
+    }
+}
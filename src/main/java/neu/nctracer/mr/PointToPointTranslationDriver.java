@@ -1,31 +1,43 @@
 package neu.nctracer.mr;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
 import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
 import neu.nctracer.conf.cli.ConfigurationParams;
 import neu.nctracer.data.DataObject;
 import neu.nctracer.data.DataTransformation;
-import neu.nctracer.data.ImageData;
 import neu.nctracer.data.Match;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.dm.AllPairsCandidateGenerator;
+import neu.nctracer.dm.CandidateGenerator;
+import neu.nctracer.dm.KNearestNeighbors;
+import neu.nctracer.dm.TopKMatches;
 import neu.nctracer.dm.TranslationMatchCalculator;
 import neu.nctracer.exception.HdfsException;
 import neu.nctracer.exception.ParsingException;
+import neu.nctracer.exception.ReflectionUtilsException;
+import neu.nctracer.mr.PointToPointTranslationReducer.PointToPointTranslationCombiner;
 import neu.nctracer.mr.PointToPointTranslationReducer.PointToPointTranslationGroupComparator;
 import neu.nctracer.utils.DataParser;
 import neu.nctracer.utils.DataTransformer;
 import neu.nctracer.utils.HdfsFileUtils;
+import neu.nctracer.utils.HdfsStagingArea;
+import neu.nctracer.utils.ReflectionUtils;
 
 /**
  * Driver class to invoke a map-reduce job which can stitch images based on
@@ -36,13 +48,42 @@ import neu.nctracer.utils.HdfsFileUtils;
  */
 public class PointToPointTranslationDriver extends MapReduceStitchingDriver {
 
+    // parameters which change score of a transformation
+    private static final String[] MATCHING_PARAMS = { "match.calculator.class",
+                                                      PointStack.PARAM_PRECISION,
+                                                      TranslationMatchCalculator.PARAM_NEAREST_NEIGHBOR_CLASS,
+                                                      KNearestNeighbors.PARAM_THRESHOLD_DISTANCE,
+                                                      "correpondence.score.function.alpha" };
+
     private String hdfsInputPath = null;
-    private ConfigurationParams params = null;
+    // set when candidate translations are written to the input file
+    private boolean inputFileWritten = false;
+    private Class<? extends CandidateGenerator> generatorClass = null;
+    private long numCandidates = 0;
+    // candidates the execution planner calibrates on
+    private final List<DataTransformation<DataObject>> candidateSample = new ArrayList<>();
+    private ExecutionPlanner.Plan executionPlan = null;
+    // candidates written to the input file, if any
+    private List<DataTransformation<DataObject>> writtenCandidates = null;
+    private int numSourcePoints = 0;
+    // stacks parsed during setup, reused by in-process execution
+    private PointStack sourceData = null;
+    private PointStack targetData = null;
+    // records progress of the job, null if checkpointing is disabled
+    private CheckpointStore checkpointStore = null;
+    // matches of candidate ranges completed by an earlier run
+    private List<Match> savedMatches = new ArrayList<>();
+    private long remainingCandidates = 0;
+    protected ConfigurationParams params = null;
 
     public PointToPointTranslationDriver() {
         super(PointToPointTranslationDriver.class);
     }
 
+    protected PointToPointTranslationDriver(Class<? extends PointToPointTranslationDriver> driverClass) {
+        super(driverClass);
+    }
+
     @Override
     public void setup(ConfigurationParams params) throws HdfsException {
         super.setup(params);
@@ -52,15 +93,29 @@ public class PointToPointTranslationDriver extends MapReduceStitchingDriver {
         String sourceImageFile = params.getParam("local.image.source.file", null);
         String targetImageFile = params.getParam("local.image.target.file", null);
 
-        String sourceDataAsString = HdfsFileUtils.readFileAsString(conf, sourceImageFile, false);
-        String targetDataAsString = HdfsFileUtils.readFileAsString(conf, targetImageFile, false);
-
         try {
-            List<DataObject> sourceData = DataParser.parseData(sourceDataAsString, ImageData.class);
-            List<DataObject> targetData = DataParser.parseData(targetDataAsString, ImageData.class);
+            this.sourceData = DataParser.parseStack(conf,
+                                                    sourceImageFile,
+                                                    false,
+                                                    false,
+                                                    parserThreads);
+            this.targetData = DataParser.parseStack(conf,
+                                                    targetImageFile,
+                                                    false,
+                                                    false,
+                                                    parserThreads);
 
             this.hdfsInputPath = hdfsBaseDirPath + Path.SEPARATOR + "input-file";
-            writeTranslationsToHdfs(sourceData, targetData);
+            this.numSourcePoints = sourceData.size();
+            prepareTranslations(sourceData, targetData);
+            this.remainingCandidates = numCandidates;
+            setupCheckpoint();
+
+            if (ExecutionPlanner.isEnabled(params))
+                this.executionPlan = new ExecutionPlanner(params, conf).plan(sourceData,
+                                                                             targetData,
+                                                                             candidateSample,
+                                                                             numCandidates);
         } catch (ParsingException e) {
             throw new HdfsException("Error while parsing image data.", e);
         }
@@ -68,45 +123,228 @@ public class PointToPointTranslationDriver extends MapReduceStitchingDriver {
         logger.info("Image stitching mapreduce job setup successful.");
     }
 
-    private void writeTranslationsToHdfs(List<DataObject> sourceData,
-                                         List<DataObject> targetData) throws HdfsException {
-        BufferedWriter writer = null;
+    /**
+     * Prepares candidate translations for the mapreduce job. By default
+     * translations are not materialized - the map tasks generate them using
+     * {@link CandidateGenerator} configured with parameter
+     * [translation.candidate.generator.class] (see
+     * {@link TranslationInputFormat}). Subclasses can override this method to
+     * write a restricted set of candidate translations to HDFS using
+     * {@link #writeTranslationsToHdfs(Collection)}
+     */
+    protected void prepareTranslations(PointStack sourceData,
+                                       PointStack targetData) throws HdfsException {
+        String className = params.getParam(TranslationInputFormat.CANDIDATE_GENERATOR_CLASS,
+                                           AllPairsCandidateGenerator.class.getName());
+        CandidateGenerator generator;
         try {
-            FileSystem fs = HdfsFileUtils.getFileSystem(conf, hdfsInputPath, true);
-            writer = new BufferedWriter(new OutputStreamWriter(fs.create(new Path(hdfsInputPath))));
-            for (DataObject source : sourceData) {
-                for (DataObject target : targetData) {
-                    double distance = DataTransformer.computeEuclideanDistance(source, target);
-                    double[] angles = DataTransformer.computeDirectionAngles(source, target);
-
-                    DataTransformation<DataObject> transformation = new DataTransformation<>();
-                    transformation.setDistance(distance);
-                    transformation.setAngles(angles);
-                    // write all the transformations to HDFS
-                    writer.write(transformation.toString());
-                    writer.newLine();
-                }
+            generator = ReflectionUtils.instantiate(className, CandidateGenerator.class);
+        } catch (ReflectionUtilsException e) {
+            throw new HdfsException("Class ["
+                                    + className
+                                    + "] specified as parameter to ["
+                                    + TranslationInputFormat.CANDIDATE_GENERATOR_CLASS
+                                    + "] cannot be instantiated",
+                                    e);
+        }
+
+        generator.setup(sourceData, targetData, params);
+        this.generatorClass = generator.getClass();
+        this.numCandidates = generator.size();
+        logger.info("Map tasks will generate " + numCandidates + " candidate translation(s).");
+
+        long stride = sampleStride(numCandidates);
+        for (long index = 0; index < numCandidates; index += stride) {
+            DataTransformation<DataObject> candidate = new DataTransformation<>();
+            generator.generate(index, candidate);
+            candidateSample.add(candidate);
+        }
+    }
+
+    /**
+     * Sets up checkpoint of the run in a directory identified by the input of
+     * the run (see {@link #checkpointKey()}). A new run starts with an empty
+     * checkpoint, a resumed run reads the ranges and matches recorded by the
+     * earlier runs. Only generated candidates are checkpointed.<br>
+     *
+     * Fails if another run with same key is still writing the checkpoint. The
+     * checkpoint is kept alive till this run ends, so that it is not
+     * garbage-collected while in use
+     */
+    private void setupCheckpoint() throws HdfsException {
+        // a resumed run keeps checkpointing, so that it can be resumed too
+        boolean enabled = Boolean.parseBoolean(params.getParam(CheckpointStore.PARAM_ENABLED, "false"))
+                          || Boolean.parseBoolean(params.getParam(CheckpointStore.PARAM_RESUME,
+                                                                  "false"));
+        if (inputFileWritten || !enabled)
+            return;
+
+        String dir = stagingArea.getCheckpointDir(checkpointKey());
+        if (stagingArea.isAlive(dir))
+            throw new HdfsException("Checkpoint ["
+                                    + dir
+                                    + "] is being written by another run with same input. "
+                                    + "Wait for the run to finish or fail before starting this run.");
+
+        try {
+            this.checkpointStore = new CheckpointStore(conf, dir);
+            if (!Boolean.parseBoolean(params.getParam(CheckpointStore.PARAM_RESUME, "false"))) {
+                checkpointStore.delete();
+                stagingArea.keepAlive(dir);
+                return;
             }
+
+            stagingArea.keepAlive(dir);
+            checkpointStore.deleteAttempts();
+            long completed = 0;
+            for (long[] range : checkpointStore.readCompletedRanges()) {
+                completed += range[1];
+            }
+            this.savedMatches = checkpointStore.readMatches();
+            this.remainingCandidates = Math.max(0, numCandidates - completed);
+            logger.info("Resuming from checkpoint ["
+                        + dir
+                        + "]. "
+                        + completed
+                        + " of "
+                        + numCandidates
+                        + " candidate translation(s) were evaluated by earlier runs.");
+        } catch (IOException e) {
+            throw new HdfsException("Error reading checkpoint [" + dir + "]", e);
+        }
+    }
+
+    /**
+     * Identifies input of the run - staged stacks (named by their checksum),
+     * candidates and the parameters affecting the matches. Runs with same key
+     * compute same matches
+     */
+    private String checkpointKey() throws HdfsException {
+        return inputKey(generatorClass.getName() + "\n" + numCandidates,
+                        TopKMatches.PARAM_TOP_K,
+                        TopKMatches.PARAM_SUPPRESSION_RADIUS,
+                        BestScoreStore.PARAM_TARGET_SCORE);
+    }
+
+    /**
+     * Identifies stacks and the parameters affecting score of a
+     * transformation. Runs with same key compute same score for same
+     * transformation (see {@link MatchCache})
+     */
+    private String matchCacheKey() throws HdfsException {
+        return inputKey("", MatchCache.PARAM_QUANTUM);
+    }
+
+    /**
+     * Checksum of the staged stacks (named by their checksum), the given text
+     * and values of matching parameters along with the given ones
+     */
+    private String inputKey(String text, String... extraParams) throws HdfsException {
+        StringBuilder builder = new StringBuilder();
+        builder.append(hdfsSourceImagePath)
+               .append('\n')
+               .append(hdfsTargetImagePath)
+               .append('\n')
+               .append(text);
+
+        List<String> keyParams = new ArrayList<>(Arrays.asList(MATCHING_PARAMS));
+        keyParams.addAll(Arrays.asList(extraParams));
+        for (String param : keyParams) {
+            builder.append('\n').append(param).append('=').append(params.getParam(param, ""));
+        }
+        return HdfsStagingArea.checksum(builder.toString());
+    }
+
+    /**
+     * Distance between candidates sampled for calibration, so that the sample
+     * is spread over all the candidates
+     */
+    private long sampleStride(long numCandidates) {
+        if (!ExecutionPlanner.isEnabled(params))
+            return Long.MAX_VALUE;
+
+        int numSamples = Integer.parseInt(params.getParam(ExecutionPlanner.PARAM_CALIBRATION_SAMPLES,
+                                                          "64"));
+        return Math.max(1, numCandidates / Math.max(1, numSamples));
+    }
+
+    /**
+     * Writes specified translations to the input file of the mapreduce job.
+     * Translations are written to a block-compressed <tt>SequenceFile</tt>
+     * keyed by candidate id (see {@link CandidateFileInputFormat})
+     */
+    protected void
+              writeTranslationsToHdfs(Collection<DataTransformation<DataObject>> translations) throws HdfsException {
+        SequenceFile.Writer writer = null;
+        try {
+            writer = SequenceFile.createWriter(conf,
+                                               SequenceFile.Writer.file(HdfsFileUtils.getPath(conf,
+                                                                                              hdfsInputPath,
+                                                                                              true)),
+                                               SequenceFile.Writer.keyClass(LongWritable.class),
+                                               SequenceFile.Writer.valueClass(DataTransformation.class),
+                                               SequenceFile.Writer.compression(CompressionType.BLOCK));
+
+            long stride = sampleStride(translations.size());
+            candidateSample.clear();
+
+            LongWritable candidateId = new LongWritable();
+            for (DataTransformation<DataObject> transformation : translations) {
+                writer.append(candidateId, transformation);
+                if (candidateId.get() % stride == 0)
+                    candidateSample.add(transformation);
+                candidateId.set(candidateId.get() + 1);
+            }
+            this.numCandidates = candidateId.get();
+            this.writtenCandidates = new ArrayList<>(translations);
         } catch (IOException exp) {
             throw new HdfsException(exp);
         } finally {
-            if (null != writer) {
-                try {
-                    writer.flush();
-                    writer.close();
-                } catch (IOException exp) {
-                    // Ignore
-                }
-            }
+            IOUtils.closeStream(writer);
         }
+        this.inputFileWritten = true;
+    }
+
+    /**
+     * Defines linear translation which moves source point on to the target
+     * point
+     */
+    protected DataTransformation<DataObject> defineTranslation(DataObject source,
+                                                               DataObject target) {
+        DataTransformation<DataObject> transformation = new DataTransformation<>();
+        transformation.setVector(DataTransformer.computeOffsetVector(source.getFeatures(),
+                                                                     target.getFeatures()));
+        return transformation;
     }
 
     @Override
     public boolean run() throws HdfsException {
+        try {
+            return runJob();
+        } finally {
+            if (null != checkpointStore)
+                stagingArea.release(checkpointStore.getDir());
+        }
+    }
+
+    private boolean runJob() throws HdfsException {
+        if (null != checkpointStore && remainingCandidates == 0)
+            return finishFromCheckpoint();
+
+        // in-process execution evaluates all the candidates, thus is not used
+        // for resumed runs. It does not record error sequences either
+        boolean inProcessAllowed = remainingCandidates == numCandidates
+                                   && null == params.getParam(AlphaSweep.PARAM_RECORD_DIR, null);
+        ExecutionMode mode = selectExecutionMode(remainingCandidates * numSourcePoints,
+                                                 inProcessAllowed);
+        if (mode == ExecutionMode.INPROCESS)
+            return runInProcess();
+
         try {
             Job job = createJobInstance();
             job.setMapperClass(ImageDataClusteringMapper.class);
 
+            configureExecutionMode(job, mode);
             setJobConfigurations(job);
 
             // add image files to distributed cache
@@ -118,12 +356,12 @@ public class PointToPointTranslationDriver extends MapReduceStitchingDriver {
             setMapperConfigurations(job);
 
             // Reduce phase configurations
+            job.setCombinerClass(PointToPointTranslationCombiner.class);
             job.setGroupingComparatorClass(PointToPointTranslationGroupComparator.class);
             job.setReducerClass(PointToPointTranslationReducer.class);
             job.setNumReduceTasks(1);
 
-            NLineInputFormat.addInputPath(job, new Path(hdfsInputPath));
-            job.setInputFormatClass(NLineInputFormat.class);
+            setInputConfigurations(job);
 
             job.setOutputKeyClass(Match.class);
             job.setOutputValueClass(NullWritable.class);
@@ -132,7 +370,14 @@ public class PointToPointTranslationDriver extends MapReduceStitchingDriver {
 
             logger.info("Starting mapreduce job to perform image stitching operation.");
             boolean status = job.waitForCompletion(true);
+            boolean successful = status && job.isSuccessful();
+            if (successful)
+                compactMatchCache(job);
+            if (successful && !savedMatches.isEmpty())
+                writeOutput(mergeSavedMatches(readOutputMatches()));
             cleanup(job, status);
+            if (successful)
+                deleteCheckpoint();
 
             return status;
 
@@ -147,32 +392,195 @@ public class PointToPointTranslationDriver extends MapReduceStitchingDriver {
         }
     }
 
+    /**
+     * All the candidates were evaluated by earlier runs. Writes result merged
+     * from the checkpoint without running any job
+     */
+    private boolean finishFromCheckpoint() throws HdfsException {
+        logger.info("All candidate translations were evaluated by earlier runs. "
+                    + "Writing matches saved in the checkpoint.");
+        writeOutput(mergeSavedMatches(new ArrayList<Match>()));
+        copyOutputToLocal();
+        deleteCheckpoint();
+        return true;
+    }
+
+    /**
+     * Reads matches emitted by the reducer of this run
+     */
+    private List<Match> readOutputMatches() throws HdfsException {
+        List<Match> matches = new ArrayList<>();
+        try {
+            for (String record : readOutput()) {
+                matches.add(Match.parse(record));
+            }
+        } catch (ParsingException e) {
+            throw new HdfsException("Error parsing output of the job.", e);
+        }
+        return matches;
+    }
+
+    /**
+     * Merges matches of this run with the ones saved by earlier runs (read
+     * while resuming), the same way reducer does - in descending order of
+     * scores. Checkpoint is not read again, as it may have been deleted
+     * meanwhile
+     */
+    private List<Match> mergeSavedMatches(List<Match> jobMatches) {
+        List<Match> matches = new ArrayList<>(jobMatches);
+        matches.addAll(savedMatches);
+        Collections.sort(matches);
+
+        TopKMatches bestMatches = new TopKMatches(Integer.parseInt(params.getParam(TopKMatches.PARAM_TOP_K,
+                                                                                   "1")),
+                                                  Double.parseDouble(params.getParam(TopKMatches.PARAM_SUPPRESSION_RADIUS,
+                                                                                     "0.0")));
+        for (Match match : matches) {
+            bestMatches.offer(match);
+        }
+        return bestMatches.getRankedMatches();
+    }
+
+    /**
+     * Merges segments written by the map tasks into one, so that the next run
+     * looks up a single segment
+     */
+    private void compactMatchCache(Job job) {
+        String cacheDir = job.getConfiguration().get(MatchCache.CACHE_DIR);
+        if (null == cacheDir)
+            return;
+
+        try {
+            long numEntries = MatchCache.compact(conf, cacheDir);
+            if (numEntries >= 0)
+                logger.info("Match cache [" + cacheDir + "] holds " + numEntries + " score(s).");
+        } catch (IOException e) {
+            logger.warn("Cannot compact match cache [" + cacheDir + "]. " + e.getMessage());
+        }
+    }
+
+    private void deleteCheckpoint() {
+        if (null == checkpointStore)
+            return;
+
+        try {
+            checkpointStore.delete();
+        } catch (IOException e) {
+            logger.warn("Cannot delete checkpoint ["
+                        + checkpointStore.getDir()
+                        + "]. It will be garbage-collected later.");
+        }
+    }
+
+    /**
+     * Evaluates candidates on a thread pool of this JVM (see
+     * {@link InProcessMatchExecutor}). Stacks parsed during setup are
+     * converted to the precision the mappers would use, and matches are
+     * written to the same output location and in the same format as the
+     * reducer output
+     */
+    private boolean runInProcess() throws HdfsException {
+        boolean singlePrecision = PointStack.isSinglePrecision(params.getParam(PointStack.PARAM_PRECISION,
+                                                                               "double"));
+        PointStack sourceData = singlePrecision ? this.sourceData.toSinglePrecision()
+                                                : this.sourceData;
+        PointStack targetData = singlePrecision ? this.targetData.toSinglePrecision()
+                                                : this.targetData;
+
+        InProcessMatchExecutor executor = new InProcessMatchExecutor(params,
+                                                                     Runtime.getRuntime()
+                                                                            .availableProcessors());
+        List<Match> matches;
+        if (inputFileWritten)
+            matches = executor.run(sourceData, targetData, writtenCandidates);
+        else
+            matches = executor.run(sourceData, targetData, generatorClass, numCandidates);
+
+        writeOutput(matches);
+        copyOutputToLocal();
+        return true;
+    }
+
     private void setMapperConfigurations(Job job) {
-        // using multi-threaded mapper
-        job.setMapperClass(MultithreadedMapper.class);
+        // using multi-threaded mapper, which records completed ranges if the
+        // job is checkpointed
+        job.setMapperClass(null != checkpointStore ? CheckpointingMultithreadedMapper.class
+                                                   : MultithreadedMapper.class);
         MultithreadedMapper.setMapperClass(job, PointToPointTranslationMapper.class);
 
-        int numThreadsPerMapper = Integer.parseInt(params.getParam("num.threads.per.mapper", "2"));
+        int numThreadsPerMapper;
+        if (null != executionPlan) {
+            numThreadsPerMapper = executionPlan.getThreadsPerMapper();
+            executionPlan.apply(job);
+        } else {
+            numThreadsPerMapper = Integer.parseInt(params.getParam("num.threads.per.mapper", "2"));
+        }
         MultithreadedMapper.setNumberOfThreads(job, numThreadsPerMapper);
 
         // output types from Mapper
         job.setMapOutputKeyClass(Match.class);
         job.setMapOutputValueClass(NullWritable.class);
+    }
 
-        int inputLinesPerMapper = Integer.parseInt(params.getParam("num.input.lines.mapper",
-                                                                   "1000"));
-        job.getConfiguration().setInt("mapreduce.input.lineinputformat.linespermap",
-                                      inputLinesPerMapper);
-        logger.debug("Setting input lines per mapper to " + inputLinesPerMapper);
+    /**
+     * Reads translations from the input file if one was written, otherwise
+     * lets the map tasks generate them
+     */
+    private void setInputConfigurations(Job job) throws IOException {
+        long inputLinesPerMapper = (null != executionPlan) ? executionPlan.getCandidatesPerSplit()
+                                                           : Long.parseLong(params.getParam("num.input.lines.mapper",
+                                                                                            "1000"));
+        if (inputFileWritten) {
+            job.setInputFormatClass(CandidateFileInputFormat.class);
+            CandidateFileInputFormat.setCandidatesPerSplit(job,
+                                                           new Path(hdfsInputPath),
+                                                           numCandidates,
+                                                           inputLinesPerMapper);
+        } else {
+            job.setInputFormatClass(TranslationInputFormat.class);
+            TranslationInputFormat.setCandidateGenerator(job, generatorClass, numCandidates);
+            TranslationInputFormat.setCandidatesPerSplit(job, inputLinesPerMapper);
+        }
+        logger.debug("Setting candidate translations per mapper to " + inputLinesPerMapper);
     }
 
-    private void setJobConfigurations(Job job) {
+    private void setJobConfigurations(Job job) throws HdfsException {
         String matchCalculationClass = params.getParam("match.calculator.class",
                                                        TranslationMatchCalculator.class.getName());
         job.getConfiguration().set("match.calculator.class", matchCalculationClass);
         logger.debug("Setting match calculator class to ["
                      + matchCalculationClass
                      + "]. The class can be configured with parameter [match.calculator.class]");
+
+        int topK = Integer.parseInt(params.getParam(TopKMatches.PARAM_TOP_K, "1"));
+        job.getConfiguration().setInt(TopKMatches.PARAM_TOP_K, topK);
+        String suppressionRadius = params.getParam(TopKMatches.PARAM_SUPPRESSION_RADIUS, "0.0");
+        job.getConfiguration().set(TopKMatches.PARAM_SUPPRESSION_RADIUS, suppressionRadius);
+        logger.debug("Emitting " + topK + " best match(es) with suppression radius " + suppressionRadius);
+
+        // shared bounds are exact only without suppression (see TopKMatches)
+        if (Boolean.parseBoolean(params.getParam(BestScoreStore.PARAM_ENABLED, "false"))
+            && Double.parseDouble(suppressionRadius) <= 0) {
+            // client can point local store to a directory of its choice
+            String storeDir = params.getParam(BestScoreStore.STORE_DIR,
+                                              hdfsBaseDirPath + Path.SEPARATOR + "best-scores");
+            job.getConfiguration().set(BestScoreStore.STORE_DIR, storeDir);
+            logger.debug("Map tasks will share best scores through [" + storeDir + "]");
+        }
+
+        if (Boolean.parseBoolean(params.getParam(MatchCache.PARAM_ENABLED, "false"))) {
+            String cacheDir = stagingArea.getMatchCacheDir(matchCacheKey());
+            stagingArea.markUsed(cacheDir);
+            job.getConfiguration().set(MatchCache.CACHE_DIR, cacheDir);
+            logger.debug("Map tasks will look up and record match scores in [" + cacheDir + "]");
+        }
+
+        if (null != checkpointStore) {
+            job.getConfiguration().set(CheckpointStore.CHECKPOINT_DIR, checkpointStore.getDir());
+            logger.debug("Recording completed candidate ranges in checkpoint ["
+                         + checkpointStore.getDir()
+                         + "]");
+        }
     }
 
 }
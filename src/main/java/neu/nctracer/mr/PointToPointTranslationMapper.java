@@ -1,19 +1,25 @@
 package neu.nctracer.mr;
 
 import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Mapper;
 
 import neu.nctracer.data.DataTransformation;
 import neu.nctracer.data.Match;
+import neu.nctracer.dm.ErrorSequence;
 import neu.nctracer.dm.MatchCalculator;
+import neu.nctracer.dm.MatchStatistics;
+import neu.nctracer.dm.TopKMatches;
 import neu.nctracer.dm.TranslationMatchCalculator;
 import neu.nctracer.exception.ParsingException;
 import neu.nctracer.exception.ReflectionUtilsException;
+import neu.nctracer.mr.TranslationInputFormat.CandidateRangeSplit;
 import neu.nctracer.utils.ReflectionUtils;
 
 /**
@@ -24,19 +30,160 @@ import neu.nctracer.utils.ReflectionUtils;
  *
  */
 public class PointToPointTranslationMapper
-        extends ImageStitchingMapper<LongWritable, Text, Match, NullWritable> {
+        extends ImageStitchingMapper<LongWritable, Writable, Match, NullWritable> {
 
     private MatchCalculator matchCalculator = null;
-    private Match bestLocalMatch = null;
+    private TopKMatches bestLocalMatches = null;
+    private boolean singlePrecision = false;
+
+    // shares score bounds with other map tasks, null if sharing is disabled
+    private BestScoreStore scoreStore = null;
+    private long sharingIntervalMillis;
+    private long lastSharedMillis = 0;
+    private double publishedBound = Double.NEGATIVE_INFINITY;
+    // best bound published by any of the map tasks
+    private double globalBound = Double.NEGATIVE_INFINITY;
+    private double targetScore = Double.POSITIVE_INFINITY;
+    private boolean targetReached = false;
+    // minimum score set on the calculator
+    private double minimumScore = Double.NEGATIVE_INFINITY;
+
+    // scores recorded by earlier runs, null if caching is disabled
+    private MatchCache matchCache = null;
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+
+    // error sequences of best translations, null if recording is disabled
+    private PriorityQueue<ErrorSequence> recordedSequences = null;
+    private int maxRecorded;
+
+    // records matches of the candidate range, null if checkpointing is
+    // disabled
+    private CheckpointStore checkpointStore = null;
+
+    private final LatencyHistogram matchLatency = new LatencyHistogram();
+    private long matchNanos = 0;
+    private long skippedCount = 0;
+    private long emittedCount = 0;
 
     @Override
     protected void
-              setup(Mapper<LongWritable, Text, Match, NullWritable>.Context context) throws IOException,
+              setup(Mapper<LongWritable, Writable, Match, NullWritable>.Context context) throws IOException,
                                                                                      InterruptedException {
         super.setup(context);
 
         this.matchCalculator = getMatchingCalculationClass(conf);
         this.matchCalculator.setup(params);
+        this.singlePrecision = isSinglePrecision();
+
+        this.bestLocalMatches = new TopKMatches(conf.getInt(TopKMatches.PARAM_TOP_K, 1),
+                                                conf.getDouble(TopKMatches.PARAM_SUPPRESSION_RADIUS,
+                                                               0.0));
+
+        this.scoreStore = createScoreStore(context);
+        String target = params.getParam(BestScoreStore.PARAM_TARGET_SCORE, null);
+        if (null != target)
+            this.targetScore = Double.parseDouble(target);
+
+        setupRecording();
+        // start with the bound found by tasks which ran before this one
+        shareScoreBound(true);
+
+        if (context.getInputSplit() instanceof CandidateRangeSplit)
+            this.checkpointStore = CheckpointStore.get(conf);
+
+        // cache hits would leave out sequences of the skipped translations
+        if (null == recordedSequences)
+            this.matchCache = createMatchCache();
+    }
+
+    /**
+     * Keeps sequences of the best scoring translations for current alpha, if
+     * client has set up the record directory. All the candidates are
+     * evaluated fully while recording
+     */
+    private void setupRecording() {
+        if (null == params.getParam(AlphaSweep.PARAM_RECORD_DIR, null))
+            return;
+
+        if (!(matchCalculator instanceof TranslationMatchCalculator)) {
+            logger.warn("Error sequences can be recorded only by ["
+                        + TranslationMatchCalculator.class.getName()
+                        + "]. Sequences will not be recorded.");
+            return;
+        }
+
+        ((TranslationMatchCalculator) matchCalculator).setRecordErrors(true);
+        this.targetScore = Double.POSITIVE_INFINITY;
+        this.maxRecorded = Integer.parseInt(params.getParam(AlphaSweep.PARAM_RECORD_TOP, "1000"));
+
+        final double alpha = Double.parseDouble(params.getParam("correpondence.score.function.alpha",
+                                                                "0.5"));
+        // worst of the recorded sequences at the head
+        this.recordedSequences = new PriorityQueue<>(16, new Comparator<ErrorSequence>() {
+            @Override
+            public int compare(ErrorSequence sequence1, ErrorSequence sequence2) {
+                return Double.compare(sequence1.score(alpha), sequence2.score(alpha));
+            }
+        });
+    }
+
+    /**
+     * Opens the cache if driver has set up the cache directory
+     */
+    private MatchCache createMatchCache() {
+        String dir = conf.get(MatchCache.CACHE_DIR);
+        if (null == dir)
+            return null;
+
+        double quantum = Double.parseDouble(params.getParam(MatchCache.PARAM_QUANTUM, "1e-6"));
+        int maxCachedBlocks = Integer.parseInt(params.getParam(MatchCache.PARAM_CACHED_BLOCKS,
+                                                               "1024"));
+        try {
+            return new MatchCache(conf, dir, quantum, maxCachedBlocks);
+        } catch (IOException e) {
+            logger.warn("Cannot open match cache in [" + dir + "]. Scores will not be cached. "
+                        + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates store configured by the client if driver has set up the store
+     * directory
+     */
+    private BestScoreStore
+            createScoreStore(Mapper<LongWritable, Writable, Match, NullWritable>.Context context) {
+        String dir = conf.get(BestScoreStore.STORE_DIR);
+        if (null == dir || !Boolean.parseBoolean(params.getParam(BestScoreStore.PARAM_ENABLED, "false")))
+            return null;
+
+        if (!bestLocalMatches.isThresholdShareable()) {
+            logger.info("Scores are not shared when suppression radius is set.");
+            return null;
+        }
+
+        this.sharingIntervalMillis = Long.parseLong(params.getParam(BestScoreStore.PARAM_INTERVAL_MILLIS,
+                                                                    "30000"));
+        String className = params.getParam(BestScoreStore.PARAM_STORE_CLASS,
+                                           HdfsBestScoreStore.class.getName());
+        try {
+            BestScoreStore store = ReflectionUtils.instantiate(className, BestScoreStore.class);
+            // every thread of multi-threaded mapper publishes its own bound
+            store.setup(conf,
+                        dir,
+                        context.getTaskAttemptID() + "_" + Thread.currentThread().getId());
+            return store;
+        } catch (ReflectionUtilsException e) {
+            logger.warn("Class ["
+                        + className
+                        + "] specified as parameter to ["
+                        + BestScoreStore.PARAM_STORE_CLASS
+                        + "] cannot be instantiated. Scores will not be shared.");
+        } catch (IOException e) {
+            logger.warn("Cannot set up score store in [" + dir + "]. Scores will not be shared.");
+        }
+        return null;
     }
 
     private MatchCalculator getMatchingCalculationClass(Configuration conf) {
@@ -59,31 +206,219 @@ public class PointToPointTranslationMapper
     @Override
     protected void
               map(LongWritable key,
-                  Text value,
-                  Mapper<LongWritable, Text, Match, NullWritable>.Context context) throws IOException,
+                  Writable value,
+                  Mapper<LongWritable, Writable, Match, NullWritable>.Context context) throws IOException,
                                                                                    InterruptedException {
+        if (targetReached) {
+            skippedCount++;
+            return;
+        }
+
         try {
-            DataTransformation<?> transformation = DataTransformation.parse(value.toString());
-            Match match = matchCalculator.findMatch(getSourceDataObjects(),
-                                                    getTargetDataObjects(),
+            DataTransformation<?> transformation = toTransformation(value);
+
+            long cacheKey = 0;
+            MatchCache.Entry cached = null;
+            if (null != matchCache) {
+                cacheKey = matchCache.key(transformation);
+                cached = lookupCache(cacheKey);
+                if (null != cached && !mustEvaluate(cached)) {
+                    cacheHits++;
+                    return;
+                }
+                cacheMisses++;
+            }
+
+            double bound = minimumScore;
+            long abandoned = matchCalculator.getStatistics().getTransformationsAbandoned();
+            long start = System.nanoTime();
+            Match match = matchCalculator.findMatch(getSourceStack(),
+                                                    getTargetStack(),
                                                     transformation);
+            long elapsed = System.nanoTime() - start;
+            matchLatency.record(elapsed);
+            matchNanos += elapsed;
+
+            // exact scores are evaluated again only to build the match
+            if (null != matchCache && (null == cached || cached.getKind() != MatchCache.EXACT))
+                recordCache(cacheKey, match, bound, abandoned);
+            if (null != recordedSequences)
+                recordSequence(transformation);
+
             if (match.getCorrespondences() == null || match.getCorrespondences().isEmpty())
                 return;
 
-            // keep track of local best scoring match
-            if (null == bestLocalMatch || match.getScore() > bestLocalMatch.getScore())
-                bestLocalMatch = match;
+            // keep track of local best scoring matches
+            match.setSinglePrecision(singlePrecision);
+            if (bestLocalMatches.offer(match))
+                shareScoreBound(false);
         } catch (ParsingException e) {
             e.printStackTrace();
         }
     }
 
+    private MatchCache.Entry lookupCache(long cacheKey) {
+        try {
+            return matchCache.lookup(cacheKey);
+        } catch (IOException e) {
+            logger.warn("Error reading match cache. Scores will not be cached any more. "
+                        + e.getMessage());
+            matchCache.close();
+            matchCache = null;
+            return null;
+        }
+    }
+
+    /**
+     * Transformation is evaluated only if its cached score may make it to the
+     * top K. An upper bound at the minimum score cannot, as the calculator
+     * would abandon it again.<br>
+     *
+     * Skipped transformations are never evaluated by later runs either, thus
+     * only the local bound is used with suppression, where bounds of other
+     * tasks are not exact (see {@link TopKMatches#isThresholdShareable()})
+     */
+    private boolean mustEvaluate(MatchCache.Entry cached) {
+        double bound = bestLocalMatches.isThresholdShareable() ? minimumScore
+                                                               : bestLocalMatches.getThreshold();
+        switch (cached.getKind()) {
+        case MatchCache.EMPTY:
+            return false;
+        case MatchCache.UPPER_BOUND:
+            return cached.getScore() > bound;
+        default:
+            return cached.getScore() >= bound;
+        }
+    }
+
+    /**
+     * Abandoned transformations are recorded with the minimum score they were
+     * abandoned at, which bounds their true score
+     */
+    private void recordCache(long cacheKey, Match match, double bound, long abandonedBefore) {
+        if (matchCalculator.getStatistics().getTransformationsAbandoned() > abandonedBefore)
+            matchCache.record(cacheKey, bound, MatchCache.UPPER_BOUND);
+        else if (match.getCorrespondences() == null || match.getCorrespondences().isEmpty())
+            matchCache.record(cacheKey, match.getScore(), MatchCache.EMPTY);
+        else
+            matchCache.record(cacheKey, match.getScore(), MatchCache.EXACT);
+    }
+
+    private void recordSequence(DataTransformation<?> transformation) {
+        TranslationMatchCalculator calculator = (TranslationMatchCalculator) matchCalculator;
+        ErrorSequence sequence = calculator.getErrorSequence(transformation.getTranslation());
+        if (sequence.length() == 0)
+            return;
+
+        recordedSequences.offer(sequence);
+        if (recordedSequences.size() > maxRecorded)
+            recordedSequences.poll();
+    }
+
+    /**
+     * Publishes local bound and reads global bound, at most once per sharing
+     * interval unless forced. Matches below the bound cannot make it to the
+     * top K of the job, thus the calculator may abandon them early
+     */
+    private void shareScoreBound(boolean force) {
+        double localBound = bestLocalMatches.getThreshold();
+
+        long now = System.currentTimeMillis();
+        if (null != scoreStore && (force || now - lastSharedMillis >= sharingIntervalMillis)) {
+            lastSharedMillis = now;
+            try {
+                if (localBound > publishedBound) {
+                    scoreStore.publish(localBound);
+                    publishedBound = localBound;
+                }
+                globalBound = Math.max(globalBound, scoreStore.readBest());
+            } catch (IOException e) {
+                logger.warn("Error sharing score bound. Scores will not be shared any more. "
+                            + e.getMessage());
+                scoreStore = null;
+            }
+        }
+
+        double bound = Math.max(localBound, globalBound);
+        matchCalculator.setMinimumScore(bound);
+        this.minimumScore = bound;
+        if (bound >= targetScore && !targetReached) {
+            targetReached = true;
+            logger.info("Target score [" + targetScore + "] reached. Skipping remaining candidates.");
+        }
+    }
+
+    private void
+            publishCounters(Mapper<LongWritable, Writable, Match, NullWritable>.Context context) {
+        MatchStatistics statistics = matchCalculator.getStatistics();
+        context.getCounter(StitchingCounters.TRANSFORMATIONS_EVALUATED)
+               .increment(statistics.getTransformationsEvaluated());
+        context.getCounter(StitchingCounters.TRANSFORMATIONS_PRUNED)
+               .increment(statistics.getTransformationsAbandoned());
+        context.getCounter(StitchingCounters.TRANSFORMATIONS_SKIPPED).increment(skippedCount);
+        context.getCounter(StitchingCounters.NEIGHBOR_QUERIES)
+               .increment(statistics.getNeighborQueries());
+        context.getCounter(StitchingCounters.CANDIDATES_PUSHED)
+               .increment(statistics.getCandidatesPushed());
+        context.getCounter(StitchingCounters.MATCH_MILLIS).increment(matchNanos / 1000000);
+        context.getCounter(StitchingCounters.MATCHES_EMITTED).increment(emittedCount);
+        context.getCounter(StitchingCounters.CACHE_HITS).increment(cacheHits);
+        context.getCounter(StitchingCounters.CACHE_MISSES).increment(cacheMisses);
+        matchLatency.publish(context);
+    }
+
+    /**
+     * Translations are either generated by {@link TranslationInputFormat},
+     * read from binary candidate file (see {@link CandidateFileInputFormat})
+     * or parsed from lines of text
+     */
+    private DataTransformation<?> toTransformation(Writable value) throws ParsingException {
+        if (value instanceof DataTransformation)
+            return (DataTransformation<?>) value;
+        return DataTransformation.parse(value.toString());
+    }
+
     @Override
     protected void
-              cleanup(Mapper<LongWritable, Text, Match, NullWritable>.Context context) throws IOException,
+              cleanup(Mapper<LongWritable, Writable, Match, NullWritable>.Context context) throws IOException,
                                                                                        InterruptedException {
-        if (null != bestLocalMatch)
-            context.write(bestLocalMatch, NullWritable.get());
+        for (Match match : bestLocalMatches.getRankedMatches()) {
+            context.write(match, NullWritable.get());
+            emittedCount++;
+        }
+        publishCounters(context);
+
+        if (null != checkpointStore) {
+            // every thread writes its own matches, range is recorded once
+            // all the threads are done
+            checkpointStore.writeMatches(context.getTaskAttemptID().toString(),
+                                         String.valueOf(Thread.currentThread().getId()),
+                                         bestLocalMatches.getRankedMatches());
+        }
+
+        if (null != recordedSequences) {
+            AlphaSweep.write(conf,
+                             params.getParam(AlphaSweep.PARAM_RECORD_DIR),
+                             context.getTaskAttemptID() + "_" + Thread.currentThread().getId(),
+                             recordedSequences);
+        }
+
+        if (null != matchCache) {
+            // every thread writes its own segment, merged by the driver
+            try {
+                matchCache.flush(context.getTaskAttemptID() + "_" + Thread.currentThread().getId());
+            } catch (IOException e) {
+                logger.warn("Cannot write match cache. " + e.getMessage());
+            }
+            matchCache.close();
+        }
+
+        if (null != scoreStore) {
+            // final bound helps tasks which are yet to start
+            shareScoreBound(true);
+            if (null != scoreStore)
+                scoreStore.close();
+        }
 
         super.cleanup(context);
     }
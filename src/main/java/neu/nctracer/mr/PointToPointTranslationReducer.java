@@ -2,15 +2,23 @@ package neu.nctracer.mr;
 
 import java.io.IOException;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapreduce.Reducer;
 
 import neu.nctracer.data.Match;
+import neu.nctracer.dm.TopKMatches;
 
 /**
- * Reducer to emit just keys for every reduce call.
+ * Reducer to emit <tt>K</tt> best matches across all the mappers, ranked from
+ * best to worst. Matches with nearly same translation are suppressed (see
+ * {@link TopKMatches}).<br>
+ * 
+ * All the matches are received in a single reduce call sorted by descending
+ * score. Thus reducer stops reading as soon as no other match can make it to
+ * the top <tt>K</tt>.
  * 
  * @author Ankur Shanbhag
  *
@@ -18,13 +26,89 @@ import neu.nctracer.data.Match;
 public class PointToPointTranslationReducer
         extends Reducer<Match, NullWritable, Match, NullWritable> {
 
+    private TopKMatches bestMatches = null;
+
+    @Override
+    protected void
+              setup(Reducer<Match, NullWritable, Match, NullWritable>.Context context) throws IOException,
+                                                                                       InterruptedException {
+        super.setup(context);
+        bestMatches = createTopKMatches(context.getConfiguration());
+    }
+
     @Override
     protected void
               reduce(Match match,
                      Iterable<NullWritable> value,
                      Reducer<Match, NullWritable, Match, NullWritable>.Context context) throws IOException,
                                                                                         InterruptedException {
-        context.write(match, NullWritable.get());
+        // key object is refilled by the framework for every value
+        for (@SuppressWarnings("unused")
+        NullWritable ignore : value) {
+            if (!bestMatches.canAccept(match))
+                break;
+            context.getCounter(StitchingCounters.REDUCE_MATCHES_READ).increment(1);
+            bestMatches.offer(new Match(match));
+        }
+    }
+
+    @Override
+    protected void
+              cleanup(Reducer<Match, NullWritable, Match, NullWritable>.Context context) throws IOException,
+                                                                                         InterruptedException {
+        for (Match match : bestMatches.getRankedMatches()) {
+            context.write(match, NullWritable.get());
+            context.getCounter(StitchingCounters.REDUCE_MATCHES_WRITTEN).increment(1);
+        }
+        super.cleanup(context);
+    }
+
+    static TopKMatches createTopKMatches(Configuration conf) {
+        return new TopKMatches(conf.getInt(TopKMatches.PARAM_TOP_K, 1),
+                               conf.getDouble(TopKMatches.PARAM_SUPPRESSION_RADIUS, 0.0));
+    }
+
+    /**
+     * Merges matches emitted by all the mapper threads of a map task and
+     * forwards only <tt>K</tt> best
+     * 
+     * @author Ankur Shanbhag
+     *
+     */
+    public static class PointToPointTranslationCombiner
+            extends Reducer<Match, NullWritable, Match, NullWritable> {
+
+        private TopKMatches bestMatches = null;
+
+        @Override
+        protected void
+                  setup(Reducer<Match, NullWritable, Match, NullWritable>.Context context) throws IOException,
+                                                                                           InterruptedException {
+            super.setup(context);
+            bestMatches = createTopKMatches(context.getConfiguration());
+        }
+
+        @Override
+        protected void
+                  reduce(Match match,
+                         Iterable<NullWritable> value,
+                         Reducer<Match, NullWritable, Match, NullWritable>.Context context) throws IOException,
+                                                                                            InterruptedException {
+            for (@SuppressWarnings("unused")
+            NullWritable ignore : value) {
+                bestMatches.offer(new Match(match));
+            }
+        }
+
+        @Override
+        protected void
+                  cleanup(Reducer<Match, NullWritable, Match, NullWritable>.Context context) throws IOException,
+                                                                                             InterruptedException {
+            for (Match match : bestMatches.getRankedMatches()) {
+                context.write(match, NullWritable.get());
+            }
+            super.cleanup(context);
+        }
     }
 
     /**
@@ -35,7 +119,14 @@ public class PointToPointTranslationReducer
      */
     public static class PointToPointTranslationGroupComparator extends WritableComparator {
         public PointToPointTranslationGroupComparator() {
-            super(Match.class, true);
+            // keys are never deserialized. Thus no need to create instances
+            super(Match.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            // Group all the records in a single reduce call
+            return 0;
         }
 
         @SuppressWarnings("rawtypes")
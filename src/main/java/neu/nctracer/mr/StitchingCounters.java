@@ -0,0 +1,35 @@
+package neu.nctracer.mr;
+
+/**
+ * Hadoop counters published by the stitching jobs. Printed by the driver once
+ * the job completes (see {@link MapReduceStitchingDriver}). Times are summed
+ * over all the tasks.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public enum StitchingCounters {
+    // mapper setup
+    SETUP_MILLIS,
+    STACK_READ_MILLIS,
+    STACK_PARSE_MILLIS,
+    INDEX_BUILD_MILLIS,
+
+    // work done by the mappers
+    TRANSFORMATIONS_EVALUATED,
+    TRANSFORMATIONS_PRUNED,
+    TRANSFORMATIONS_SKIPPED,
+    NEIGHBOR_QUERIES,
+    CANDIDATES_PUSHED,
+    MATCH_MILLIS,
+    MATCHES_EMITTED,
+    // transformations skipped or evaluated because of the match cache
+    CACHE_HITS,
+    CACHE_MISSES,
+    // stack pairs loaded by batch mappers (see BatchTranslationMapper)
+    PAIR_LOADS,
+
+    // reducer
+    REDUCE_MATCHES_READ,
+    REDUCE_MATCHES_WRITTEN
+}
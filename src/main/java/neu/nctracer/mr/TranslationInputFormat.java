@@ -0,0 +1,279 @@
+package neu.nctracer.mr;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import neu.nctracer.conf.cli.CLIConfigurationManager;
+import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.dm.AllPairsCandidateGenerator;
+import neu.nctracer.dm.CandidateGenerator;
+import neu.nctracer.dm.PointStackRegistry;
+import neu.nctracer.exception.HdfsException;
+import neu.nctracer.exception.ParsingException;
+import neu.nctracer.exception.ReflectionUtilsException;
+import neu.nctracer.utils.ReflectionUtils;
+
+/**
+ * Input format which generates candidate transformations instead of reading
+ * them from a file. Splits are ranges of candidate indexes and do not need any
+ * input file. Record reader generates candidates of its range on the fly
+ * using {@link CandidateGenerator} and the image stacks from distributed
+ * cache.<br>
+ *
+ * Key is the candidate index and value is the transformation. Candidate ranges
+ * recorded as completed in the checkpoint of the job are skipped (see
+ * {@link CheckpointStore}).
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class TranslationInputFormat
+        extends InputFormat<LongWritable, DataTransformation<DataObject>> {
+
+    public static final String CANDIDATE_GENERATOR_CLASS = "translation.candidate.generator.class";
+    public static final String NUM_CANDIDATES = "translation.candidates.count";
+    public static final String CANDIDATES_PER_SPLIT = "translation.candidates.per.split";
+
+    /**
+     * Sets the generator and number of candidates it generates. Candidates
+     * are counted by the client
+     */
+    public static void setCandidateGenerator(Job job,
+                                             Class<? extends CandidateGenerator> generatorClass,
+                                             long numCandidates) {
+        job.getConfiguration().set(CANDIDATE_GENERATOR_CLASS, generatorClass.getName());
+        job.getConfiguration().setLong(NUM_CANDIDATES, numCandidates);
+    }
+
+    public static void setCandidatesPerSplit(Job job, long candidatesPerSplit) {
+        job.getConfiguration().setLong(CANDIDATES_PER_SPLIT, candidatesPerSplit);
+    }
+
+    /**
+     * Instantiates generator class set in the configuration
+     */
+    public static CandidateGenerator createCandidateGenerator(Configuration conf) {
+        String className = conf.get(CANDIDATE_GENERATOR_CLASS,
+                                    AllPairsCandidateGenerator.class.getName());
+        try {
+            return ReflectionUtils.instantiate(className, CandidateGenerator.class);
+        } catch (ReflectionUtilsException e) {
+            throw new IllegalArgumentException("Class ["
+                                               + className
+                                               + "] specified as parameter to ["
+                                               + CANDIDATE_GENERATOR_CLASS
+                                               + "] cannot be instantiated",
+                                               e);
+        }
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext context) throws IOException,
+                                                          InterruptedException {
+        Configuration conf = context.getConfiguration();
+        long numCandidates = conf.getLong(NUM_CANDIDATES, -1);
+        if (numCandidates < 0)
+            throw new IOException("Number of candidates is not set. Parameter ["
+                                  + NUM_CANDIDATES
+                                  + "] is mandatory.");
+
+        long candidatesPerSplit = Math.max(1, conf.getLong(CANDIDATES_PER_SPLIT, 1000));
+
+        // ranges completed by an earlier run are skipped
+        List<long[]> completedRanges = new ArrayList<>();
+        CheckpointStore store = CheckpointStore.get(conf);
+        if (null != store)
+            completedRanges = store.readCompletedRanges();
+
+        List<InputSplit> splits = new ArrayList<>();
+        long start = 0;
+        for (long[] completed : completedRanges) {
+            addSplits(splits, start, Math.min(completed[0], numCandidates), candidatesPerSplit);
+            start = Math.max(start, completed[0] + completed[1]);
+        }
+        addSplits(splits, start, numCandidates, candidatesPerSplit);
+        return splits;
+    }
+
+    /**
+     * Cuts candidates <tt>[start, end)</tt> into splits
+     */
+    private static void addSplits(List<InputSplit> splits,
+                                  long start,
+                                  long end,
+                                  long candidatesPerSplit) {
+        for (long index = start; index < end; index += candidatesPerSplit) {
+            splits.add(new CandidateRangeSplit(index, Math.min(candidatesPerSplit, end - index)));
+        }
+    }
+
+    @Override
+    public RecordReader<LongWritable, DataTransformation<DataObject>>
+           createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException,
+                                                                            InterruptedException {
+        return new CandidateRecordReader();
+    }
+
+    /**
+     * Range of candidate indexes <tt>[start, start + length)</tt>
+     */
+    public static class CandidateRangeSplit extends InputSplit implements Writable {
+
+        private long start;
+        private long length;
+
+        public CandidateRangeSplit() {
+            // defined for sake of making it work as a Writable class
+        }
+
+        public CandidateRangeSplit(long start, long length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Number of candidates in the split
+         */
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public String[] getLocations() {
+            // candidates are generated, no data locality
+            return new String[0];
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeLong(start);
+            out.writeLong(length);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            this.start = in.readLong();
+            this.length = in.readLong();
+        }
+
+        @Override
+        public String toString() {
+            return "candidates [" + start + ", " + (start + length) + ")";
+        }
+    }
+
+    /**
+     * Generates candidates of the split. Image stacks are shared with the
+     * mappers running in the same JVM (see {@link PointStackRegistry})
+     */
+    public static class CandidateRecordReader
+            extends RecordReader<LongWritable, DataTransformation<DataObject>> {
+
+        private CandidateGenerator generator = null;
+        private PointStack source = null;
+        private PointStack target = null;
+
+        private long start;
+        private long end;
+        private long current;
+
+        private final LongWritable key = new LongWritable();
+        private final DataTransformation<DataObject> value = new DataTransformation<>();
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException,
+                                                                             InterruptedException {
+            CandidateRangeSplit range = (CandidateRangeSplit) split;
+            this.start = range.getStart();
+            this.end = range.getStart() + range.getLength();
+            this.current = start;
+
+            Configuration conf = context.getConfiguration();
+            try {
+                ConfigurationParams params = CLIConfigurationManager.getHandler()
+                                                                    .getConfigurationParamsInstance();
+                String[] strings = conf.getStrings("configurable.params");
+                if (null != strings)
+                    params.parseParams(strings);
+
+                boolean singlePrecision = PointStack.isSinglePrecision(params.getParam(PointStack.PARAM_PRECISION,
+                                                                                       "double"));
+                source = PointStackRegistry.acquire(conf,
+                                                    conf.get(HdfsConstants.SOURCE_IMAGE_FILE_NAME),
+                                                    singlePrecision);
+                target = PointStackRegistry.acquire(conf,
+                                                    conf.get(HdfsConstants.TARGET_IMAGE_FILE_NAME),
+                                                    singlePrecision);
+
+                generator = createCandidateGenerator(conf);
+                generator.setup(source, target, params);
+            } catch (ParsingException e) {
+                throw new HdfsException("Error while reading image data for candidate generation.", e);
+            }
+
+            if (end > generator.size())
+                throw new HdfsException("Split ["
+                                        + range
+                                        + "] exceeds number of candidates ["
+                                        + generator.size()
+                                        + "]. Image data differs from the data seen by the client.");
+        }
+
+        @Override
+        public boolean nextKeyValue() {
+            if (current >= end)
+                return false;
+
+            key.set(current);
+            generator.generate(current, value);
+            current++;
+            return true;
+        }
+
+        @Override
+        public LongWritable getCurrentKey() {
+            return key;
+        }
+
+        @Override
+        public DataTransformation<DataObject> getCurrentValue() {
+            return value;
+        }
+
+        @Override
+        public float getProgress() {
+            return (end == start) ? 1.0f : (current - start) / (float) (end - start);
+        }
+
+        @Override
+        public void close() {
+            if (null != source)
+                PointStackRegistry.release(source);
+            if (null != target)
+                PointStackRegistry.release(target);
+            source = null;
+            target = null;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package neu.nctracer.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.ImageData;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.exception.ParsingException;
+
+/**
+ * Reads and writes image stacks in binary format. Binary stack file has a
+ * fixed size header followed by packed coordinates of all the points.<br>
+ *
+ * <tt>magic (int) | version (byte) | precision (byte) | reserved (short) |
+ * dimension (int) | count (int) | min bounds (dimension doubles) | max bounds
+ * (dimension doubles) | count x dimension coordinates</tt><br>
+ *
+ * Coordinates are written as floats or doubles depending on precision. All
+ * values are big-endian. Files are memory-mapped while reading and the
+ * coordinates are copied in bulk, without any text parsing.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public final class BinaryStackFile {
+
+    public static final int MAGIC = 0x4E435354;
+    public static final byte VERSION = 1;
+
+    public static final int SINGLE_PRECISION = 4;
+    public static final int DOUBLE_PRECISION = 8;
+
+    public static final String FILE_EXTENSION = ".stack";
+
+    /**
+     * Header of the binary stack file
+     */
+    public static class Header {
+        private final int precision;
+        private final int dimension;
+        private final int count;
+        private final double[] minBounds;
+        private final double[] maxBounds;
+
+        Header(int precision, int dimension, int count, double[] minBounds, double[] maxBounds) {
+            this.precision = precision;
+            this.dimension = dimension;
+            this.count = count;
+            this.minBounds = minBounds;
+            this.maxBounds = maxBounds;
+        }
+
+        public int getPrecision() {
+            return precision;
+        }
+
+        public int getDimension() {
+            return dimension;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double[] getMinBounds() {
+            return minBounds;
+        }
+
+        public double[] getMaxBounds() {
+            return maxBounds;
+        }
+
+        /**
+         * Number of bytes occupied by the header
+         */
+        public int getLength() {
+            return headerLength(dimension);
+        }
+    }
+
+    /**
+     * Converts text image stack file (whitespace separated values per line)
+     * to binary stack file, parsing it with at most <tt>numThreads</tt>
+     * threads
+     */
+    public static void convert(String textFilePath,
+                               String binaryFilePath,
+                               int precision,
+                               int numThreads) throws IOException, ParsingException {
+        List<DataObject> points = StackTextParser.parse(textFilePath, numThreads).toDataObjects();
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(binaryFilePath));
+            write(points, precision, out);
+        } finally {
+            if (null != out)
+                out.close();
+        }
+    }
+
+    /**
+     * Writes all the points to output stream in binary stack format
+     */
+    public static void write(List<DataObject> points,
+                             int precision,
+                             OutputStream stream) throws IOException {
+        if (precision != SINGLE_PRECISION && precision != DOUBLE_PRECISION)
+            throw new IllegalArgumentException("Invalid precision [" + precision + "]");
+
+        int dimension = points.isEmpty() ? 0 : points.get(0).getDimension();
+        double[] minBounds = new double[dimension];
+        double[] maxBounds = new double[dimension];
+        Arrays.fill(minBounds, Double.MAX_VALUE);
+        Arrays.fill(maxBounds, -Double.MAX_VALUE);
+        for (DataObject point : points) {
+            double[] features = point.getFeatures();
+            for (int i = 0; i < dimension; i++) {
+                minBounds[i] = Math.min(minBounds[i], features[i]);
+                maxBounds[i] = Math.max(maxBounds[i], features[i]);
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(precision);
+        out.writeShort(0);
+        out.writeInt(dimension);
+        out.writeInt(points.size());
+        for (double bound : minBounds)
+            out.writeDouble(bound);
+        for (double bound : maxBounds)
+            out.writeDouble(bound);
+
+        for (DataObject point : points) {
+            double[] features = point.getFeatures();
+            if (features.length != dimension)
+                throw new IOException("All the points in the stack must have dimension " + dimension);
+
+            for (int i = 0; i < dimension; i++) {
+                if (precision == SINGLE_PRECISION)
+                    out.writeFloat((float) features[i]);
+                else
+                    out.writeDouble(features[i]);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Checks if the local file starts with binary stack file header
+     */
+    public static boolean isBinaryStack(String localFilePath) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(localFilePath));
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            if (null != in)
+                in.close();
+        }
+    }
+
+    /**
+     * Memory-maps local binary stack file in read-only mode
+     */
+    public static ByteBuffer map(String localFilePath) throws IOException {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(localFilePath, "r");
+            FileChannel channel = file.getChannel();
+            // mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            if (null != file)
+                file.close();
+        }
+    }
+
+    public static Header readHeader(ByteBuffer buffer) throws ParsingException {
+        ByteBuffer data = buffer.duplicate();
+        if (data.remaining() < headerLength(0) || data.getInt() != MAGIC)
+            throw new ParsingException("Not a binary image stack file.");
+
+        byte version = data.get();
+        if (version != VERSION)
+            throw new ParsingException("Unsupported binary stack file version [" + version + "]");
+
+        int precision = data.get();
+        if (precision != SINGLE_PRECISION && precision != DOUBLE_PRECISION)
+            throw new ParsingException("Invalid precision [" + precision + "]");
+
+        data.getShort();
+        int dimension = data.getInt();
+        int count = data.getInt();
+
+        long expectedLength = headerLength(dimension) + (long) count * dimension * precision;
+        if (buffer.remaining() < expectedLength)
+            throw new ParsingException("Binary stack file is truncated. Expected "
+                                       + expectedLength
+                                       + " bytes, found "
+                                       + buffer.remaining());
+
+        double[] minBounds = new double[dimension];
+        double[] maxBounds = new double[dimension];
+        for (int i = 0; i < dimension; i++)
+            minBounds[i] = data.getDouble();
+        for (int i = 0; i < dimension; i++)
+            maxBounds[i] = data.getDouble();
+
+        return new Header(precision, dimension, count, minBounds, maxBounds);
+    }
+
+    /**
+     * Creates data objects for all the points in the binary stack
+     */
+    public static List<DataObject> readDataObjects(ByteBuffer buffer) throws ParsingException {
+        Header header = readHeader(buffer);
+
+        ByteBuffer data = buffer.duplicate();
+        data.position(data.position() + header.getLength());
+
+        List<DataObject> points = new ArrayList<>(header.getCount());
+        for (int i = 0; i < header.getCount(); i++) {
+            double[] features = new double[header.getDimension()];
+            for (int j = 0; j < features.length; j++) {
+                features[j] = (header.getPrecision() == SINGLE_PRECISION) ? data.getFloat()
+                                                                          : data.getDouble();
+            }
+
+            ImageData point = new ImageData();
+            point.setFeatures(features);
+            point.setId(i);
+            points.add(point);
+        }
+        return points;
+    }
+
+    /**
+     * Copies coordinates of all the points in the binary stack to a point
+     * stack
+     */
+    public static PointStack readPointStack(ByteBuffer buffer) throws ParsingException {
+        return readPointStack(buffer, false);
+    }
+
+    /**
+     * Copies coordinates of all the points in the binary stack to a point
+     * stack holding coordinates in single or double precision
+     */
+    public static PointStack readPointStack(ByteBuffer buffer,
+                                            boolean singlePrecision) throws ParsingException {
+        Header header = readHeader(buffer);
+
+        ByteBuffer data = buffer.duplicate();
+        data.position(data.position() + header.getLength());
+
+        int dimension = Math.max(header.getDimension(), 1);
+        int numCoordinates = header.getCount() * header.getDimension();
+        boolean storedAsFloat = header.getPrecision() == SINGLE_PRECISION;
+
+        if (singlePrecision) {
+            float[] coordinates = new float[numCoordinates];
+            if (storedAsFloat) {
+                data.asFloatBuffer().get(coordinates);
+            } else {
+                for (int i = 0; i < numCoordinates; i++) {
+                    coordinates[i] = (float) data.getDouble();
+                }
+            }
+            return new PointStack(dimension, coordinates);
+        }
+
+        double[] coordinates = new double[numCoordinates];
+        if (storedAsFloat) {
+            for (int i = 0; i < numCoordinates; i++) {
+                coordinates[i] = data.getFloat();
+            }
+        } else {
+            data.asDoubleBuffer().get(coordinates);
+        }
+        return new PointStack(dimension, coordinates);
+    }
+
+    private static int headerLength(int dimension) {
+        // magic, version, precision, reserved, dimension, count, bounds
+        return 4 + 1 + 1 + 2 + 4 + 4 + 2 * 8 * dimension;
+    }
+
+    /**
+     * Converts text image stack file to binary format<br>
+     * Usage: <tt>BinaryStackFile [text-file] [binary-file] [float | double]</tt>
+     */
+    public static void main(String[] args) throws IOException, ParsingException {
+        if (args.length < 2) {
+            System.out.println("Usage: BinaryStackFile [text-file] [binary-file] [float | double]");
+            System.exit(0);
+        }
+
+        int precision = (args.length > 2 && "float".equalsIgnoreCase(args[2])) ? SINGLE_PRECISION
+                                                                               : DOUBLE_PRECISION;
+        convert(args[0], args[1], precision, Runtime.getRuntime().availableProcessors());
+    }
+
+    private BinaryStackFile() {
+        // deny object creation
+    }
+}
@@ -0,0 +1,129 @@
+package neu.nctracer.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.ImageData;
+import neu.nctracer.data.PointStack;
+
+/**
+ * Growable buffer holding coordinates of points with same dimension in a
+ * single primitive array. Coordinates of point <tt>i</tt> are stored at
+ * positions <tt>[i * dimension, (i + 1) * dimension)</tt>
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class CoordinateBuffer {
+
+    private double[] coordinates;
+    private int length = 0;
+    private int dimension = -1;
+
+    public CoordinateBuffer() {
+        this(1024);
+    }
+
+    public CoordinateBuffer(int initialCapacity) {
+        this.coordinates = new double[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * Appends coordinates of a single point
+     *
+     * @throws IllegalArgumentException
+     *             if point dimension differs from dimension of points already
+     *             added
+     */
+    public void addPoint(double[] values, int offset, int pointDimension) {
+        if (dimension < 0)
+            dimension = pointDimension;
+        else if (dimension != pointDimension)
+            throw new IllegalArgumentException("Expected point with dimension "
+                                               + dimension
+                                               + ", found "
+                                               + pointDimension);
+
+        ensureCapacity(length + pointDimension);
+        System.arraycopy(values, offset, coordinates, length, pointDimension);
+        length += pointDimension;
+    }
+
+    /**
+     * Appends all the points from other buffer
+     */
+    public void addAll(CoordinateBuffer other) {
+        if (other.getCount() == 0)
+            return;
+        if (dimension >= 0 && dimension != other.dimension)
+            throw new IllegalArgumentException("Expected points with dimension "
+                                               + dimension
+                                               + ", found "
+                                               + other.dimension);
+
+        dimension = other.dimension;
+        ensureCapacity(length + other.length);
+        System.arraycopy(other.coordinates, 0, coordinates, length, other.length);
+        length += other.length;
+    }
+
+    public int getDimension() {
+        return Math.max(dimension, 0);
+    }
+
+    public int getCount() {
+        return (dimension <= 0) ? 0 : length / dimension;
+    }
+
+    /**
+     * Returns coordinates of all the points trimmed to size
+     */
+    public double[] toArray() {
+        return Arrays.copyOf(coordinates, length);
+    }
+
+    /**
+     * Creates data objects for all the points in the buffer
+     */
+    public List<DataObject> toDataObjects() {
+        int count = getCount();
+        List<DataObject> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ImageData point = new ImageData();
+            point.setFeatures(Arrays.copyOfRange(coordinates, i * dimension, (i + 1) * dimension));
+            point.setId(i);
+            points.add(point);
+        }
+        return points;
+    }
+
+    /**
+     * Creates point stack holding all the points in the buffer
+     */
+    public PointStack toPointStack() {
+        return new PointStack(Math.max(dimension, 1), toArray());
+    }
+
+    /**
+     * Creates point stack holding all the points in the buffer in single or
+     * double precision
+     */
+    public PointStack toPointStack(boolean singlePrecision) {
+        if (!singlePrecision)
+            return toPointStack();
+
+        float[] floatCoordinates = new float[length];
+        for (int i = 0; i < length; i++) {
+            floatCoordinates[i] = (float) coordinates[i];
+        }
+        return new PointStack(Math.max(dimension, 1), floatCoordinates);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= coordinates.length)
+            return;
+        coordinates = Arrays.copyOf(coordinates, Math.max(capacity, coordinates.length * 2));
+    }
+}
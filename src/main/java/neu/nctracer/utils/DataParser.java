@@ -1,9 +1,20 @@
 package neu.nctracer.utils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.IOUtils;
+
 import neu.nctracer.data.DataObject;
+import neu.nctracer.data.ImageData;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.exception.HdfsException;
 import neu.nctracer.exception.ParsingException;
 
 public final class DataParser {
@@ -33,6 +44,8 @@ public final class DataParser {
 
                     DataObject dataObj = clazz.newInstance();
                     dataObj.setFeatures(features);
+                    if (dataObj instanceof ImageData)
+                        ((ImageData) dataObj).setId(parsedData.size());
                     parsedData.add(dataObj);
                 }
             } catch (NumberFormatException exp) {
@@ -52,6 +65,83 @@ public final class DataParser {
         return parsedData;
     }
 
+    /**
+     * Reads image stack file stored either as text or in binary format (see
+     * {@link BinaryStackFile}) in a {@link PointStack}. Coordinates of binary
+     * files on local file system are copied from a memory-mapped buffer. Text
+     * files are parsed while streaming (see {@link StackTextParser})
+     */
+    public static PointStack parseStack(Configuration conf,
+                                        String filePath,
+                                        boolean isHdfsPath) throws ParsingException,
+                                                            HdfsException {
+        return parseStack(conf, filePath, isHdfsPath, false);
+    }
+
+    /**
+     * Same as {@link #parseStack(Configuration, String, boolean)}, with
+     * coordinates held in single or double precision. Local text files are
+     * parsed by the number of threads set in the configuration (see
+     * {@link StackTextParser#PARAM_THREADS}), one by default
+     */
+    public static PointStack parseStack(Configuration conf,
+                                        String filePath,
+                                        boolean isHdfsPath,
+                                        boolean singlePrecision) throws ParsingException,
+                                                                 HdfsException {
+        return parseStack(conf,
+                          filePath,
+                          isHdfsPath,
+                          singlePrecision,
+                          conf.getInt(StackTextParser.PARAM_THREADS, 1));
+    }
+
+    /**
+     * Same as {@link #parseStack(Configuration, String, boolean, boolean)},
+     * with local text files parsed by at most <tt>numThreads</tt> threads
+     */
+    public static PointStack parseStack(Configuration conf,
+                                        String filePath,
+                                        boolean isHdfsPath,
+                                        boolean singlePrecision,
+                                        int numThreads) throws ParsingException, HdfsException {
+        if (!isHdfsPath) {
+            try {
+                if (BinaryStackFile.isBinaryStack(filePath))
+                    return BinaryStackFile.readPointStack(BinaryStackFile.map(filePath),
+                                                        singlePrecision);
+
+                return StackTextParser.parse(filePath, numThreads).toPointStack(singlePrecision);
+            } catch (IOException e) {
+                throw new HdfsException("Error while reading image stack file [" + filePath + "]",
+                                        e);
+            }
+        }
+
+        FSDataInputStream in = HdfsFileUtils.open(conf, filePath, true);
+        try {
+            boolean isBinary;
+            try {
+                isBinary = in.readInt() == BinaryStackFile.MAGIC;
+            } catch (EOFException e) {
+                // too short to be a binary stack
+                isBinary = false;
+            }
+            in.seek(0);
+            if (isBinary) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                IOUtils.copyBytes(in, bytes, conf, false);
+                return BinaryStackFile.readPointStack(ByteBuffer.wrap(bytes.toByteArray()),
+                                                     singlePrecision);
+            }
+            return StackTextParser.parse(in).toPointStack(singlePrecision);
+        } catch (IOException e) {
+            throw new HdfsException("Error while reading image stack file [" + filePath + "]", e);
+        } finally {
+            IOUtils.closeStream(in);
+        }
+    }
+
     private DataParser() {
         // deny object creation
     }
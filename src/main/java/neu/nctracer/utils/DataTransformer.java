@@ -57,10 +57,10 @@ public class DataTransformer {
     }
 
     public static double computeEuclideanDistance(DataObject point1, DataObject point2) {
+        return computeEuclideanDistance(point1.getFeatures(), point2.getFeatures());
+    }
 
-        double[] features1 = point1.getFeatures();
-        double[] features2 = point2.getFeatures();
-
+    public static double computeEuclideanDistance(double[] features1, double[] features2) {
         double distance = 0.0;
         for (int i = 0; i < features1.length; i++) {
             // add square of differences
@@ -71,14 +71,37 @@ public class DataTransformer {
         return Math.sqrt(distance);
     }
 
+    /**
+     * Euclidean length of the vector
+     */
+    public static double computeNorm(double[] vector) {
+        double norm = 0.0;
+        for (double component : vector) {
+            norm += component * component;
+        }
+        return Math.sqrt(norm);
+    }
+
+    /**
+     * Vector which moves first point on to the second one
+     */
+    public static double[] computeOffsetVector(double[] features1, double[] features2) {
+        double[] offset = new double[features1.length];
+        for (int i = 0; i < features1.length; i++) {
+            offset[i] = features2[i] - features1[i];
+        }
+        return offset;
+    }
+
     public static double[] computeDirectionAngles(DataObject point1, DataObject point2) {
-        double distance = computeEuclideanDistance(point1, point2);
+        return computeDirectionAngles(point1.getFeatures(), point2.getFeatures());
+    }
 
-        double[] features1 = point1.getFeatures();
-        double[] features2 = point2.getFeatures();
+    public static double[] computeDirectionAngles(double[] features1, double[] features2) {
+        double distance = computeEuclideanDistance(features1, features2);
 
-        double angles[] = new double[point1.getDimension()];
-        for (int i = 0; i < point1.getDimension(); i++) {
+        double angles[] = new double[features1.length];
+        for (int i = 0; i < features1.length; i++) {
             // diff of values for each axis (x,y,z)
             double axis = features2[i] - features1[i];
             double angleInRadians = Math.acos(axis / distance);
@@ -62,6 +62,21 @@ public final class HdfsFileUtils {
         }
     }
 
+    /**
+     * Opens file for streaming reads. Caller is responsible for closing the
+     * stream
+     */
+    public static FSDataInputStream open(Configuration conf,
+                                         String filePath,
+                                         boolean isHdfsPath) throws HdfsException {
+        try {
+            FileSystem fs = getFileSystem(conf, filePath, isHdfsPath);
+            return fs.open(new Path(filePath));
+        } catch (IOException e) {
+            throw new HdfsException("Error while opening file [" + filePath + "]", e);
+        }
+    }
+
     public static FileSystem getFileSystem(Configuration conf,
                                            String filePath,
                                            boolean isHdfsPath) throws HdfsException {
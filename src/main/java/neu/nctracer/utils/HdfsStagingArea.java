@@ -0,0 +1,431 @@
+package neu.nctracer.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import neu.nctracer.exception.HdfsException;
+
+/**
+ * Persistent HDFS area shared by all the stitching runs under the same root
+ * directory.<br>
+ *
+ * <tt>root/staging/[checksum]/[file name]</tt> - input files (e.g. image
+ * stacks) keyed by SHA-256 of their content <br>
+ * <tt>root/jars/[checksum]/[jar name]</tt> - dependency jars, shared by all the
+ * jobs <br>
+ * <tt>root/runs/[run name]-[timestamp]</tt> - files generated by a single run
+ * <br>
+ * <tt>root/checkpoints/[key]</tt> - progress of runs, kept across runs so that
+ * a failed run can be resumed <br>
+ * <tt>root/match-cache/[key]</tt> - match scores shared by the runs on same
+ * stacks <br>
+ *
+ * A file is uploaded only if a file with same checksum was not uploaded
+ * before, thus repeated runs upload only the files which changed. Staged files
+ * are never modified once uploaded, as YARN rejects distributed cache files
+ * whose modification time changed after the job was submitted. Use of a
+ * directory is recorded by touching a separate marker file in it instead (see
+ * {@link #markUsed(String)}), and directories not used for a while are
+ * garbage-collected by age (see {@link #collectGarbage(long, long)}) along
+ * with old run directories.<br>
+ *
+ * Directories in use by a run (e.g. its run directory) are kept alive with a
+ * heartbeat file touched periodically by the run (see
+ * {@link #keepAlive(String)}). Such directories are never garbage-collected,
+ * however long the run takes.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class HdfsStagingArea {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // run directories older than this are deleted
+    public static final String PARAM_RUN_MAX_AGE_HOURS = "hdfs.runs.max.age.hours";
+    // staged files and jars not used for this long are deleted
+    public static final String PARAM_STAGED_MAX_AGE_DAYS = "hdfs.staging.max.age.days";
+
+    private static final String STAGING_DIR = "staging";
+    private static final String JARS_DIR = "jars";
+    private static final String RUNS_DIR = "runs";
+    private static final String CHECKPOINTS_DIR = "checkpoints";
+    private static final String MATCH_CACHE_DIR = "match-cache";
+
+    private static final String HEARTBEAT_FILE = "_heartbeat";
+    // modification time of this file is the last time directory was used
+    private static final String LAST_USED_FILE = "_last_used";
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 60 * 1000;
+    // heartbeat older than this belongs to a run which has died
+    private static final long HEARTBEAT_TIMEOUT_MILLIS = 5 * HEARTBEAT_INTERVAL_MILLIS;
+
+    private final Configuration conf;
+    private final String rootDir;
+    private final FileSystem fs;
+
+    // local file (path, length and modification time) to staged path. Avoids
+    // computing checksum of same file for every job of the run
+    private final Map<String, String> stagedFiles = new HashMap<>();
+
+    // directories kept alive by this run
+    private final Set<Path> liveDirs = Collections.synchronizedSet(new HashSet<Path>());
+    private Timer heartbeat = null;
+
+    public HdfsStagingArea(Configuration conf, String rootDir) throws HdfsException {
+        this.conf = conf;
+        this.rootDir = rootDir;
+        this.fs = HdfsFileUtils.getFileSystem(conf, rootDir, true);
+    }
+
+    /**
+     * Creates a new directory for files generated by a single run
+     *
+     * @return path to the created directory
+     */
+    public String createRunDir(String runName) throws HdfsException {
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        String runDir = rootDir
+                        + Path.SEPARATOR
+                        + RUNS_DIR
+                        + Path.SEPARATOR
+                        + runName
+                        + "-"
+                        + timestamp;
+        if (HdfsFileUtils.isDir(runDir, conf, true))
+            throw new HdfsException("HDFS run directory already exists - " + runDir);
+
+        HdfsFileUtils.createDir(runDir, false, conf, true);
+        keepAlive(runDir);
+        return runDir;
+    }
+
+    /**
+     * Keeps the directory from being garbage-collected till it is released
+     * or this JVM exits. Directory and its heartbeat file are touched
+     * periodically, so that other runs can tell it is in use (see
+     * {@link #isAlive(String)})
+     */
+    public synchronized void keepAlive(String dir) throws HdfsException {
+        Path path = new Path(dir);
+        try {
+            fs.mkdirs(path);
+            fs.create(new Path(path, HEARTBEAT_FILE), true).close();
+        } catch (IOException e) {
+            throw new HdfsException("Error creating heartbeat file in HDFS dir [" + dir + "]", e);
+        }
+        liveDirs.add(path);
+
+        if (null == heartbeat) {
+            heartbeat = new Timer("hdfs-staging-heartbeat", true);
+            heartbeat.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    touchLiveDirs();
+                }
+            }, HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Stops heartbeat of the directory. It is garbage-collected by its age
+     * from now on
+     */
+    public void release(String dir) {
+        Path path = new Path(dir);
+        if (!liveDirs.remove(path))
+            return;
+
+        try {
+            fs.delete(new Path(path, HEARTBEAT_FILE), false);
+        } catch (IOException e) {
+            // heartbeat times out anyway
+        }
+    }
+
+    /**
+     * Returns true if some run keeps the directory alive
+     */
+    public boolean isAlive(String dir) throws HdfsException {
+        try {
+            return isAlive(new Path(dir), System.currentTimeMillis());
+        } catch (IOException e) {
+            throw new HdfsException("Error reading heartbeat file in HDFS dir [" + dir + "]", e);
+        }
+    }
+
+    private boolean isAlive(Path dir, long now) throws IOException {
+        Path heartbeatFile = new Path(dir, HEARTBEAT_FILE);
+        return fs.exists(heartbeatFile)
+               && fs.getFileStatus(heartbeatFile).getModificationTime() >= now
+                                                                        - HEARTBEAT_TIMEOUT_MILLIS;
+    }
+
+    private void touchLiveDirs() {
+        long now = System.currentTimeMillis();
+        Path[] dirs;
+        synchronized (liveDirs) {
+            dirs = liveDirs.toArray(new Path[liveDirs.size()]);
+        }
+        for (Path dir : dirs) {
+            try {
+                fs.setTimes(new Path(dir, HEARTBEAT_FILE), now, -1);
+                fs.setTimes(dir, now, -1);
+            } catch (IOException e) {
+                // retried by the next heartbeat
+            }
+        }
+    }
+
+    /**
+     * Records that the directory is used by this run, so that it is not
+     * garbage-collected for a while. Files in the directory are not modified
+     */
+    public void markUsed(String dir) throws HdfsException {
+        try {
+            touchLastUsed(new Path(dir));
+        } catch (IOException e) {
+            throw new HdfsException("Error marking HDFS dir [" + dir + "] as used", e);
+        }
+    }
+
+    private void touchLastUsed(Path dir) throws IOException {
+        Path marker = new Path(dir, LAST_USED_FILE);
+        fs.mkdirs(dir);
+        if (!fs.exists(marker)) {
+            try {
+                fs.create(marker, true).close();
+                return;
+            } catch (IOException e) {
+                // created by another run meanwhile, touched below
+            }
+        }
+        fs.setTimes(marker, System.currentTimeMillis(), -1);
+    }
+
+    /**
+     * Last time the directory was used, i.e. the latest of its own
+     * modification time and that of its marker file
+     */
+    private long lastUsed(FileStatus dir) throws IOException {
+        Path marker = new Path(dir.getPath(), LAST_USED_FILE);
+        long lastUsed = dir.getModificationTime();
+        if (fs.exists(marker))
+            lastUsed = Math.max(lastUsed, fs.getFileStatus(marker).getModificationTime());
+        return lastUsed;
+    }
+
+    /**
+     * Returns directory for checkpoint of runs identified by the key. Unlike
+     * run directories, it is shared by all the runs with same key
+     */
+    public String getCheckpointDir(String key) {
+        return rootDir + Path.SEPARATOR + CHECKPOINTS_DIR + Path.SEPARATOR + key;
+    }
+
+    /**
+     * Returns directory for match cache of runs identified by the key
+     */
+    public String getMatchCacheDir(String key) {
+        return rootDir + Path.SEPARATOR + MATCH_CACHE_DIR + Path.SEPARATOR + key;
+    }
+
+    /**
+     * Uploads local file to the staging area, unless a file with same content
+     * is already present
+     *
+     * @return HDFS path of the staged file
+     */
+    public String stageFile(String localPath) throws HdfsException {
+        return stage(localPath, STAGING_DIR);
+    }
+
+    /**
+     * Same as {@link #stageFile(String)}, but keeps jars separate so that
+     * they can be shared by all the jobs irrespective of their input files
+     */
+    public String stageJar(String localJarPath) throws HdfsException {
+        return stage(localJarPath, JARS_DIR);
+    }
+
+    private String stage(String localPath, String dirName) throws HdfsException {
+        File localFile = new File(localPath);
+        String memoKey = dirName
+                         + ":"
+                         + localFile.getAbsolutePath()
+                         + ":"
+                         + localFile.length()
+                         + ":"
+                         + localFile.lastModified();
+        String stagedPath = stagedFiles.get(memoKey);
+        if (null != stagedPath)
+            return stagedPath;
+
+        String checksumDir = rootDir
+                             + Path.SEPARATOR
+                             + dirName
+                             + Path.SEPARATOR
+                             + checksum(localFile);
+        Path stagedFile = new Path(checksumDir, localFile.getName());
+
+        try {
+            if (!fs.exists(stagedFile))
+                upload(localFile, stagedFile);
+            // staged file itself must not be touched (see class comment)
+            touchLastUsed(stagedFile.getParent());
+        } catch (IOException e) {
+            throw new HdfsException("Error while staging file [" + localPath + "] on HDFS.", e);
+        }
+
+        stagedPath = stagedFile.toString();
+        stagedFiles.put(memoKey, stagedPath);
+        return stagedPath;
+    }
+
+    /**
+     * Uploads to a temporary file first and renames it, so that concurrent
+     * runs never see partially written files
+     */
+    private void upload(File localFile, Path stagedFile) throws IOException {
+        Path tmpFile = new Path(stagedFile.getParent(),
+                                "." + stagedFile.getName() + "." + System.nanoTime() + ".tmp");
+        fs.mkdirs(stagedFile.getParent());
+        fs.copyFromLocalFile(false, true, new Path(localFile.getAbsolutePath()), tmpFile);
+
+        if (!fs.rename(tmpFile, stagedFile)) {
+            // another run staged same content meanwhile
+            fs.delete(tmpFile, false);
+            if (!fs.exists(stagedFile))
+                throw new IOException("Cannot rename [" + tmpFile + "] to [" + stagedFile + "]");
+        }
+    }
+
+    /**
+     * Deletes run directories and staged files older than the given ages.
+     * Staged files, checkpoints and match caches are aged by their last use,
+     * run directories by their modification time
+     *
+     * @return number of deleted directories
+     */
+    public int collectGarbage(long runMaxAgeMillis, long stagedMaxAgeMillis) throws HdfsException {
+        long now = System.currentTimeMillis();
+        try {
+            int deleted = deleteOlderThan(new Path(rootDir, RUNS_DIR), now - runMaxAgeMillis);
+            deleted += deleteOlderThan(new Path(rootDir, CHECKPOINTS_DIR), now - stagedMaxAgeMillis);
+            deleted += deleteOlderThan(new Path(rootDir, MATCH_CACHE_DIR), now - stagedMaxAgeMillis);
+            for (String dirName : new String[] { STAGING_DIR, JARS_DIR }) {
+                deleted += deleteUnusedSince(new Path(rootDir, dirName), now - stagedMaxAgeMillis);
+            }
+            return deleted;
+        } catch (IOException e) {
+            throw new HdfsException("Error while deleting old files from HDFS dir [" + rootDir + "]",
+                                    e);
+        }
+    }
+
+    private int deleteOlderThan(Path dir, long cutoff) throws IOException {
+        if (!fs.isDirectory(dir))
+            return 0;
+
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        for (FileStatus status : fs.listStatus(dir)) {
+            // modification time of a directory does not change while a run
+            // writes deeper inside it, thus live directories are skipped
+            if (lastUsed(status) < cutoff
+                && !isAlive(status.getPath(), now)
+                && fs.delete(status.getPath(), true))
+                deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Checksum directory is deleted if it was neither uploaded nor marked as
+     * used since the cutoff
+     */
+    private int deleteUnusedSince(Path dir, long cutoff) throws IOException {
+        if (!fs.isDirectory(dir))
+            return 0;
+
+        int deleted = 0;
+        for (FileStatus checksumDir : fs.listStatus(dir)) {
+            // staged file keeps its upload time, marker holds the last use
+            boolean used = false;
+            for (FileStatus file : fs.listStatus(checksumDir.getPath())) {
+                used |= file.getModificationTime() >= cutoff;
+            }
+            if (!used && fs.delete(checksumDir.getPath(), true))
+                deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * SHA-256 of the file content as hex string
+     */
+    public static String checksum(File localFile) throws HdfsException {
+        InputStream in = null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            in = new FileInputStream(localFile);
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        } catch (IOException e) {
+            throw new HdfsException("Error computing checksum of file [" + localFile + "]", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new HdfsException(e);
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * SHA-256 of the UTF-8 encoded text as hex string
+     */
+    public static String checksum(String text) throws HdfsException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return toHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new HdfsException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}
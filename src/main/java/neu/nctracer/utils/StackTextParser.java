@@ -0,0 +1,353 @@
+package neu.nctracer.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import neu.nctracer.exception.ParsingException;
+
+/**
+ * Streaming parser for image stacks stored as text. Every line holds
+ * whitespace separated values of a point followed by an attribute value which
+ * is ignored (same as {@link DataParser}).<br>
+ *
+ * Bytes are tokenized by hand without creating intermediate strings and
+ * coordinates are appended to a {@link CoordinateBuffer}. Plain decimal
+ * numbers are parsed with a fast path, other notations fall back to
+ * {@link Double#parseDouble(String)}.<br>
+ *
+ * Large local files are split into chunks at line boundaries and parsed by
+ * multiple threads.
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public final class StackTextParser {
+
+    /**
+     * Parameters that can be configured by the client
+     */
+    // threads parsing a local text stack on the client. Map tasks already run
+    // several mapper threads, thus parse with the number of threads set in
+    // the job configuration, one by default
+    public static final String PARAM_THREADS = "stack.parser.threads";
+
+    // files smaller than this are always parsed by a single thread
+    private static final long MIN_CHUNK_SIZE = 8L * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // maximum digits which can be held in a long without losing precision of
+    // a double
+    private static final int MAX_FAST_DIGITS = 15;
+
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+                                                    1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+                                                    1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Parses all the points read from the stream. Stream is not closed
+     */
+    public static CoordinateBuffer parse(InputStream in) throws IOException, ParsingException {
+        return parse(in, Long.MAX_VALUE, 0);
+    }
+
+    /**
+     * Parses local text file. Files larger than few megabytes are split into
+     * chunks parsed in parallel by at most <tt>numThreads</tt> threads
+     */
+    public static CoordinateBuffer parse(String localFilePath,
+                                         int numThreads) throws IOException, ParsingException {
+        RandomAccessFile file = new RandomAccessFile(localFilePath, "r");
+        try {
+            long size = file.length();
+            int numChunks = (int) Math.max(1, Math.min(numThreads, size / MIN_CHUNK_SIZE));
+            if (numChunks == 1)
+                return parse(Channels.newInputStream(file.getChannel()), Long.MAX_VALUE, 0);
+
+            long[] boundaries = findChunkBoundaries(file, numChunks);
+            return parseChunks(localFilePath, boundaries);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns offsets at which chunks start. Every chunk except first starts
+     * right after a line separator. Last element is the file size
+     */
+    private static long[] findChunkBoundaries(RandomAccessFile file,
+                                              int numChunks) throws IOException {
+        long size = file.length();
+        long[] boundaries = new long[numChunks + 1];
+        boundaries[numChunks] = size;
+
+        for (int i = 1; i < numChunks; i++) {
+            long offset = Math.max(size * i / numChunks, boundaries[i - 1]);
+            file.seek(offset);
+            int b;
+            while ((b = file.read()) != -1 && b != '\n') {
+                offset++;
+            }
+            boundaries[i] = Math.min(offset + 1, size);
+        }
+        return boundaries;
+    }
+
+    private static CoordinateBuffer
+            parseChunks(final String localFilePath,
+                        final long[] boundaries) throws IOException, ParsingException {
+        int numChunks = boundaries.length - 1;
+        ExecutorService executor = Executors.newFixedThreadPool(numChunks);
+        try {
+            List<Future<CoordinateBuffer>> chunks = new ArrayList<>(numChunks);
+            for (int i = 0; i < numChunks; i++) {
+                final long start = boundaries[i];
+                final long end = boundaries[i + 1];
+                chunks.add(executor.submit(new Callable<CoordinateBuffer>() {
+                    @Override
+                    public CoordinateBuffer call() throws Exception {
+                        RandomAccessFile file = new RandomAccessFile(localFilePath, "r");
+                        try {
+                            FileChannel channel = file.getChannel();
+                            channel.position(start);
+                            return parse(Channels.newInputStream(channel), end - start, start);
+                        } finally {
+                            file.close();
+                        }
+                    }
+                }));
+            }
+
+            // merge in file order so that points keep their original order
+            CoordinateBuffer result = new CoordinateBuffer();
+            for (Future<CoordinateBuffer> chunk : chunks) {
+                result.addAll(chunk.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing file [" + localFilePath + "]", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ParsingException)
+                throw resolveLineNumber((ParsingException) cause, localFilePath, boundaries);
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Error parsing file [" + localFilePath + "]", cause);
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException("Error parsing file [" + localFilePath + "]. " + e.getMessage(),
+                                       e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Lines within a chunk are numbered from the start of the chunk. Converts
+     * it to line number within the file
+     */
+    private static ParsingException resolveLineNumber(ParsingException exp,
+                                                      String localFilePath,
+                                                      long[] boundaries) throws IOException {
+        if (!(exp instanceof ChunkParsingException))
+            return exp;
+
+        ChunkParsingException chunkExp = (ChunkParsingException) exp;
+        long linesBefore = 0;
+        InputStream in = Channels.newInputStream(new RandomAccessFile(localFilePath,
+                                                                      "r").getChannel());
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = chunkExp.chunkStart;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                    break;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n')
+                        linesBefore++;
+                }
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+
+        return new ParsingException("Error while parsing record at line "
+                                    + (linesBefore + chunkExp.lineNumber)
+                                    + " ["
+                                    + chunkExp.record
+                                    + "]",
+                                    exp.getCause());
+    }
+
+    /**
+     * Parses at most <tt>limit</tt> bytes from the stream
+     */
+    private static CoordinateBuffer parse(InputStream in,
+                                          long limit,
+                                          long chunkStart) throws IOException, ParsingException {
+        CoordinateBuffer coordinates = new CoordinateBuffer();
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] token = new byte[64];
+        int tokenLength = 0;
+
+        double[] values = new double[8];
+        int numValues = 0;
+
+        long lineNumber = 1;
+        long remaining = limit;
+        boolean eof = false;
+
+        while (!eof) {
+            int read = (remaining <= 0) ? -1
+                                        : in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                eof = true;
+                // treat end of input as end of the last line
+                read = 1;
+                buffer[0] = '\n';
+            } else {
+                remaining -= read;
+            }
+
+            for (int i = 0; i < read; i++) {
+                byte b = buffer[i];
+                if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    if (tokenLength > 0) {
+                        if (numValues == values.length)
+                            values = Arrays.copyOf(values, numValues * 2);
+                        try {
+                            values[numValues++] = parseDouble(token, tokenLength);
+                        } catch (NumberFormatException nfe) {
+                            throw parsingError(chunkStart,
+                                               lineNumber,
+                                               new String(token, 0, tokenLength, "UTF-8"),
+                                               nfe);
+                        }
+                        tokenLength = 0;
+                    }
+
+                    if (b == '\n') {
+                        if (numValues > 0)
+                            addPoint(coordinates, values, numValues, chunkStart, lineNumber);
+                        numValues = 0;
+                        lineNumber++;
+                    }
+                } else {
+                    if (tokenLength == token.length)
+                        token = Arrays.copyOf(token, tokenLength * 2);
+                    token[tokenLength++] = b;
+                }
+            }
+        }
+
+        return coordinates;
+    }
+
+    private static void addPoint(CoordinateBuffer coordinates,
+                                 double[] values,
+                                 int numValues,
+                                 long chunkStart,
+                                 long lineNumber) throws ParsingException {
+        try {
+            // last value on every line is an attribute and not a coordinate
+            coordinates.addPoint(values, 0, numValues - 1);
+        } catch (IllegalArgumentException e) {
+            throw parsingError(chunkStart, lineNumber, e.getMessage(), e);
+        }
+    }
+
+    private static ParsingException parsingError(long chunkStart,
+                                                 long lineNumber,
+                                                 String record,
+                                                 Exception cause) {
+        if (chunkStart > 0)
+            return new ChunkParsingException(chunkStart, lineNumber, record, cause);
+        return new ParsingException("Error while parsing record at line "
+                                    + lineNumber
+                                    + " ["
+                                    + record
+                                    + "]",
+                                    cause);
+    }
+
+    /**
+     * Parses plain decimal numbers (optional sign, digits, optional fraction)
+     * with at most 15 significant digits directly. Result is exact as both
+     * the digits and the power of ten are exactly representable as doubles.
+     * Falls back to {@link Double#parseDouble(String)} for everything else
+     */
+    static double parseDouble(byte[] token, int length) {
+        int i = 0;
+        boolean negative = false;
+        if (token[0] == '-' || token[0] == '+') {
+            negative = token[0] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int numDigits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        boolean digitFound = false;
+        boolean valid = true;
+
+        for (; i < length && valid; i++) {
+            byte b = token[i];
+            if (b >= '0' && b <= '9') {
+                digitFound = true;
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0 || fraction)
+                    numDigits++;
+                if (fraction)
+                    fractionDigits++;
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                valid = false;
+            }
+        }
+
+        if (!valid || !digitFound || numDigits > MAX_FAST_DIGITS || fractionDigits >= POWERS_OF_TEN.length)
+            return Double.parseDouble(new String(token, 0, length, StandardCharsets.US_ASCII));
+
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parsing error with line number relative to the start of a chunk
+     */
+    private static class ChunkParsingException extends ParsingException {
+        private static final long serialVersionUID = 873465298346529L;
+
+        private final long chunkStart;
+        private final long lineNumber;
+        private final String record;
+
+        ChunkParsingException(long chunkStart, long lineNumber, String record, Throwable cause) {
+            super("Error while parsing record [" + record + "]", cause);
+            this.chunkStart = chunkStart;
+            this.lineNumber = lineNumber;
+            this.record = record;
+        }
+    }
+
+    private StackTextParser() {
+        // deny object creation
+    }
+}
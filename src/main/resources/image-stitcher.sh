@@ -6,7 +6,7 @@
 
 function print_usage()
 {
-   echo "Usage: image-stitcher.sh [run | plot]"
+   echo "Usage: image-stitcher.sh [run | plot | convert]"
 } 
 
 function plot_data()
@@ -33,6 +33,30 @@ function plot_data()
    fi
 }
 
+function convert_stack()
+{
+   textFilePath=$1
+   binaryFilePath=$2
+   precision=$3
+
+   if [[ -z "$textFilePath" || -z "$binaryFilePath" ]]; then
+      echo "Usage: image-stitcher.sh convert [text-file] [binary-file] [precision]"
+      echo "Where  text-file is image stack with whitespace separated values per line"
+      echo "       binary-file is path to generated binary image stack"
+      echo "       precision is [float | double]. Default is double"
+      echo ""
+      echo "Example: ./image-stitcher.sh convert sample-data/image-stack1-source.txt /home/hadoop/stack1.stack"
+      exit 0
+   fi
+
+   java -cp image-stitcher-1.0.jar:`cat conf/classpath.txt` neu.nctracer.utils.BinaryStackFile $textFilePath $binaryFilePath $precision
+
+   if [ $? != "0" ]; then
+      echo "Error while converting image stack file"
+      exit 0
+   fi
+}
+
 function run_image_stitch
 {
    arguments=$1
@@ -58,6 +82,10 @@ case $1 in
      plot_data $2 $3 $4
      ;;
     
+   convert)
+     convert_stack $2 $3 $4
+     ;;
+
    run)
      arguments=`echo ${@:2}`
      run_image_stitch "$arguments"
@@ -0,0 +1,124 @@
+package neu.nctracer.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import neu.nctracer.utils.DataTransformer;
+
+/**
+ * Checks that translations encoded as offset vectors and as distance and
+ * angles move points the same way and survive text and binary encoding
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class DataTransformationTest extends TestCase {
+
+    private static final double[] SOURCE = { 10.5, -3.25, 7.0 };
+    private static final double[] TARGET = { 12.0, 1.75, 4.5 };
+
+    public void testVectorMatchesAngles() {
+        DataTransformation<DataObject> vector = createVector();
+        DataTransformation<DataObject> angles = createAngles();
+
+        assertTrue(vector.isVectorEncoded());
+        assertFalse(angles.isVectorEncoded());
+        assertNull(vector.getAngles());
+        assertNull(angles.getVector());
+        assertEquals(angles.getDistance(), vector.getDistance(), 1e-12);
+
+        double[] expected = DataTransformer.computeOffsetVector(SOURCE, TARGET);
+        assertVector(expected, vector.getTranslation(), 0.0);
+        assertVector(expected, angles.getTranslation(), 1e-9);
+    }
+
+    public void testBinaryRoundTrip() throws Exception {
+        DataTransformation<DataObject> vector = createVector();
+        vector.setSupport(17);
+        DataTransformation<DataObject> read = roundTrip(vector);
+        assertTrue(read.isVectorEncoded());
+        assertEquals(vector, read);
+        assertEquals(17, read.getSupport());
+
+        DataTransformation<DataObject> angles = createAngles();
+        angles.setSupport(3);
+        read = roundTrip(angles);
+        assertFalse(read.isVectorEncoded());
+        assertEquals(angles, read);
+        assertEquals(angles.getDistance(), read.getDistance(), 0.0);
+        assertEquals(3, read.getSupport());
+    }
+
+    public void testReadReplacesPreviousEncoding() throws Exception {
+        DataTransformation<DataObject> read = roundTrip(createAngles());
+        byte[] bytes = write(createVector());
+        read.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+        assertTrue(read.isVectorEncoded());
+        assertNull(read.getAngles());
+        assertEquals(0, read.getSupport());
+    }
+
+    public void testUnknownEncodingRejected() throws Exception {
+        byte[] bytes = write(createVector());
+        bytes[0] = 7;
+        DataTransformation<DataObject> read = new DataTransformation<>();
+        try {
+            read.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+            fail("Unknown encoding must be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testTextRoundTrip() throws Exception {
+        DataTransformation<DataObject> vector = createVector();
+        DataTransformation<?> parsed = DataTransformation.parse(vector.toString());
+        assertTrue(parsed.isVectorEncoded());
+        assertVector(vector.getVector(), parsed.getVector(), 0.0);
+
+        DataTransformation<DataObject> angles = createAngles();
+        parsed = DataTransformation.parse(angles.toString());
+        assertFalse(parsed.isVectorEncoded());
+        assertEquals(angles.getDistance(), parsed.getDistance(), 0.0);
+        assertVector(angles.getAngles(), parsed.getAngles(), 0.0);
+    }
+
+    private static DataTransformation<DataObject> createVector() {
+        DataTransformation<DataObject> transformation = new DataTransformation<>();
+        transformation.setVector(DataTransformer.computeOffsetVector(SOURCE, TARGET));
+        return transformation;
+    }
+
+    private static DataTransformation<DataObject> createAngles() {
+        DataTransformation<DataObject> transformation = new DataTransformation<>();
+        transformation.setDistance(DataTransformer.computeEuclideanDistance(SOURCE, TARGET));
+        transformation.setAngles(DataTransformer.computeDirectionAngles(SOURCE, TARGET));
+        return transformation;
+    }
+
+    private static byte[] write(DataTransformation<DataObject> transformation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        transformation.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DataTransformation<DataObject>
+            roundTrip(DataTransformation<DataObject> transformation) throws IOException {
+        DataTransformation<DataObject> read = new DataTransformation<>();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(write(transformation))));
+        return read;
+    }
+
+    private static void assertVector(double[] expected, double[] actual, double delta) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], delta);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package neu.nctracer.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks binary encoding of {@link Match} and that the raw comparator orders
+ * serialized matches same as {@link Match#compareTo(Match)}
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class MatchTest extends TestCase {
+
+    public void testRoundTrip() throws Exception {
+        Match match = createMatch(12.5, 3, 0.1);
+        Match read = readMatch(writeMatch(match));
+
+        assertEquals(match.getScore(), read.getScore(), 0.0);
+        assertFalse(read.isSinglePrecision());
+        assertEquals(new ArrayList<>(match.getCorrespondences()),
+                     new ArrayList<>(read.getCorrespondences()));
+    }
+
+    public void testSinglePrecisionRoundTrip() throws Exception {
+        Match match = createMatch(7.25, 4, 0.3);
+        match.setSinglePrecision(true);
+
+        byte[] bytes = writeMatch(match);
+        Match read = readMatch(bytes);
+
+        assertTrue(read.isSinglePrecision());
+        assertEquals(match.getScore(), read.getScore(), 0.0);
+        assertEquals(match.getCorrespondences().size(), read.getCorrespondences().size());
+
+        List<DataCorrespondence> expected = new ArrayList<>(match.getCorrespondences());
+        List<DataCorrespondence> actual = new ArrayList<>(read.getCorrespondences());
+        for (int i = 0; i < expected.size(); i++) {
+            assertFeatures((float) 1e-6,
+                           expected.get(i).getSource().getFeatures(),
+                           actual.get(i).getSource().getFeatures());
+            assertFeatures((float) 1e-6,
+                           expected.get(i).getTarget().getFeatures(),
+                           actual.get(i).getTarget().getFeatures());
+            // error is always written as a double
+            assertEquals(expected.get(i).getError(), actual.get(i).getError(), 0.0);
+        }
+
+        // coordinates take 4 instead of 8 bytes each
+        Match doublePrecision = new Match(match);
+        doublePrecision.setSinglePrecision(false);
+        assertEquals(4 * 3 * 3 * 4, writeMatch(doublePrecision).length - bytes.length);
+    }
+
+    public void testCopyKeepsPrecision() {
+        Match match = createMatch(1.0, 2, 0.0);
+        match.setSinglePrecision(true);
+        assertTrue(new Match(match).isSinglePrecision());
+    }
+
+    public void testEmptyMatchRoundTrip() throws Exception {
+        Match read = readMatch(writeMatch(new Match(-3.0, null)));
+        assertEquals(-3.0, read.getScore(), 0.0);
+        assertTrue(read.getCorrespondences().isEmpty());
+    }
+
+    public void testUnsupportedFlagsRejected() throws Exception {
+        byte[] bytes = writeMatch(createMatch(1.0, 1, 0.0));
+        // flags byte follows the score and the single byte count
+        bytes[9] = 4;
+        try {
+            readMatch(bytes);
+            fail("Unknown encoding flags must be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testTextRoundTrip() throws Exception {
+        Match match = createMatch(4.5, 3, 0.2);
+        Match parsed = Match.parse(match.toString());
+        assertEquals(match.getScore(), parsed.getScore(), 0.0);
+        assertEquals(new ArrayList<>(match.getCorrespondences()),
+                     new ArrayList<>(parsed.getCorrespondences()));
+    }
+
+    public void testComparatorOrdersLikeCompareTo() throws Exception {
+        List<Match> matches = new ArrayList<>();
+        matches.add(createMatch(5.0, 2, 0.0));
+        matches.add(createMatch(5.0, 4, 0.0));
+        matches.add(createMatch(-1.0, 3, 0.0));
+        matches.add(createMatch(10.0, 1, 0.0));
+        matches.add(createMatch(0.0, 0, 0.0));
+        matches.add(createMatch(5.0, 200, 0.0));
+
+        Match.Comparator comparator = new Match.Comparator();
+        for (Match first : matches) {
+            byte[] firstBytes = writeMatch(first);
+            for (Match second : matches) {
+                byte[] secondBytes = writeMatch(second);
+                int raw = comparator.compare(firstBytes,
+                                             0,
+                                             firstBytes.length,
+                                             secondBytes,
+                                             0,
+                                             secondBytes.length);
+                assertEquals(first + " vs " + second,
+                             Integer.signum(first.compareTo(second)),
+                             Integer.signum(raw));
+            }
+        }
+    }
+
+    public void testNaturalOrderingIsDescendingScore() {
+        List<Match> matches = new ArrayList<>();
+        matches.add(createMatch(1.0, 1, 0.0));
+        matches.add(createMatch(3.0, 1, 0.0));
+        matches.add(createMatch(3.0, 2, 0.0));
+        matches.add(createMatch(2.0, 1, 0.0));
+        Collections.sort(matches);
+
+        assertEquals(3.0, matches.get(0).getScore(), 0.0);
+        assertEquals(2, matches.get(0).getCorrespondences().size());
+        assertEquals(3.0, matches.get(1).getScore(), 0.0);
+        assertEquals(2.0, matches.get(2).getScore(), 0.0);
+        assertEquals(1.0, matches.get(3).getScore(), 0.0);
+    }
+
+    /**
+     * Match of <tt>size</tt> correspondences translated by <tt>shift</tt>
+     * along every axis
+     */
+    static Match createMatch(double score, int size, double shift) {
+        if (size == 0)
+            return new Match(score, new LinkedHashSet<DataCorrespondence>());
+
+        Set<DataCorrespondence> correspondences = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            double[] source = new double[] { i + 0.1, i * 2 + 0.2, i * 3 + 0.3 };
+            double[] translated = new double[3];
+            double[] target = new double[3];
+            for (int d = 0; d < 3; d++) {
+                translated[d] = source[d] + shift;
+                target[d] = translated[d] + 0.01 * i;
+            }
+            correspondences.add(new DataCorrespondence(createPoint(source),
+                                                       createPoint(translated),
+                                                       createPoint(target),
+                                                       0.01 * i * Math.sqrt(3)));
+        }
+        return new Match(score, correspondences);
+    }
+
+    private static DataObject createPoint(double[] features) {
+        DataObject point = new ImageData();
+        point.setFeatures(features);
+        return point;
+    }
+
+    private static byte[] writeMatch(Match match) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        match.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Match readMatch(byte[] bytes) throws IOException {
+        Match match = new Match();
+        match.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+        return match;
+    }
+
+    private static void assertFeatures(float delta, double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals((float) expected[i], actual[i], delta);
+        }
+    }
+}
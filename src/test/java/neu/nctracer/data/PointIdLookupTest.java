@@ -0,0 +1,51 @@
+package neu.nctracer.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link PointIdLookup} finds ids of the points of its
+ * collection only
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class PointIdLookupTest extends TestCase {
+
+    public void testParsedIds() {
+        List<DataObject> points = new ArrayList<>();
+        points.add(createPoint(2, 1.0));
+        points.add(createPoint(5, 2.0));
+        PointIdLookup lookup = new PointIdLookup(points);
+
+        assertEquals(6, lookup.capacity());
+        assertEquals(2, lookup.idOf(points.get(0)));
+        assertEquals(5, lookup.idOf(points.get(1)));
+        // id of another collection which is not assigned here
+        assertEquals(DataObject.NO_ID, lookup.idOf(createPoint(3, 9.0)));
+        // point without id is looked up by coordinates
+        assertEquals(5, lookup.idOf(createPoint(DataObject.NO_ID, 2.0)));
+        assertEquals(DataObject.NO_ID, lookup.idOf(createPoint(DataObject.NO_ID, 7.0)));
+    }
+
+    public void testPositionsWhenIdsMissing() {
+        List<DataObject> points = new ArrayList<>();
+        points.add(createPoint(4, 1.0));
+        points.add(createPoint(DataObject.NO_ID, 2.0));
+        PointIdLookup lookup = new PointIdLookup(points);
+
+        assertEquals(2, lookup.capacity());
+        assertEquals(0, lookup.idOf(points.get(0)));
+        assertEquals(1, lookup.idOf(points.get(1)));
+        assertEquals(DataObject.NO_ID, lookup.idOf(createPoint(1, 3.0)));
+    }
+
+    private static DataObject createPoint(int id, double value) {
+        ImageData point = new ImageData();
+        point.setFeatures(new double[] { value, value, value });
+        point.setId(id);
+        return point;
+    }
+}
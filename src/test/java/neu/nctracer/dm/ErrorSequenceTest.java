@@ -0,0 +1,139 @@
+package neu.nctracer.dm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import neu.nctracer.conf.cli.CLIConfigurationManager;
+import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.Match;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.log.LogManager;
+
+/**
+ * Checks that error sequence recorded at one alpha gives same size and score
+ * as matching the translation again at any other alpha
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class ErrorSequenceTest extends TestCase {
+
+    private static final double RECORDED_ALPHA = 0.5;
+    private static final double[] ALPHAS = { 0.0, 0.05, 0.2, 0.35, 0.5, 0.65, 0.8, 0.95, 1.0 };
+
+    private PointStack source;
+    private PointStack target;
+    private List<DataTransformation<DataObject>> translations;
+
+    @Override
+    protected void setUp() throws Exception {
+        LogManager.getLogManager().setDefaultLogger(LogManager.loggerInstance("mr"));
+
+        Random random = new Random(17);
+        source = randomStack(random, 200);
+        target = randomStack(random, 250);
+
+        translations = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            DataTransformation<DataObject> translation = new DataTransformation<>();
+            translation.setVector(new double[] { random.nextGaussian() * 3,
+                                                 random.nextGaussian() * 3,
+                                                 random.nextGaussian() });
+            translations.add(translation);
+        }
+    }
+
+    public void testMatchesCalculatorForEveryAlpha() {
+        TranslationMatchCalculator recorder = createCalculator(RECORDED_ALPHA);
+        recorder.setRecordErrors(true);
+
+        List<ErrorSequence> sequences = new ArrayList<>();
+        for (DataTransformation<DataObject> translation : translations) {
+            Match match = recorder.findMatch(source, target, translation);
+            ErrorSequence sequence = recorder.getErrorSequence(translation.getTranslation());
+            // recording does not change the match itself
+            assertEquals(match.getCorrespondences().size(), sequence.size(RECORDED_ALPHA));
+            sequences.add(sequence);
+        }
+
+        for (double alpha : ALPHAS) {
+            TranslationMatchCalculator calculator = createCalculator(alpha);
+            for (int i = 0; i < translations.size(); i++) {
+                Match match = calculator.findMatch(source, target, translations.get(i));
+                String message = "alpha " + alpha + ", translation " + i;
+                assertEquals(message,
+                             match.getCorrespondences().size(),
+                             sequences.get(i).size(alpha));
+                assertEquals(message, match.getScore(), sequences.get(i).score(alpha), 1e-9);
+            }
+        }
+    }
+
+    public void testEmptySequence() {
+        ErrorSequence sequence = new ErrorSequence(new double[] { 1, 2, 3 }, new double[0]);
+        assertEquals(0, sequence.size(0.5));
+        assertEquals(Double.MIN_VALUE, sequence.score(0.5), 0.0);
+    }
+
+    public void testStopsAtLargeGap() {
+        ErrorSequence sequence = new ErrorSequence(new double[3],
+                                                   new double[] { 0.1, 0.2, 5.0, 5.1 });
+        // gap of 4.8 is allowed only if alpha / (1 - alpha) >= 4.8
+        assertEquals(2, sequence.size(0.5));
+        assertEquals(4, sequence.size(0.9));
+        assertEquals(4, sequence.size(1.0));
+        assertEquals(2 * 0.5 - 0.5 * 0.2, sequence.score(0.5), 1e-12);
+    }
+
+    public void testRoundTrip() throws Exception {
+        ErrorSequence sequence = new ErrorSequence(new double[] { 1.5, -2, 0.25 },
+                                                   new double[] { 0.1, 0.3, 0.35, 2.0 });
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        sequence.write(new DataOutputStream(bytes));
+
+        ErrorSequence read = new ErrorSequence();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(sequence.length(), read.length());
+        assertEquals(1.5, read.getTranslation()[0], 0.0);
+        for (double alpha : ALPHAS) {
+            assertEquals(sequence.size(alpha), read.size(alpha));
+            assertEquals(sequence.score(alpha), read.score(alpha), 0.0);
+        }
+    }
+
+    public void testAlphaOutOfRangeRejected() {
+        for (double alpha : new double[] { -0.1, 1.1 }) {
+            try {
+                createCalculator(alpha);
+                fail("Alpha " + alpha + " must be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static TranslationMatchCalculator createCalculator(double alpha) {
+        ConfigurationParams params = CLIConfigurationManager.getHandler()
+                                                            .getConfigurationParamsInstance();
+        params.setParam("correpondence.score.function.alpha", String.valueOf(alpha));
+        TranslationMatchCalculator calculator = new TranslationMatchCalculator();
+        calculator.setup(params);
+        return calculator;
+    }
+
+    private static PointStack randomStack(Random random, int size) {
+        double[] coordinates = new double[size * 3];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = Math.round(random.nextDouble() * 3000) / 100.0;
+        }
+        return new PointStack(3, coordinates);
+    }
+}
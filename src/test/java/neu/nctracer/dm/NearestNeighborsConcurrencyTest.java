@@ -0,0 +1,204 @@
+package neu.nctracer.dm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import neu.nctracer.conf.cli.CLIConfigurationManager;
+import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.ImageData;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.log.LogManager;
+
+/**
+ * Queries a single index from many threads at once and checks that every
+ * result is same as the result of a single-threaded run
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class NearestNeighborsConcurrencyTest extends TestCase {
+
+    private static final int NUM_POINTS = 3000;
+    private static final int NUM_QUERIES = 500;
+    private static final int NUM_THREADS = 8;
+    private static final int K = 10;
+
+    private PointStack points;
+    private double[][] queries;
+    private ConfigurationParams params;
+
+    @Override
+    protected void setUp() throws Exception {
+        LogManager.getLogManager().setDefaultLogger(LogManager.loggerInstance("mr"));
+        params = CLIConfigurationManager.getHandler().getConfigurationParamsInstance();
+
+        Random random = new Random(42);
+        double[] coordinates = new double[NUM_POINTS * 3];
+        for (int i = 0; i < coordinates.length; i++) {
+            // two decimal places, same as the image stacks
+            coordinates[i] = Math.round(random.nextDouble() * 100000) / 100.0;
+        }
+        points = new PointStack(3, coordinates);
+
+        queries = new double[NUM_QUERIES][];
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            queries[i] = points.getPoint(random.nextInt(NUM_POINTS));
+            queries[i][0] += random.nextGaussian() * 10;
+        }
+    }
+
+    public void testKdTreesOnPointStack() throws Exception {
+        NearestNeighbors index = new KdTrees();
+        index.setup(points, params);
+        assertConcurrentIdQueries(index);
+        assertConcurrentObjectQueries(index);
+    }
+
+    public void testKdTreesOnDataObjects() throws Exception {
+        NearestNeighbors index = new KdTrees();
+        index.setup(points.toDataObjects(), params);
+        assertConcurrentObjectQueries(index);
+    }
+
+    public void testKNearestNeighborsOnPointStack() throws Exception {
+        NearestNeighbors index = new KNearestNeighbors();
+        index.setup(points, params);
+        assertConcurrentIdQueries(index);
+        assertConcurrentObjectQueries(index);
+    }
+
+    public void testSharedKdTreeMatchesBruteForce() throws Exception {
+        NearestNeighbors kdTree = new KdTrees();
+        kdTree.setup(points, params);
+
+        // KD-tree picks neighbors by distance normalized by the range of
+        // every axis, same as brute force over normalized coordinates
+        double[] min = new double[3];
+        double[] range = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            min[axis] = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int id = 0; id < NUM_POINTS; id++) {
+                min[axis] = Math.min(min[axis], points.getCoordinate(id, axis));
+                max = Math.max(max, points.getCoordinate(id, axis));
+            }
+            range[axis] = max - min[axis];
+        }
+        double[] normalized = new double[NUM_POINTS * 3];
+        for (int id = 0; id < NUM_POINTS; id++) {
+            System.arraycopy(normalize(points.getPoint(id), min, range), 0, normalized, id * 3, 3);
+        }
+        NearestNeighbors bruteForce = new KNearestNeighbors();
+        bruteForce.setup(new PointStack(3, normalized), params);
+
+        for (double[] query : queries) {
+            assertEquals(Arrays.toString(query),
+                         findNeighborIds(bruteForce, normalize(query, min, range)),
+                         findNeighborIds(kdTree, query));
+        }
+    }
+
+    private static double[] normalize(double[] point, double[] min, double[] range) {
+        double[] normalized = new double[point.length];
+        for (int i = 0; i < point.length; i++) {
+            normalized[i] = (point[i] - min[i]) / range[i];
+        }
+        return normalized;
+    }
+
+    private static String findNeighborIds(NearestNeighbors index, double[] query) {
+        int[] neighborIds = new int[K];
+        int count = index.findNeighbors(query, K, neighborIds, new double[K]);
+        int[] ids = Arrays.copyOf(neighborIds, count);
+        Arrays.sort(ids);
+        return Arrays.toString(ids);
+    }
+
+    private void assertConcurrentIdQueries(final NearestNeighbors index) throws Exception {
+        final List<String> expected = new ArrayList<>();
+        for (double[] query : queries) {
+            expected.add(findNeighborDistances(index, query));
+        }
+
+        runConcurrently(new QueryCheck() {
+            @Override
+            public void check(int queryIndex) {
+                assertEquals(expected.get(queryIndex),
+                             findNeighborDistances(index, queries[queryIndex]));
+            }
+        });
+    }
+
+    private void assertConcurrentObjectQueries(final NearestNeighbors index) throws Exception {
+        final List<Map<DataObject, Double>> expected = new ArrayList<>();
+        for (double[] query : queries) {
+            expected.add(index.findNeighbors(toDataObject(query), K));
+        }
+
+        runConcurrently(new QueryCheck() {
+            @Override
+            public void check(int queryIndex) {
+                Map<DataObject, Double> neighbors = index.findNeighbors(toDataObject(queries[queryIndex]),
+                                                                        K);
+                assertEquals(new ArrayList<>(expected.get(queryIndex).values()),
+                             new ArrayList<>(neighbors.values()));
+            }
+        });
+    }
+
+    private interface QueryCheck {
+        void check(int queryIndex);
+    }
+
+    /**
+     * Every thread runs all the queries, starting at different offsets so
+     * that same query is run by different threads at the same time
+     */
+    private void runConcurrently(final QueryCheck queryCheck) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < NUM_THREADS; t++) {
+                final int offset = t * (NUM_QUERIES / NUM_THREADS);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = 0; i < NUM_QUERIES; i++) {
+                            queryCheck.check((offset + i) % NUM_QUERIES);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            // rethrows assertion failures from worker threads
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String findNeighborDistances(NearestNeighbors index, double[] query) {
+        int[] neighborIds = new int[K];
+        double[] distances = new double[K];
+        int count = index.findNeighbors(query, K, neighborIds, distances);
+        return Arrays.toString(Arrays.copyOf(distances, count));
+    }
+
+    private static DataObject toDataObject(double[] coordinates) {
+        DataObject dataObject = new ImageData();
+        dataObject.setFeatures(coordinates.clone());
+        return dataObject;
+    }
+}
@@ -0,0 +1,129 @@
+package neu.nctracer.dm;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import neu.nctracer.data.PointStack;
+
+/**
+ * Checks that neighbors found by {@link PointStackKdTree} are same as the ones
+ * found by comparing every point of the stack
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class PointStackKdTreeTest extends TestCase {
+
+    private static final int K = 20;
+    private static final double[] UNSCALED = new double[] { 1, 1, 1 };
+
+    private PointStack stack;
+    private PointStackKdTree tree;
+
+    @Override
+    protected void setUp() throws Exception {
+        // x and y spread much wider than z, as in the image stacks
+        Random random = new Random(11);
+        double[] coordinates = new double[3 * 2000];
+        for (int i = 0; i < coordinates.length; i += 3) {
+            coordinates[i] = random.nextDouble() * 1000;
+            coordinates[i + 1] = random.nextDouble() * 1000;
+            coordinates[i + 2] = 2 + random.nextDouble() * 5;
+        }
+        stack = new PointStack(3, coordinates);
+        tree = new PointStackKdTree(stack);
+    }
+
+    public void testEuclideanNeighbors() {
+        Random random = new Random(3);
+        int[] ids = new int[K];
+        double[] distances = new double[K];
+        for (int query = 0; query < 100; query++) {
+            double[] point = randomPoint(random);
+            assertEquals(K, tree.findNeighbors(point, K, Double.MAX_VALUE, ids, distances));
+
+            int[] expected = bruteForce(point, UNSCALED);
+            for (int i = 0; i < K; i++) {
+                assertEquals(expected[i], ids[i]);
+                assertEquals(Math.sqrt(stack.distanceSquared(ids[i], point)), distances[i], 1e-9);
+            }
+        }
+    }
+
+    public void testNormalizedNeighbors() {
+        double[] scales = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int id = 0; id < stack.size(); id++) {
+                min = Math.min(min, stack.getCoordinate(id, axis));
+                max = Math.max(max, stack.getCoordinate(id, axis));
+            }
+            scales[axis] = 1.0 / (max - min);
+        }
+
+        Random random = new Random(5);
+        int[] ids = new int[K];
+        double[] distances = new double[K];
+        boolean differsFromEuclidean = false;
+        for (int query = 0; query < 100; query++) {
+            double[] point = randomPoint(random);
+            assertEquals(K, tree.findNormalizedNeighbors(point, K, ids, distances));
+
+            // same set of neighbors, reported by increasing euclidean distance
+            int[] expected = bruteForce(point, scales);
+            assertEquals(sorted(expected), sorted(ids));
+            for (int i = 0; i < K; i++) {
+                assertEquals(Math.sqrt(stack.distanceSquared(ids[i], point)), distances[i], 1e-9);
+                if (i > 0)
+                    assertTrue(distances[i - 1] <= distances[i]);
+            }
+            differsFromEuclidean |= !sorted(expected).equals(sorted(bruteForce(point, UNSCALED)));
+        }
+        // narrow z axis weighs more once normalized
+        assertTrue(differsFromEuclidean);
+    }
+
+    public void testSingleValuedAxisIgnored() {
+        double[] coordinates = new double[] { 0, 0, 5, 10, 0, 5, 0, 10, 5, 10, 10, 5 };
+        PointStackKdTree flat = new PointStackKdTree(new PointStack(3, coordinates));
+        int[] ids = new int[1];
+        double[] distances = new double[1];
+        double[] point = new double[] { 9, 1, 100 };
+        assertEquals(1, flat.findNormalizedNeighbors(point, 1, ids, distances));
+        assertEquals(1, ids[0]);
+        assertEquals(Math.sqrt(1 + 1 + 95 * 95), distances[0], 1e-9);
+    }
+
+    private double[] randomPoint(Random random) {
+        return new double[] { random.nextDouble() * 1000,
+                              random.nextDouble() * 1000,
+                              2 + random.nextDouble() * 5 };
+    }
+
+    /**
+     * Ids of the K nearest points ordered by increasing distance, where
+     * differences along every axis are multiplied by the scales
+     */
+    private int[] bruteForce(double[] point, double[] scales) {
+        int[] ids = new int[K];
+        double[] distances = new double[K];
+        int count = 0;
+        for (int id = 0; id < stack.size(); id++) {
+            double distance = 0;
+            for (int axis = 0; axis < 3; axis++) {
+                double diff = (point[axis] - stack.getCoordinate(id, axis)) * scales[axis];
+                distance += diff * diff;
+            }
+            count = PointStackKdTree.insert(id, distance, count, K, ids, distances);
+        }
+        return ids;
+    }
+
+    private static String sorted(int[] ids) {
+        int[] copy = ids.clone();
+        Arrays.sort(copy);
+        return Arrays.toString(copy);
+    }
+}
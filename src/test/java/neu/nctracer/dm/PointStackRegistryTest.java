@@ -0,0 +1,94 @@
+package neu.nctracer.dm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+
+import junit.framework.TestCase;
+import neu.nctracer.data.PointStack;
+
+/**
+ * Checks that the registry shares a stack between callers holding a
+ * reference and drops it once the last reference is released
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class PointStackRegistryTest extends TestCase {
+
+    private Configuration conf;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        conf = new Configuration();
+        file = File.createTempFile("stack", ".txt");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write("1 2 3 0\n4 5 6 0\n7 8 9 0\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testSharedWhileReferenced() throws Exception {
+        PointStack first = PointStackRegistry.acquire(conf, file.getPath(), false);
+        PointStack second = PointStackRegistry.acquire(conf, file.getPath(), false);
+        assertSame(first, second);
+        assertEquals(3, first.size());
+
+        PointStackRegistry.release(first);
+        // still referenced by the second caller
+        PointStack third = PointStackRegistry.acquire(conf, file.getPath(), false);
+        assertSame(first, third);
+
+        PointStackRegistry.release(second);
+        PointStackRegistry.release(third);
+
+        // last reference released, file is read again
+        PointStack reloaded = PointStackRegistry.acquire(conf, file.getPath(), false);
+        try {
+            assertFalse(first == reloaded);
+        } finally {
+            PointStackRegistry.release(reloaded);
+        }
+    }
+
+    public void testPrecisionsRegisteredSeparately() throws Exception {
+        PointStack doubles = PointStackRegistry.acquire(conf, file.getPath(), false);
+        PointStack floats = PointStackRegistry.acquire(conf, file.getPath(), true);
+        try {
+            assertFalse(doubles == floats);
+            assertFalse(doubles.isSinglePrecision());
+            assertTrue(floats.isSinglePrecision());
+        } finally {
+            PointStackRegistry.release(doubles);
+            PointStackRegistry.release(floats);
+        }
+    }
+
+    public void testKdTreeSharedForRegisteredStack() throws Exception {
+        PointStack stack = PointStackRegistry.acquire(conf, file.getPath(), false);
+        try {
+            assertSame(PointStackRegistry.getKdTree(stack), PointStackRegistry.getKdTree(stack));
+        } finally {
+            PointStackRegistry.release(stack);
+        }
+
+        // stacks which are not registered get a new tree every time
+        PointStack unregistered = new PointStack(3, new double[] { 1, 2, 3 });
+        PointStackKdTree kdTree = PointStackRegistry.getKdTree(unregistered);
+        assertFalse(kdTree == PointStackRegistry.getKdTree(unregistered));
+    }
+
+    public void testReleaseOfUnknownStackIgnored() {
+        PointStackRegistry.release(new PointStack(3, new double[] { 1, 2, 3 }));
+    }
+}
@@ -0,0 +1,149 @@
+package neu.nctracer.dm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import neu.nctracer.data.DataCorrespondence;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.ImageData;
+import neu.nctracer.data.Match;
+
+/**
+ * Checks ranking, eviction and non-maximum suppression of
+ * {@link TopKMatches}
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class TopKMatchesTest extends TestCase {
+
+    public void testKeepsBestKRanked() {
+        Random random = new Random(7);
+        List<Match> offered = new ArrayList<>();
+        TopKMatches topK = new TopKMatches(10, 0.0);
+        for (int i = 0; i < 500; i++) {
+            Match match = createMatch(random.nextDouble() * 100, 2, i);
+            offered.add(match);
+            topK.offer(match);
+        }
+
+        Collections.sort(offered);
+        List<Match> ranked = topK.getRankedMatches();
+        assertEquals(10, ranked.size());
+        for (int i = 0; i < ranked.size(); i++) {
+            assertSame(offered.get(i), ranked.get(i));
+        }
+        assertEquals(ranked.get(9).getScore(), topK.getThreshold(), 0.0);
+    }
+
+    public void testThresholdUntilFull() {
+        TopKMatches topK = new TopKMatches(3, 0.0);
+        topK.offer(createMatch(5.0, 1, 0));
+        topK.offer(createMatch(6.0, 1, 10));
+        assertEquals(Double.NEGATIVE_INFINITY, topK.getThreshold(), 0.0);
+        assertTrue(topK.canAccept(createMatch(-100.0, 1, 20)));
+
+        topK.offer(createMatch(7.0, 1, 20));
+        assertEquals(5.0, topK.getThreshold(), 0.0);
+        assertFalse(topK.canAccept(createMatch(4.0, 1, 30)));
+        assertFalse(topK.offer(createMatch(4.0, 1, 30)));
+        assertTrue(topK.offer(createMatch(8.0, 1, 30)));
+        assertEquals(6.0, topK.getThreshold(), 0.0);
+    }
+
+    public void testEmptyMatchesIgnored() {
+        TopKMatches topK = new TopKMatches(2, 0.0);
+        assertFalse(topK.offer(new Match(10.0, null)));
+        assertFalse(topK.offer(new Match(10.0, new LinkedHashSet<DataCorrespondence>())));
+        assertEquals(0, topK.size());
+    }
+
+    public void testSuppressionKeepsBetterDuplicate() {
+        TopKMatches topK = new TopKMatches(5, 1.0);
+        assertTrue(topK.offer(createMatch(5.0, 2, 0.0)));
+        // within radius of the kept match and worse
+        assertFalse(topK.offer(createMatch(4.0, 2, 0.3)));
+        // within radius and better, replaces the kept match
+        assertTrue(topK.offer(createMatch(6.0, 2, 0.4)));
+        // outside the radius
+        assertTrue(topK.offer(createMatch(3.0, 2, 5.0)));
+
+        List<Match> ranked = topK.getRankedMatches();
+        assertEquals(2, ranked.size());
+        assertEquals(6.0, ranked.get(0).getScore(), 0.0);
+        assertEquals(3.0, ranked.get(1).getScore(), 0.0);
+    }
+
+    public void testSuppressionWhenFull() {
+        TopKMatches topK = new TopKMatches(2, 1.0);
+        topK.offer(createMatch(5.0, 1, 0.0));
+        topK.offer(createMatch(3.0, 1, 10.0));
+        // duplicate of the best match replaces it instead of evicting the
+        // worst one
+        assertTrue(topK.offer(createMatch(9.0, 1, 0.5)));
+
+        List<Match> ranked = topK.getRankedMatches();
+        assertEquals(2, ranked.size());
+        assertEquals(9.0, ranked.get(0).getScore(), 0.0);
+        assertEquals(3.0, ranked.get(1).getScore(), 0.0);
+    }
+
+    public void testSuppressionChecksAllDuplicates() {
+        TopKMatches topK = new TopKMatches(5, 1.0);
+        topK.offer(createMatch(4.0, 1, 0.0));
+        topK.offer(createMatch(8.0, 1, 1.5));
+        // within radius of both kept matches, second one is better
+        assertFalse(topK.offer(createMatch(6.0, 1, 0.8)));
+        assertEquals(2, topK.size());
+
+        // better than both, replaces both
+        assertTrue(topK.offer(createMatch(9.0, 1, 0.8)));
+        topK.offer(createMatch(1.0, 1, 10.0));
+        List<Match> ranked = topK.getRankedMatches();
+        assertEquals(2, ranked.size());
+        assertEquals(9.0, ranked.get(0).getScore(), 0.0);
+        assertEquals(1.0, ranked.get(1).getScore(), 0.0);
+    }
+
+    public void testThresholdShareable() {
+        assertTrue(new TopKMatches(3, 0.0).isThresholdShareable());
+        assertFalse(new TopKMatches(3, 0.5).isThresholdShareable());
+    }
+
+    public void testInvalidK() {
+        try {
+            new TopKMatches(0, 0.0);
+            fail("K must be positive");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Match whose source points are moved by <tt>shift</tt> along the first
+     * axis
+     */
+    private static Match createMatch(double score, int size, double shift) {
+        Set<DataCorrespondence> correspondences = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            double[] source = new double[] { i, i, i };
+            double[] translated = new double[] { i + shift, i, i };
+            correspondences.add(new DataCorrespondence(createPoint(source),
+                                                       createPoint(translated),
+                                                       createPoint(translated.clone()),
+                                                       0.0));
+        }
+        return new Match(score, correspondences);
+    }
+
+    private static DataObject createPoint(double[] features) {
+        DataObject point = new ImageData();
+        point.setFeatures(features);
+        return point;
+    }
+}
@@ -0,0 +1,108 @@
+package neu.nctracer.mr;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+
+import junit.framework.TestCase;
+import neu.nctracer.data.DataCorrespondence;
+import neu.nctracer.data.ImageData;
+import neu.nctracer.data.Match;
+
+/**
+ * Checks that completed ranges are recorded with all the matches of their
+ * attempt, and that unfinished or duplicate attempts leave no trace
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class CheckpointStoreTest extends TestCase {
+
+    private CheckpointStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        File dir = Files.createTempDirectory("checkpoint").toFile();
+        store = new CheckpointStore(new Configuration(), dir.getPath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.delete();
+    }
+
+    public void testCommittedMatchesRead() throws Exception {
+        store.beginAttempt("attempt_1");
+        store.writeMatches("attempt_1", "0", Arrays.asList(createMatch(5.0), createMatch(3.0)));
+        store.writeMatches("attempt_1", "1", Arrays.asList(createMatch(4.0)));
+        store.commitRange("attempt_1", 0, 100);
+
+        // attempt without matches still records its range
+        store.beginAttempt("attempt_2");
+        store.commitRange("attempt_2", 100, 50);
+
+        List<long[]> ranges = store.readCompletedRanges();
+        assertEquals(2, ranges.size());
+        assertEquals(0, ranges.get(0)[0]);
+        assertEquals(100, ranges.get(0)[1]);
+        assertEquals(100, ranges.get(1)[0]);
+        assertEquals(50, ranges.get(1)[1]);
+
+        assertEquals(Arrays.asList(3.0, 4.0, 5.0), sortedScores(store.readMatches()));
+    }
+
+    public void testUncommittedAttemptIgnored() throws Exception {
+        store.beginAttempt("attempt_1");
+        store.writeMatches("attempt_1", "0", Arrays.asList(createMatch(5.0)));
+
+        assertTrue(store.readCompletedRanges().isEmpty());
+        assertTrue(store.readMatches().isEmpty());
+
+        store.deleteAttempts();
+        store.beginAttempt("attempt_2");
+        store.commitRange("attempt_2", 0, 10);
+        assertTrue(store.readMatches().isEmpty());
+    }
+
+    public void testDuplicateAttemptDiscarded() throws Exception {
+        store.beginAttempt("attempt_1");
+        store.writeMatches("attempt_1", "0", Arrays.asList(createMatch(5.0)));
+        store.commitRange("attempt_1", 0, 10);
+
+        // speculative attempt of the same task
+        store.beginAttempt("attempt_2");
+        store.writeMatches("attempt_2", "0", Arrays.asList(createMatch(5.0)));
+        store.commitRange("attempt_2", 0, 10);
+
+        assertEquals(1, store.readCompletedRanges().size());
+        assertEquals(Arrays.asList(5.0), sortedScores(store.readMatches()));
+    }
+
+    public void testNotEnabledWithoutDir() throws Exception {
+        assertNull(CheckpointStore.get(new Configuration()));
+    }
+
+    private static List<Double> sortedScores(List<Match> matches) {
+        List<Double> scores = new ArrayList<>();
+        for (Match match : matches) {
+            scores.add(match.getScore());
+        }
+        Collections.sort(scores);
+        return scores;
+    }
+
+    private static Match createMatch(double score) {
+        ImageData point = new ImageData();
+        point.setFeatures(new double[] { score, 0, 0 });
+        Set<DataCorrespondence> correspondences = new LinkedHashSet<>();
+        correspondences.add(new DataCorrespondence(point, point, point, 0.0));
+        return new Match(score, correspondences);
+    }
+}
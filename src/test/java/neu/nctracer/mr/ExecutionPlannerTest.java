@@ -0,0 +1,141 @@
+package neu.nctracer.mr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+
+import junit.framework.TestCase;
+import neu.nctracer.conf.cli.CLIConfigurationManager;
+import neu.nctracer.conf.cli.ConfigurationParams;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.log.LogManager;
+
+/**
+ * Checks that the planner keeps values set by the user, sizes splits to the
+ * target task time and asks for more memory only when the task needs it
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class ExecutionPlannerTest extends TestCase {
+
+    private ConfigurationParams params;
+    private Configuration conf;
+    private PointStack source;
+    private PointStack target;
+
+    @Override
+    protected void setUp() throws Exception {
+        LogManager.getLogManager().setDefaultLogger(LogManager.loggerInstance("mr"));
+        params = CLIConfigurationManager.getHandler().getConfigurationParamsInstance();
+        conf = new Configuration();
+
+        Random random = new Random(11);
+        source = randomStack(random, 300);
+        target = randomStack(random, 300);
+    }
+
+    public void testDisabledByDefault() {
+        assertFalse(ExecutionPlanner.isEnabled(params));
+        params.setParam(ExecutionPlanner.PARAM_ENABLED, "true");
+        assertTrue(ExecutionPlanner.isEnabled(params));
+    }
+
+    public void testThreadsBoundedByVcores() {
+        conf.setInt("yarn.scheduler.maximum-allocation-vcores", 3);
+        params.setParam(ExecutionPlanner.PARAM_MAX_THREADS, "8");
+        ExecutionPlanner.Plan plan = plan(1000);
+        assertEquals(3, plan.getThreadsPerMapper());
+
+        params.setParam(ExecutionPlanner.PARAM_MAX_THREADS, "2");
+        assertEquals(2, plan(1000).getThreadsPerMapper());
+    }
+
+    public void testUserValuesKept() {
+        params.setParam("num.threads.per.mapper", "5");
+        params.setParam("num.input.lines.mapper", "123");
+        ExecutionPlanner.Plan plan = plan(1000);
+        assertEquals(5, plan.getThreadsPerMapper());
+        assertEquals(123, plan.getCandidatesPerSplit());
+        assertEquals(9, plan.getNumSplits());
+    }
+
+    public void testSplitsSizedToTargetTime() {
+        params.setParam(ExecutionPlanner.PARAM_TARGET_TASK_SECONDS, "2");
+        List<DataTransformation<DataObject>> sample = randomSample(40);
+        long numCandidates = 1L << 40;
+        ExecutionPlanner.Plan plan = new ExecutionPlanner(params, conf).plan(source,
+                                                                           target,
+                                                                           sample,
+                                                                           numCandidates);
+
+        assertTrue(plan.getCandidateCostMillis() > 0);
+        assertTrue(plan.getCandidatesPerSplit() < numCandidates);
+        assertEquals(2.0, plan.getTaskSeconds(), 0.1);
+        long expectedSplits = (numCandidates + plan.getCandidatesPerSplit() - 1)
+                              / plan.getCandidatesPerSplit();
+        assertEquals(expectedSplits, plan.getNumSplits());
+    }
+
+    public void testSingleSplitWithoutSample() {
+        ExecutionPlanner.Plan plan = plan(500);
+        assertEquals(500, plan.getCandidatesPerSplit());
+        assertEquals(1, plan.getNumSplits());
+    }
+
+    public void testContainerMemory() throws Exception {
+        ExecutionPlanner.Plan plan = plan(1000);
+        assertEquals(0, plan.getContainerMemoryMb());
+
+        // task does not fit the default container
+        conf.setInt("mapreduce.map.memory.mb", 256);
+        plan = plan(1000);
+        assertTrue(plan.getContainerMemoryMb() > 256);
+
+        Job job = Job.getInstance(new Configuration());
+        plan.apply(job);
+        assertEquals(plan.getThreadsPerMapper(),
+                     job.getConfiguration().getInt("mapreduce.map.cpu.vcores", -1));
+        assertEquals(plan.getContainerMemoryMb(),
+                     job.getConfiguration().getInt("mapreduce.map.memory.mb", -1));
+        assertNotNull(job.getConfiguration().get("mapreduce.map.java.opts"));
+
+        // capped by the largest container
+        conf.setInt("yarn.scheduler.maximum-allocation-mb", 300);
+        assertEquals(300, plan(1000).getContainerMemoryMb());
+    }
+
+    /**
+     * Plans without calibration sample
+     */
+    private ExecutionPlanner.Plan plan(long numCandidates) {
+        List<DataTransformation<DataObject>> sample = new ArrayList<>();
+        return new ExecutionPlanner(params, conf).plan(source, target, sample, numCandidates);
+    }
+
+    private List<DataTransformation<DataObject>> randomSample(int size) {
+        Random random = new Random(5);
+        List<DataTransformation<DataObject>> sample = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            DataTransformation<DataObject> transformation = new DataTransformation<>();
+            transformation.setVector(new double[] { random.nextGaussian() * 5,
+                                                    random.nextGaussian() * 5,
+                                                    random.nextGaussian() });
+            sample.add(transformation);
+        }
+        return sample;
+    }
+
+    private static PointStack randomStack(Random random, int size) {
+        double[] coordinates = new double[size * 3];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = Math.round(random.nextDouble() * 10000) / 100.0;
+        }
+        return new PointStack(3, coordinates);
+    }
+}
@@ -0,0 +1,162 @@
+package neu.nctracer.mr;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+
+import junit.framework.TestCase;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.DataTransformation;
+
+/**
+ * Checks that scores written to segments are found again, that entries of
+ * same key are merged by kind, and that compaction keeps every lookup result
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class MatchCacheTest extends TestCase {
+
+    private static final int NUM_KEYS = 5000;
+
+    private Configuration conf;
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        conf = new Configuration();
+        dir = Files.createTempDirectory("match-cache").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testLookupAcrossBlocks() throws Exception {
+        long[] keys = randomKeys(NUM_KEYS, 1);
+        MatchCache cache = open();
+        for (int i = 0; i < keys.length; i++) {
+            cache.record(keys[i], i, MatchCache.EXACT);
+        }
+        cache.flush("segment-0");
+        cache.close();
+
+        cache = open();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                MatchCache.Entry entry = cache.lookup(keys[i]);
+                assertNotNull(entry);
+                assertEquals(i, entry.getScore(), 0.0);
+                assertEquals(MatchCache.EXACT, entry.getKind());
+            }
+            for (long key : randomKeys(100, 2)) {
+                assertNull(cache.lookup(key));
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testExactWinsOverUpperBound() throws Exception {
+        MatchCache cache = open();
+        cache.record(1, 9.0, MatchCache.UPPER_BOUND);
+        cache.record(1, 4.0, MatchCache.EXACT);
+        cache.record(2, 9.0, MatchCache.UPPER_BOUND);
+        cache.record(2, 7.0, MatchCache.UPPER_BOUND);
+        cache.flush("segment-0");
+
+        cache.record(3, 8.0, MatchCache.UPPER_BOUND);
+        cache.flush("segment-1");
+        cache.record(3, Double.MIN_VALUE, MatchCache.EMPTY);
+        cache.flush("segment-2");
+        cache.close();
+
+        cache = open();
+        try {
+            assertEntry(cache.lookup(1), 4.0, MatchCache.EXACT);
+            // tighter of the two bounds
+            assertEntry(cache.lookup(2), 7.0, MatchCache.UPPER_BOUND);
+            // merged across segments
+            assertEntry(cache.lookup(3), Double.MIN_VALUE, MatchCache.EMPTY);
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testCompactKeepsLookups() throws Exception {
+        long[] keys = randomKeys(NUM_KEYS, 3);
+        MatchCache cache = open();
+        for (int i = 0; i < keys.length; i++) {
+            cache.record(keys[i], i, (i % 2 == 0) ? MatchCache.EXACT : MatchCache.UPPER_BOUND);
+            if (i % 1000 == 999)
+                cache.flush("segment-" + i);
+        }
+        // bound and exact score of same key in different segments
+        cache.record(keys[1], -1.0, MatchCache.EXACT);
+        cache.flush("segment-last");
+        cache.close();
+
+        assertEquals(NUM_KEYS, MatchCache.compact(conf, dir.getPath()));
+        // nothing left to merge
+        assertEquals(-1, MatchCache.compact(conf, dir.getPath()));
+
+        cache = open();
+        try {
+            assertEntry(cache.lookup(keys[0]), 0, MatchCache.EXACT);
+            assertEntry(cache.lookup(keys[1]), -1.0, MatchCache.EXACT);
+            for (int i = 2; i < keys.length; i++) {
+                assertEntry(cache.lookup(keys[i]),
+                            i,
+                            (i % 2 == 0) ? MatchCache.EXACT : MatchCache.UPPER_BOUND);
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testKeyQuantized() throws Exception {
+        MatchCache cache = open();
+        try {
+            long key = cache.key(translation(10.02, 5.0, -3.01));
+            assertEquals(key, cache.key(translation(9.98, 5.04, -2.97)));
+            assertFalse(key == cache.key(translation(10.3, 5.0, -3.01)));
+            assertFalse(key == cache.key(translation(5.0, 10.02, -3.01)));
+        } finally {
+            cache.close();
+        }
+    }
+
+    private MatchCache open() throws Exception {
+        return new MatchCache(conf, dir.getPath(), 0.1, 4);
+    }
+
+    private static long[] randomKeys(int count, long seed) {
+        Random random = new Random(seed);
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = random.nextLong();
+        }
+        return keys;
+    }
+
+    private static DataTransformation<DataObject> translation(double... vector) {
+        DataTransformation<DataObject> transformation = new DataTransformation<>();
+        transformation.setVector(vector);
+        return transformation;
+    }
+
+    private static void assertEntry(MatchCache.Entry entry, double score, byte kind) {
+        assertNotNull(entry);
+        assertEquals(score, entry.getScore(), 0.0);
+        assertEquals(kind, entry.getKind());
+    }
+}
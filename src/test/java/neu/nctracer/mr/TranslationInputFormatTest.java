@@ -0,0 +1,153 @@
+package neu.nctracer.mr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import junit.framework.TestCase;
+import neu.nctracer.data.Match;
+import neu.nctracer.dm.AllPairsCandidateGenerator;
+import neu.nctracer.mr.TranslationInputFormat.CandidateRangeSplit;
+
+/**
+ * Checks how candidates are cut into splits, with and without ranges
+ * completed by an earlier run
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class TranslationInputFormatTest extends TestCase {
+
+    private File checkpointDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        checkpointDir = Files.createTempDirectory("checkpoint").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new CheckpointStore(new Configuration(), checkpointDir.getPath()).delete();
+    }
+
+    public void testSplitsCoverAllCandidates() throws Exception {
+        List<InputSplit> splits = getSplits(createJob(2500, 1000));
+        assertRanges(splits, new long[][] { { 0, 1000 }, { 1000, 1000 }, { 2000, 500 } });
+    }
+
+    public void testNoCandidates() throws Exception {
+        assertTrue(getSplits(createJob(0, 1000)).isEmpty());
+    }
+
+    public void testMissingCandidateCountRejected() throws Exception {
+        Job job = Job.getInstance(new Configuration());
+        try {
+            new TranslationInputFormat().getSplits(job);
+            fail("Number of candidates is mandatory");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testCompletedRangesSkipped() throws Exception {
+        Job job = createJob(2500, 1000);
+        CheckpointStore store = new CheckpointStore(job.getConfiguration(),
+                                                    checkpointDir.getPath());
+        commit(store, "attempt_1", 1000, 1000);
+        commit(store, "attempt_2", 2300, 100);
+        job.getConfiguration().set(CheckpointStore.CHECKPOINT_DIR, checkpointDir.getPath());
+
+        List<InputSplit> splits = getSplits(job);
+        assertRanges(splits, new long[][] { { 0, 1000 }, { 2000, 300 }, { 2400, 100 } });
+    }
+
+    public void testEverythingCompleted() throws Exception {
+        Job job = createJob(2000, 1000);
+        CheckpointStore store = new CheckpointStore(job.getConfiguration(),
+                                                    checkpointDir.getPath());
+        commit(store, "attempt_1", 0, 1000);
+        commit(store, "attempt_2", 1000, 1000);
+        job.getConfiguration().set(CheckpointStore.CHECKPOINT_DIR, checkpointDir.getPath());
+
+        assertTrue(getSplits(job).isEmpty());
+    }
+
+    public void testSplitRoundTrip() throws Exception {
+        CandidateRangeSplit split = new CandidateRangeSplit(1234567890123L, 42);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        split.write(new DataOutputStream(bytes));
+
+        CandidateRangeSplit read = new CandidateRangeSplit();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(split.getStart(), read.getStart());
+        assertEquals(split.getLength(), read.getLength());
+        assertEquals(0, read.getLocations().length);
+    }
+
+    public void testCandidateFileSplitSize() throws Exception {
+        File file = File.createTempFile("candidates", ".seq");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(new byte[10000]);
+            } finally {
+                out.close();
+            }
+
+            Job job = Job.getInstance(new Configuration());
+            CandidateFileInputFormat.setCandidatesPerSplit(job,
+                                                           new Path(file.getPath()),
+                                                           3000,
+                                                           1000);
+            // a third of the file, rounded up
+            assertEquals(3334, FileInputFormat.getMaxSplitSize(job));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static Job createJob(long numCandidates, long candidatesPerSplit) throws Exception {
+        Job job = Job.getInstance(new Configuration());
+        TranslationInputFormat.setCandidateGenerator(job,
+                                                     AllPairsCandidateGenerator.class,
+                                                     numCandidates);
+        TranslationInputFormat.setCandidatesPerSplit(job, candidatesPerSplit);
+        return job;
+    }
+
+    private static List<InputSplit> getSplits(Job job) throws Exception {
+        return new TranslationInputFormat().getSplits(job);
+    }
+
+    private static void commit(CheckpointStore store,
+                               String attemptId,
+                               long start,
+                               long length) throws Exception {
+        store.beginAttempt(attemptId);
+        store.writeMatches(attemptId, "0", Collections.<Match> emptyList());
+        store.commitRange(attemptId, start, length);
+    }
+
+    private static void assertRanges(List<InputSplit> splits, long[][] expected) {
+        assertEquals(expected.length, splits.size());
+        for (int i = 0; i < expected.length; i++) {
+            CandidateRangeSplit split = (CandidateRangeSplit) splits.get(i);
+            assertEquals(expected[i][0], split.getStart());
+            assertEquals(expected[i][1], split.getLength());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package neu.nctracer.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.ImageData;
+import neu.nctracer.data.PointStack;
+import neu.nctracer.exception.ParsingException;
+
+/**
+ * Checks that binary stack files read back the points written to them and
+ * that malformed files are rejected
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class BinaryStackFileTest extends TestCase {
+
+    private List<DataObject> points;
+
+    @Override
+    protected void setUp() throws Exception {
+        points = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ImageData point = new ImageData();
+            point.setFeatures(new double[] { i * 1.25, -i * 0.5, i % 7 + 0.1 });
+            points.add(point);
+        }
+    }
+
+    public void testDoublePrecisionRoundTrip() throws Exception {
+        ByteBuffer buffer = write(BinaryStackFile.DOUBLE_PRECISION);
+
+        BinaryStackFile.Header header = BinaryStackFile.readHeader(buffer);
+        assertEquals(BinaryStackFile.DOUBLE_PRECISION, header.getPrecision());
+        assertEquals(3, header.getDimension());
+        assertEquals(100, header.getCount());
+        assertEquals(0.0, header.getMinBounds()[0], 0.0);
+        assertEquals(99 * 1.25, header.getMaxBounds()[0], 0.0);
+        assertEquals(-99 * 0.5, header.getMinBounds()[1], 0.0);
+
+        List<DataObject> read = BinaryStackFile.readDataObjects(buffer);
+        assertEquals(points, read);
+        assertEquals(42, read.get(42).getId());
+
+        PointStack stack = BinaryStackFile.readPointStack(buffer);
+        assertEquals(100, stack.size());
+        assertFalse(stack.isSinglePrecision());
+        for (int i = 0; i < points.size(); i++) {
+            assertCoordinates(points.get(i).getFeatures(), stack.getPoint(i), 0.0);
+        }
+    }
+
+    public void testSinglePrecisionRoundTrip() throws Exception {
+        ByteBuffer buffer = write(BinaryStackFile.SINGLE_PRECISION);
+        // every coordinate takes 4 instead of 8 bytes
+        assertEquals(4 * 3 * 100,
+                     write(BinaryStackFile.DOUBLE_PRECISION).remaining() - buffer.remaining());
+
+        PointStack stack = BinaryStackFile.readPointStack(buffer, true);
+        assertTrue(stack.isSinglePrecision());
+        for (int i = 0; i < points.size(); i++) {
+            assertCoordinates(points.get(i).getFeatures(), stack.getPoint(i), 1e-5);
+        }
+
+        // widened back to doubles
+        PointStack widened = BinaryStackFile.readPointStack(buffer, false);
+        assertFalse(widened.isSinglePrecision());
+        assertCoordinates(stack.getPoint(17), widened.getPoint(17), 0.0);
+    }
+
+    public void testTruncatedFileRejected() throws Exception {
+        ByteBuffer buffer = write(BinaryStackFile.DOUBLE_PRECISION);
+        buffer.limit(buffer.limit() - 1);
+        try {
+            BinaryStackFile.readHeader(buffer);
+            fail("Truncated stack must be rejected");
+        } catch (ParsingException e) {
+            // expected
+        }
+    }
+
+    public void testNotBinaryRejected() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap("1.0 2.0 3.0 0\n".getBytes("UTF-8"));
+        try {
+            BinaryStackFile.readHeader(buffer);
+            fail("Text stack must be rejected");
+        } catch (ParsingException e) {
+            // expected
+        }
+    }
+
+    public void testConvertTextFile() throws Exception {
+        File text = File.createTempFile("stack", ".txt");
+        File binary = File.createTempFile("stack", BinaryStackFile.FILE_EXTENSION);
+        try {
+            OutputStream out = new FileOutputStream(text);
+            try {
+                for (DataObject point : points) {
+                    double[] features = point.getFeatures();
+                    String line = features[0] + " " + features[1] + " " + features[2] + " 255\n";
+                    out.write(line.getBytes("UTF-8"));
+                }
+            } finally {
+                out.close();
+            }
+
+            assertFalse(BinaryStackFile.isBinaryStack(text.getPath()));
+            BinaryStackFile.convert(text.getPath(),
+                                    binary.getPath(),
+                                    BinaryStackFile.DOUBLE_PRECISION,
+                                    1);
+            assertTrue(BinaryStackFile.isBinaryStack(binary.getPath()));
+            assertEquals(points,
+                         BinaryStackFile.readDataObjects(BinaryStackFile.map(binary.getPath())));
+        } finally {
+            text.delete();
+            binary.delete();
+        }
+    }
+
+    public void testShortFileIsNotBinary() throws Exception {
+        File file = File.createTempFile("stack", ".txt");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write("1 2".getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            assertFalse(BinaryStackFile.isBinaryStack(file.getPath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private ByteBuffer write(int precision) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryStackFile.write(points, precision, out);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static void assertCoordinates(double[] expected, double[] actual, double delta) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], delta);
+        }
+    }
+}
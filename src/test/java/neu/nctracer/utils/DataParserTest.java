@@ -0,0 +1,93 @@
+package neu.nctracer.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+import junit.framework.TestCase;
+import neu.nctracer.data.DataObject;
+import neu.nctracer.data.ImageData;
+import neu.nctracer.data.PointStack;
+
+/**
+ * Checks that stacks read through the file system API are detected as text
+ * or binary correctly, including text stacks shorter than the binary header
+ * magic
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class DataParserTest extends TestCase {
+
+    private Configuration conf;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        conf = new Configuration();
+        file = File.createTempFile("stack", ".txt");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testShortTextStack() throws Exception {
+        // single point of dimension 1, shorter than the 4 bytes magic
+        writeBytes("5 0".getBytes("UTF-8"));
+
+        PointStack stack = DataParser.parseStack(conf, file.toURI().toString(), true);
+        assertEquals(1, stack.size());
+        assertEquals(5.0, stack.getCoordinate(0, 0), 0.0);
+    }
+
+    public void testTextStack() throws Exception {
+        writeBytes("1 2 3 0\r\n4 5 6 0\r\n".getBytes("UTF-8"));
+
+        PointStack stack = DataParser.parseStack(conf, file.toURI().toString(), true);
+        assertEquals(2, stack.size());
+        assertEquals(6.0, stack.getCoordinate(1, 2), 0.0);
+
+        PointStack local = DataParser.parseStack(conf, file.getPath(), false);
+        assertEquals(2, local.size());
+        assertEquals(4.0, local.getCoordinate(1, 0), 0.0);
+    }
+
+    public void testBinaryStack() throws Exception {
+        List<DataObject> points = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ImageData point = new ImageData();
+            point.setFeatures(new double[] { i, i * 2, i * 3 });
+            points.add(point);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            BinaryStackFile.write(points, BinaryStackFile.SINGLE_PRECISION, out);
+        } finally {
+            out.close();
+        }
+
+        PointStack stack = DataParser.parseStack(conf, file.toURI().toString(), true, true);
+        assertEquals(10, stack.size());
+        assertTrue(stack.isSinglePrecision());
+        assertEquals(27.0, stack.getCoordinate(9, 2), 0.0);
+
+        PointStack local = DataParser.parseStack(conf, file.getPath(), false, false);
+        assertEquals(10, local.size());
+        assertFalse(local.isSinglePrecision());
+    }
+
+    private void writeBytes(byte[] bytes) throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package neu.nctracer.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.apache.hadoop.conf.Configuration;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks reuse of staged files by checksum and that garbage collection spares
+ * recently used files and directories of live runs. Runs on the local file
+ * system
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class HdfsStagingAreaTest extends TestCase {
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    private File rootDir;
+    private File localDir;
+    private HdfsStagingArea stagingArea;
+
+    @Override
+    protected void setUp() throws Exception {
+        rootDir = Files.createTempDirectory("staging").toFile();
+        localDir = Files.createTempDirectory("local").toFile();
+        stagingArea = new HdfsStagingArea(new Configuration(), rootDir.getPath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(rootDir);
+        delete(localDir);
+    }
+
+    public void testSameContentStagedOnce() throws Exception {
+        File file = writeLocalFile("a", "stack.txt", "1 2 3 0\n");
+        String staged = stagingArea.stageFile(file.getPath());
+        assertTrue(new File(staged).isFile());
+        assertTrue(staged.contains(HdfsStagingArea.checksum(file)));
+
+        // same content at another local path, seen by another run
+        File copy = writeLocalFile("b", "stack.txt", "1 2 3 0\n");
+        long uploaded = System.currentTimeMillis() - DAY_MILLIS;
+        new File(staged).setLastModified(uploaded);
+        File marker = new File(new File(staged).getParentFile(), "_last_used");
+        marker.setLastModified(uploaded);
+        HdfsStagingArea otherRun = new HdfsStagingArea(new Configuration(), rootDir.getPath());
+        assertEquals(staged, otherRun.stageFile(copy.getPath()));
+        // reuse is recorded in the marker, staged file itself is untouched
+        assertEquals(uploaded, new File(staged).lastModified(), 1000);
+        assertTrue(marker.lastModified() > System.currentTimeMillis() - HOUR_MILLIS);
+
+        File changed = writeLocalFile("c", "stack.txt", "4 5 6 0\n");
+        assertFalse(staged.equals(otherRun.stageFile(changed.getPath())));
+    }
+
+    public void testChecksumOfText() throws Exception {
+        assertEquals(HdfsStagingArea.checksum("abc"), HdfsStagingArea.checksum("abc"));
+        assertFalse(HdfsStagingArea.checksum("abc").equals(HdfsStagingArea.checksum("abd")));
+        assertEquals(64, HdfsStagingArea.checksum("abc").length());
+    }
+
+    public void testUnusedStagedFilesCollected() throws Exception {
+        String used = stagingArea.stageFile(writeLocalFile("a", "used.txt", "1").getPath());
+        String unused = stagingArea.stageFile(writeLocalFile("b", "unused.txt", "2").getPath());
+        long old = System.currentTimeMillis() - 10 * DAY_MILLIS;
+        new File(unused).setLastModified(old);
+        new File(new File(unused).getParentFile(), "_last_used").setLastModified(old);
+
+        assertEquals(1, stagingArea.collectGarbage(HOUR_MILLIS, 5 * DAY_MILLIS));
+        assertTrue(new File(used).isFile());
+        assertFalse(new File(unused).getParentFile().exists());
+    }
+
+    public void testLiveRunDirsNotCollected() throws Exception {
+        String liveRun = stagingArea.createRunDir("live");
+        assertTrue(stagingArea.isAlive(liveRun));
+
+        File deadRun = new File(new File(rootDir, "runs"), "dead-20000101-000000-000");
+        assertTrue(deadRun.mkdirs());
+        assertFalse(stagingArea.isAlive(deadRun.getPath()));
+
+        long old = System.currentTimeMillis() - 2 * HOUR_MILLIS;
+        new File(liveRun).setLastModified(old);
+        deadRun.setLastModified(old);
+
+        assertEquals(1, stagingArea.collectGarbage(HOUR_MILLIS, 5 * DAY_MILLIS));
+        assertTrue(new File(liveRun).isDirectory());
+        assertFalse(deadRun.exists());
+
+        // released directory is collected by its age
+        stagingArea.release(liveRun);
+        assertFalse(stagingArea.isAlive(liveRun));
+        new File(liveRun).setLastModified(old);
+        assertEquals(1, stagingArea.collectGarbage(HOUR_MILLIS, 5 * DAY_MILLIS));
+        assertFalse(new File(liveRun).exists());
+    }
+
+    public void testStaleHeartbeatNotAlive() throws Exception {
+        String checkpoint = stagingArea.getCheckpointDir("key");
+        stagingArea.keepAlive(checkpoint);
+        assertTrue(stagingArea.isAlive(checkpoint));
+
+        // heartbeat of a run which died long ago
+        File heartbeat = new File(checkpoint, "_heartbeat");
+        heartbeat.setLastModified(System.currentTimeMillis() - HOUR_MILLIS);
+        assertFalse(stagingArea.isAlive(checkpoint));
+        stagingArea.release(checkpoint);
+    }
+
+    private File writeLocalFile(String dirName, String name, String content) throws Exception {
+        File dir = new File(localDir, dirName);
+        dir.mkdirs();
+        File file = new File(dir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,141 @@
+package neu.nctracer.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import neu.nctracer.exception.ParsingException;
+
+/**
+ * Checks line handling of {@link StackTextParser} and that parsing a large
+ * file in chunks gives same points as parsing it with a single thread
+ *
+ * @author Ankur Shanbhag
+ *
+ */
+public class StackTextParserTest extends TestCase {
+
+    public void testLineHandling() throws Exception {
+        String text = "1.5 2 -3.25 100\r\n"
+                      + "\n"
+                      + "  4\t5.0   6e1 0  \r\n"
+                      + "   \r\n"
+                      + "+7 .5 8. 1";
+        CoordinateBuffer buffer = parse(text);
+
+        assertEquals(3, buffer.getDimension());
+        assertEquals(3, buffer.getCount());
+        assertCoordinates(new double[] { 1.5, 2, -3.25, 4, 5, 60, 7, 0.5, 8 }, buffer.toArray());
+    }
+
+    public void testFastPathMatchesParseDouble() {
+        String[] tokens = { "0", "-0.0", "123.456", "0.1", "999999999999999", "1234567890.12345",
+                            "12345678901234567890", "0.000000000000000000001", "1e-3", "-.75" };
+        for (String token : tokens) {
+            byte[] bytes = token.getBytes();
+            assertEquals(token,
+                         Double.parseDouble(token),
+                         StackTextParser.parseDouble(bytes, bytes.length),
+                         0.0);
+        }
+    }
+
+    public void testInvalidRecordReportsLine() throws Exception {
+        try {
+            parse("1 2 3 0\n4 x 6 0\n");
+            fail("Invalid number must be rejected");
+        } catch (ParsingException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("line 2"));
+        }
+    }
+
+    public void testDimensionMismatchRejected() throws Exception {
+        try {
+            parse("1 2 3 0\n4 5 0\n");
+            fail("Points of different dimension must be rejected");
+        } catch (ParsingException e) {
+            // expected
+        }
+    }
+
+    public void testChunksMatchSingleThread() throws Exception {
+        File file = File.createTempFile("stack", ".txt");
+        try {
+            // large enough to be split into several chunks
+            writeRandomStack(file, 20L * 1024 * 1024);
+
+            CoordinateBuffer single = StackTextParser.parse(file.getPath(), 1);
+            CoordinateBuffer chunked = StackTextParser.parse(file.getPath(), 4);
+
+            assertEquals(single.getCount(), chunked.getCount());
+            assertCoordinates(single.toArray(), chunked.toArray());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testChunkErrorReportsFileLine() throws Exception {
+        File file = File.createTempFile("stack", ".txt");
+        try {
+            writeRandomStack(file, 20L * 1024 * 1024);
+            OutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write("1 2 bad 0\n".getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+
+            StackTextParser.parse(file.getPath(), 4);
+            fail("Invalid number must be rejected");
+        } catch (ParsingException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("[bad]"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes random points with CRLF line endings until the file has at least
+     * <tt>size</tt> bytes. Returns number of lines written
+     */
+    private static long writeRandomStack(File file, long size) throws Exception {
+        Random random = new Random(3);
+        long written = 0;
+        long lines = 0;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            while (written < size) {
+                String line = random.nextInt(100000) / 100.0
+                              + " "
+                              + random.nextInt(100000) / 100.0
+                              + " "
+                              + random.nextInt(1000) / 100.0
+                              + " "
+                              + random.nextInt(256)
+                              + "\r\n";
+                byte[] bytes = line.getBytes("UTF-8");
+                out.write(bytes);
+                written += bytes.length;
+                lines++;
+            }
+        } finally {
+            out.close();
+        }
+        return lines;
+    }
+
+    private static CoordinateBuffer parse(String text) throws Exception {
+        return StackTextParser.parse(new ByteArrayInputStream(text.getBytes("UTF-8")));
+    }
+
+    private static void assertCoordinates(double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], 0.0);
+        }
+    }
+}